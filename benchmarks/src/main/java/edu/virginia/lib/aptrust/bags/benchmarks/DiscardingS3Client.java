@@ -0,0 +1,165 @@
+package edu.virginia.lib.aptrust.bags.benchmarks;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A local stand-in for S3 that implements the subset of AmazonS3Client used by
+ * BagSubmitter.  Uploaded content is read and its MD5 computed (as S3 would)
+ * but is then discarded, so arbitrarily large bags may be sent without holding
+ * them in memory and the benchmark measures only the client side of a
+ * transfer.  The bucket always appears to be empty.
+ */
+public class DiscardingS3Client extends AmazonS3Client {
+
+    private final Set<String> uploads = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    public DiscardingS3Client() {
+        super(new BasicAWSCredentials("local", "local"));
+    }
+
+    @Override
+    public PutObjectResult putObject(String bucketName, String key, File file) {
+        try {
+            final InputStream in = new FileInputStream(file);
+            final byte[] md5;
+            try {
+                md5 = md5(in);
+            } finally {
+                in.close();
+            }
+            final PutObjectResult result = new PutObjectResult();
+            result.setContentMd5(new String(Base64.encodeBase64(md5), "UTF-8"));
+            result.setETag(String.valueOf(Hex.encodeHex(md5)));
+            return result;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public ObjectListing listObjects(String bucketName, String prefix) {
+        final ObjectListing listing = new ObjectListing();
+        listing.setBucketName(bucketName);
+        listing.setPrefix(prefix);
+        return listing;
+    }
+
+    @Override
+    public void deleteObject(String bucketName, String key) {
+        // nothing is ever stored
+    }
+
+    @Override
+    public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+        final InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+        result.setBucketName(request.getBucketName());
+        result.setKey(request.getKey());
+        result.setUploadId(UUID.randomUUID().toString());
+        uploads.add(result.getUploadId());
+        return result;
+    }
+
+    @Override
+    public UploadPartResult uploadPart(UploadPartRequest request) {
+        if (!uploads.contains(request.getUploadId())) {
+            throw new AmazonServiceException("NoSuchUpload");
+        }
+        try {
+            final byte[] md5;
+            if (request.getFile() != null) {
+                final InputStream in = new FileInputStream(request.getFile());
+                try {
+                    IOUtils.skipFully(in, request.getFileOffset());
+                    md5 = md5(new BoundedInputStream(in, request.getPartSize()));
+                } finally {
+                    in.close();
+                }
+            } else {
+                md5 = md5(new BoundedInputStream(request.getInputStream(), request.getPartSize()));
+            }
+            final UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag(String.valueOf(Hex.encodeHex(md5)));
+            return result;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+        if (!uploads.remove(request.getUploadId())) {
+            throw new AmazonServiceException("NoSuchUpload");
+        }
+        final ByteArrayOutputStream partMd5s = new ByteArrayOutputStream();
+        for (PartETag partETag : request.getPartETags()) {
+            try {
+                final byte[] partMd5 = Hex.decodeHex(partETag.getETag().toCharArray());
+                partMd5s.write(partMd5, 0, partMd5.length);
+            } catch (Exception e) {
+                throw new AmazonServiceException("InvalidPart");
+            }
+        }
+        final CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+        result.setBucketName(request.getBucketName());
+        result.setKey(request.getKey());
+        result.setETag(String.valueOf(Hex.encodeHex(md5(partMd5s.toByteArray()))) + "-" + request.getPartETags().size());
+        return result;
+    }
+
+    @Override
+    public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+        uploads.remove(request.getUploadId());
+    }
+
+    private static byte[] md5(InputStream in) throws IOException {
+        final MessageDigest digest = newMd5();
+        final byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+        }
+        return digest.digest();
+    }
+
+    private static byte[] md5(byte[] content) {
+        return newMd5().digest(content);
+    }
+
+    private static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
@@ -0,0 +1,153 @@
+package edu.virginia.lib.aptrust.bags.benchmarks;
+
+import edu.virginia.lib.aptrust.bags.APTrustBag;
+import edu.virginia.lib.aptrust.bags.util.StreamUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the hashing that dominates serialization of large payloads: the
+ * computation of manifest checksums as a payload file is read (one or more
+ * algorithms at once, as StreamUtils.copy() does when staging and tarring)
+ * and the MD5 of the tar computed by HashOutputStream as it is written.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class HashingBenchmark {
+
+    private static final int CONTENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * A payload file and the digests computed as it is read.
+     */
+    @State(Scope.Thread)
+    public static class PayloadFile {
+
+        /**
+         * The comma separated message digest names computed in one pass.
+         */
+        @Param({"MD5", "SHA-256", "MD5,SHA-256", "MD5,SHA-256,SHA-512"})
+        public String algorithms;
+
+        private File file;
+
+        private ByteBuffer buffer;
+
+        private List<MessageDigest> digests;
+
+        @Setup(Level.Trial)
+        public void generate() throws IOException, NoSuchAlgorithmException {
+            file = File.createTempFile("bagger-benchmark", ".bin");
+            final FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(generateContent());
+            } finally {
+                out.close();
+            }
+            buffer = ByteBuffer.allocate(StreamUtils.BUFFER_SIZE);
+            digests = new ArrayList<MessageDigest>();
+            for (String algorithm : algorithms.split(",")) {
+                digests.add(MessageDigest.getInstance(algorithm));
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void delete() {
+            file.delete();
+        }
+    }
+
+    /**
+     * Content in memory and the size of the writes in which it is passed on.
+     */
+    @State(Scope.Thread)
+    public static class TarContent {
+
+        @Param({"1", "8192", "1048576"})
+        public int writeSize;
+
+        private byte[] content;
+
+        @Setup(Level.Trial)
+        public void generate() {
+            content = generateContent();
+        }
+    }
+
+    private static byte[] generateContent() {
+        final byte[] content = new byte[CONTENT_SIZE];
+        new Random(CONTENT_SIZE).nextBytes(content);
+        return content;
+    }
+
+    /**
+     * Reads a payload file through its channel, computing every manifest
+     * checksum in the same pass.
+     */
+    @Benchmark
+    public byte[] manifestHashing(PayloadFile payload, Throughput throughput) throws IOException {
+        final RandomAccessFile f = new RandomAccessFile(payload.file, "r");
+        try {
+            final FileChannel channel = f.getChannel();
+            StreamUtils.copy(channel, null, payload.buffer, payload.digests);
+        } finally {
+            f.close();
+        }
+        byte[] last = null;
+        for (MessageDigest digest : payload.digests) {
+            last = digest.digest();
+        }
+        throughput.processed(CONTENT_SIZE, 1);
+        return last;
+    }
+
+    /**
+     * Writes content from memory to a HashOutputStream in writes of writeSize
+     * bytes, as the tar is written.
+     */
+    @Benchmark
+    public byte[] hashOutputStream(TarContent tar, Throughput throughput) throws IOException {
+        final byte[] content = tar.content;
+        final int writeSize = tar.writeSize;
+        final APTrustBag.HashOutputStream out = new APTrustBag.HashOutputStream();
+        if (writeSize == 1) {
+            for (int i = 0; i < CONTENT_SIZE; i ++) {
+                out.write(content[i]);
+            }
+        } else {
+            for (int offset = 0; offset < CONTENT_SIZE; offset += writeSize) {
+                out.write(content, offset, Math.min(writeSize, CONTENT_SIZE - offset));
+            }
+        }
+        out.close();
+        throughput.processed(CONTENT_SIZE, 1);
+        return out.getMD5Hash();
+    }
+}
@@ -0,0 +1,89 @@
+package edu.virginia.lib.aptrust.bags.benchmarks;
+
+import edu.virginia.lib.aptrust.bags.PendingPayloadFile;
+import org.apache.commons.io.FileUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The shapes of synthetic payload against which the benchmarks are run.  The
+ * content is pseudo-random (from a fixed seed) so that it neither compresses
+ * nor deduplicates, and is generated once per trial.
+ */
+public enum PayloadShape {
+
+    /**
+     * Many tiny files in a single directory, which stresses per-file overhead:
+     * tar headers, manifest lines and opening files.
+     */
+    TINY_FILES(5000, 2 * 1024, 0),
+
+    /**
+     * A few huge files, which stresses raw throughput: hashing and copying.
+     */
+    HUGE_FILES(2, 128 * 1024 * 1024, 0),
+
+    /**
+     * Moderately sized files spread across a deep directory tree, which
+     * stresses directory entries and long (extended header) tar paths.
+     */
+    DEEP_TREE(1000, 32 * 1024, 16);
+
+    private final int fileCount;
+
+    private final int fileSize;
+
+    private final int depth;
+
+    PayloadShape(int fileCount, int fileSize, int depth) {
+        this.fileCount = fileCount;
+        this.fileSize = fileSize;
+        this.depth = depth;
+    }
+
+    /**
+     * Gets the total number of payload bytes of a payload of this shape.
+     */
+    public long getPayloadSize() {
+        return (long) fileCount * fileSize;
+    }
+
+    /**
+     * Writes a payload of this shape into the given (empty) directory.
+     * @return the payload files, with their paths relative to the directory
+     */
+    public List<PendingPayloadFile> generate(final File dir) throws IOException {
+        FileUtils.deleteDirectory(dir);
+        final Random random = new Random(fileCount);
+        final byte[] buffer = new byte[Math.min(fileSize, 1024 * 1024)];
+        final List<PendingPayloadFile> payload = new ArrayList<PendingPayloadFile>();
+        for (int i = 0; i < fileCount; i ++) {
+            final StringBuilder path = new StringBuilder();
+            for (int level = 0; level < depth; level ++) {
+                // ten branches at each level, chosen by the digits of the file number
+                path.append("level-").append(level).append('-').append((i / (level + 1)) % 10).append('/');
+            }
+            path.append("file-").append(i).append(".bin");
+            final File f = new File(dir, path.toString());
+            f.getParentFile().mkdirs();
+            final OutputStream out = new BufferedOutputStream(new FileOutputStream(f));
+            try {
+                for (long written = 0; written < fileSize; written += buffer.length) {
+                    random.nextBytes(buffer);
+                    out.write(buffer, 0, (int) Math.min(buffer.length, fileSize - written));
+                }
+            } finally {
+                out.close();
+            }
+            payload.add(new PendingPayloadFile(f, path.toString()));
+        }
+        return payload;
+    }
+}
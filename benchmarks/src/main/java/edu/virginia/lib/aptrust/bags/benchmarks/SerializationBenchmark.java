@@ -0,0 +1,81 @@
+package edu.virginia.lib.aptrust.bags.benchmarks;
+
+import edu.virginia.lib.aptrust.bags.APTrustInfo;
+import edu.virginia.lib.aptrust.bags.BagInfo;
+import edu.virginia.lib.aptrust.bags.BagSummary;
+import edu.virginia.lib.aptrust.bags.FileBag;
+import edu.virginia.lib.aptrust.bags.PendingPayloadFile;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures APTrustBag.serializeAPTrustBag() for each payload shape, both as a
+ * bag directory and as a tar file.  Each invocation serializes the whole bag,
+ * so the primary score is bags per second and the "megabytes" counter is the
+ * payload throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Param
+    public PayloadShape shape;
+
+    @Param({"false", "true"})
+    public boolean tar;
+
+    private File workDir;
+
+    private File outputDir;
+
+    private List<PendingPayloadFile> payload;
+
+    @Setup(Level.Trial)
+    public void generatePayload() throws IOException {
+        workDir = Files.createTempDirectory("bagger-benchmark").toFile();
+        outputDir = new File(workDir, "bags");
+        payload = shape.generate(new File(workDir, "payload"));
+    }
+
+    @Setup(Level.Invocation)
+    public void clearOutput() throws IOException {
+        FileUtils.deleteDirectory(outputDir);
+        outputDir.mkdirs();
+    }
+
+    @TearDown(Level.Trial)
+    public void deletePayload() throws IOException {
+        FileUtils.deleteDirectory(workDir);
+    }
+
+    @Benchmark
+    public BagSummary serialize(Throughput throughput) throws Exception {
+        final FileBag bag = new FileBag("benchmark", new BagInfo(), new APTrustInfo("Benchmark", APTrustInfo.CONSORTIA),
+                "bag", payload.toArray(new PendingPayloadFile[0]));
+        final BagSummary summary = bag.serializeAPTrustBag(outputDir, tar);
+        throughput.processed(shape.getPayloadSize(), payload.size());
+        return summary;
+    }
+}
@@ -0,0 +1,35 @@
+package edu.virginia.lib.aptrust.bags.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Secondary results that JMH reports as rates alongside each benchmark's
+ * operations per second.  Because the benchmarks use seconds as their time
+ * unit, "megabytes" is reported in MB/s and "files" in files/s.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class Throughput {
+
+    public double megabytes;
+
+    public long files;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        megabytes = 0;
+        files = 0;
+    }
+
+    /**
+     * Records the processing of some payload.
+     */
+    public void processed(long bytes, int fileCount) {
+        megabytes += bytes / (1024.0 * 1024.0);
+        files += fileCount;
+    }
+}
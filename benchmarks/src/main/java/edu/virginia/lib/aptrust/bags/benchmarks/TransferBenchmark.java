@@ -0,0 +1,112 @@
+package edu.virginia.lib.aptrust.bags.benchmarks;
+
+import edu.virginia.lib.aptrust.bags.APTrustInfo;
+import edu.virginia.lib.aptrust.bags.BagInfo;
+import edu.virginia.lib.aptrust.bags.BagSummary;
+import edu.virginia.lib.aptrust.bags.FileBag;
+import edu.virginia.lib.aptrust.bags.PendingPayloadFile;
+import edu.virginia.lib.aptrust.bags.util.BagSubmitter;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures BagSubmitter against a local S3 stand-in (which reads and hashes
+ * but discards what it is sent): the multipart transfer of an already
+ * serialized tar, and the streaming of a bag directly into a multipart upload.
+ * The "megabytes" counter is the throughput of the payload.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class TransferBenchmark {
+
+    @Param
+    public PayloadShape shape;
+
+    @Param({"8388608", "67108864"})
+    public int partSize;
+
+    @Param({"1", "4"})
+    public int concurrentParts;
+
+    private File workDir;
+
+    private File streamingDir;
+
+    private List<PendingPayloadFile> payload;
+
+    private BagSummary serializedBag;
+
+    private BagSubmitter submitter;
+
+    @Setup(Level.Trial)
+    public void serializeBag() throws Exception {
+        workDir = Files.createTempDirectory("bagger-benchmark").toFile();
+        streamingDir = new File(workDir, "streaming");
+        payload = shape.generate(new File(workDir, "payload"));
+        serializedBag = createBag().serializeAPTrustBag(new File(workDir, "bags"), true);
+        submitter = new BagSubmitter(new DiscardingS3Client(), "benchmark")
+                .partSize(partSize)
+                .streamingPartSize(partSize)
+                .concurrentParts(concurrentParts);
+    }
+
+    @Setup(Level.Invocation)
+    public void clearStreamingDir() throws IOException {
+        FileUtils.deleteDirectory(streamingDir);
+        streamingDir.mkdirs();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteBag() throws IOException {
+        FileUtils.deleteDirectory(workDir);
+    }
+
+    @Benchmark
+    public BagSubmitter.TransferSummary transferTar(Throughput throughput) {
+        final BagSubmitter.TransferSummary summary = submitter.transferBag(serializedBag, true);
+        checkTransferred(summary);
+        throughput.processed(shape.getPayloadSize(), payload.size());
+        return summary;
+    }
+
+    @Benchmark
+    public BagSubmitter.TransferSummary streamBag(Throughput throughput) throws Exception {
+        final BagSubmitter.TransferSummary summary = submitter.streamBag(createBag(), streamingDir, true);
+        checkTransferred(summary);
+        throughput.processed(shape.getPayloadSize(), payload.size());
+        return summary;
+    }
+
+    private FileBag createBag() {
+        return new FileBag("benchmark", new BagInfo(), new APTrustInfo("Benchmark", APTrustInfo.CONSORTIA), "bag",
+                payload.toArray(new PendingPayloadFile[0]));
+    }
+
+    private static void checkTransferred(BagSubmitter.TransferSummary summary) {
+        if (!summary.wasTransferred()) {
+            throw new IllegalStateException("Transfer failed: " + summary.getMessage());
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package edu.virginia.lib.aptrust.bags;
 
-import edu.virginia.lib.aptrust.bags.util.OutputDrainerThread;
-import gov.loc.repository.bagit.creator.CreatePayloadManifestsVistor;
+import edu.virginia.lib.aptrust.bags.util.StreamUtils;
 import gov.loc.repository.bagit.domain.Bag;
 import gov.loc.repository.bagit.domain.Manifest;
 import gov.loc.repository.bagit.domain.Version;
@@ -12,26 +11,29 @@ import gov.loc.repository.bagit.writer.BagitFileWriter;
 import gov.loc.repository.bagit.writer.ManifestWriter;
 import gov.loc.repository.bagit.writer.MetadataWriter;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
-import java.nio.file.FileSystemException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * An abstract class that encapsualtes the requirements for creating and serializing
@@ -50,117 +52,504 @@ public abstract class APTrustBag {
 
     private APTrustInfo aptrustInfo;
 
+    private int parallelism = 1;
+
+    private Set<SupportedAlgorithm> algorithms = Collections.<SupportedAlgorithm>singleton(StandardSupportedAlgorithms.SHA256);
+
+    private ChecksumCache checksumCache;
+
+    private MetricsSink metricsSink;
+
+    private ProgressListener progressListener;
+
+    private long progressInterval;
+
+    private int manifestRunSize = 100000;
+
+    private boolean manifestCopy = true;
+
+    private boolean tarIndex = false;
+
     public APTrustBag(final String institutionId, final BagInfo bagInfo, final APTrustInfo aptrustInfo) {
         this.bagInfo = bagInfo;
         this.aptrustInfo = aptrustInfo;
         this.institutionId = institutionId;
     }
 
+    public BagInfo getBagInfo() {
+        return bagInfo;
+    }
+
+    /**
+     * Sets the number of payload files that are staged and hashed at once when
+     * the bag is serialized as a directory.  The default is 1.  A tar is written
+     * as a single sequential stream, so this setting does not affect taring.
+     */
+    public APTrustBag parallelism(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1!");
+        }
+        this.parallelism = threads;
+        return this;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Forgets whether payload files may be hard linked or cloned into bags on
+     * each file store, which is otherwise remembered for the life of the JVM
+     * (or until staging a file that way fails), so that the file stores are
+     * probed again the next time a bag is serialized as a directory.
+     */
+    public static void clearStagingStrategies() {
+        PayloadStager.clearStrategies();
+    }
+
+    /**
+     * Sets the algorithms for which payload and tag manifests are written.  The
+     * default is SHA-256 alone.  Every configured digest is updated from the same
+     * read of each file, so adding an algorithm costs CPU time but no extra I/O.
+     */
+    public APTrustBag algorithms(SupportedAlgorithm ... algorithms) {
+        if (algorithms.length == 0) {
+            throw new IllegalArgumentException("At least one algorithm must be specified!");
+        }
+        this.algorithms = Collections.unmodifiableSet(new LinkedHashSet<SupportedAlgorithm>(Arrays.asList(algorithms)));
+        return this;
+    }
+
+    public Set<SupportedAlgorithm> getAlgorithms() {
+        return algorithms;
+    }
+
+    /**
+     * Sets a cache from which the checksums of unchanged payload files are
+     * taken rather than computed.  Checksums that are computed are added to the
+     * cache, which is not saved by the bag; call ChecksumCache.save() once the
+     * bag (or a batch of bags sharing the cache) has been serialized.  The
+     * default is null, in which case every payload file is hashed.
+     */
+    public APTrustBag checksumCache(ChecksumCache cache) {
+        this.checksumCache = cache;
+        return this;
+    }
+
+    public ChecksumCache getChecksumCache() {
+        return checksumCache;
+    }
+
+    /**
+     * Sets a sink to which the metrics of each serialization of this bag are
+     * reported once it finishes (whether or not it succeeds).  The metrics are
+     * also available from the resulting BagSummary.  The default is null.
+     */
+    public APTrustBag metricsSink(MetricsSink sink) {
+        this.metricsSink = sink;
+        return this;
+    }
+
+    public MetricsSink getMetricsSink() {
+        return metricsSink;
+    }
+
+    /**
+     * Sets a listener to which the progress of each serialization of this bag
+     * (payload bytes processed, the current file and phase, and the throughput
+     * and estimated time remaining) is reported, at most once per interval and
+     * once more when the payload is complete.  The default is null.
+     * @param intervalMillis the minimum time between reports
+     */
+    public APTrustBag progressListener(ProgressListener listener, long intervalMillis) {
+        if (intervalMillis < 0) {
+            throw new IllegalArgumentException("The progress interval may not be negative!");
+        }
+        this.progressListener = listener;
+        this.progressInterval = intervalMillis;
+        return this;
+    }
+
+    public ProgressListener getProgressListener() {
+        return progressListener;
+    }
+
+    /**
+     * Sets the number of payload manifest entries held in memory while the bag
+     * is serialized.  Once that many have accumulated they are sorted and
+     * written to a temporary run file beside the bag, and the runs are merged
+     * into the manifest files once the payload is complete, so the memory used
+     * for manifests doesn't grow with the number of payload files.  The
+     * default is 100,000.
+     */
+    public APTrustBag manifestRunSize(int entries) {
+        if (entries < 1) {
+            throw new IllegalArgumentException("The manifest run size must be at least 1!");
+        }
+        this.manifestRunSize = entries;
+        return this;
+    }
+
+    public int getManifestRunSize() {
+        return manifestRunSize;
+    }
+
+    /**
+     * Sets whether a compact copy of the payload manifest is kept in the
+     * BagSummary of each serialization.  The copy takes tens of bytes per
+     * payload file, so it should be turned off for bags of millions of files.
+     * The default is true.
+     */
+    public APTrustBag manifestCopy(boolean keep) {
+        this.manifestCopy = keep;
+        return this;
+    }
+
+    public boolean getManifestCopy() {
+        return manifestCopy;
+    }
+
+    /**
+     * Sets whether a TarIndex of the tar's file entries is written alongside
+     * it when the bag is tarred: beside the tar file (with ".index" appended
+     * to its name) or, when the tar is streamed, in the working directory.
+     * The index lets BagUpdate add files to the tar without reading it, at
+     * the cost of computing the tar's MD5 somewhat more slowly.  The default
+     * is false.
+     */
+    public APTrustBag tarIndex(boolean write) {
+        this.tarIndex = write;
+        return this;
+    }
+
+    public boolean getTarIndex() {
+        return tarIndex;
+    }
+
     /**
      * Creates an AP Trust compliant bag
      * @param destinationDir the directory into which the bag will be serialized
      * @param tar if true, a tar file will be the ultimate output, if false a simple
-     *            directory structure (note: the current implementation writes out
-     *            a directory structure first and tars it second)
+     *            directory structure (note: when taring, the payload files are written
+     *            directly into the tar and only the small tag files are written to a
+     *            temporary bag directory)
      * @return a BagSummary referencing the the file that represents the root of the bag
-     * (either the tar file or the bag directory) and a checksum if the bag is a tar file
+     * (either the tar file or the bag directory), a checksum if the bag is a tar file
+     * and (unless turned off with manifestCopy()) a copy of the SHA-256 payload manifest
+     * (or the manifest for the first configured algorithm if SHA-256 isn't among them)
      * @throws Exception
      */
     public BagSummary serializeAPTrustBag(File destinationDir, boolean tar) throws Exception {
+        if (!tar) {
+            return serializeAPTrustBag(destinationDir, null, null);
+        }
+        return serializeAPTrustBag(destinationDir, new File(destinationDir, getAptrustBagName() + ".tar"), null);
+    }
+
+    /**
+     * Creates an AP Trust compliant bag and writes it as a tar to the given stream.
+     * The tar is never written to (or read back from) local disk, so the stream may
+     * send it directly to its final destination.
+     * @param workingDir a directory in which the bag's small tag files are written
+     *                   before being added to the tar; they are removed once the tar
+     *                   is complete
+     * @param out the stream to which the tar is written; it is closed when the tar
+     *            is complete or serialization fails
+     * @return a BagSummary with the checksum of the tar and a copy of the payload manifest
+     * but no file
+     * @throws Exception
+     */
+    public BagSummary serializeAPTrustBag(File workingDir, OutputStream out) throws Exception {
+        return serializeAPTrustBag(workingDir, null, out);
+    }
+
+    /**
+     * @param tarFile the file to which the tar is written (when out is null), or
+     *                null if the bag is to be streamed or serialized as a directory
+     * @param out the stream to which the tar is written, or null if the bag is to
+     *            be written to tarFile or serialized as a directory
+     */
+    private BagSummary serializeAPTrustBag(File destinationDir, File tarFile, OutputStream out) throws Exception {
+        final boolean tar = tarFile != null || out != null;
     	long payloadSize = 0;
-        if (!destinationDir.exists()) {
-            destinationDir.mkdirs();
-        } else {
-            if (!destinationDir.isDirectory()) {
-                throw new IllegalArgumentException(destinationDir + " is not a directory!");
+        final File bagOutputFile = new File(destinationDir, getAptrustBagName());
+        final File indexFile = tar && tarIndex ? TarIndex.getIndexFile(tarFile != null ? tarFile
+                : new File(destinationDir, getAptrustBagName() + ".tar")) : null;
+        final BagMetrics metrics = new BagMetrics(getAptrustBagName());
+        OutputStream tarOut = out;
+        BagTarWriter tarWriter = null;
+        ManifestSpool spool = null;
+        boolean complete = false;
+        try {
+            ensureDirectory(destinationDir);
+            bagOutputFile.mkdirs();
+
+            final Bag b = new Bag(new Version(0, 97));
+            b.setRootDir(bagOutputFile.toPath());
+
+            final Iterable<PendingPayloadFile> payload = getPayload();
+
+            // write the bagit.txt
+            BagitFileWriter.writeBagitFile(b.getVersion(), b.getFileEncoding(), b.getRootDir());
+
+            final ProgressTracker progress = progressListener == null ? null
+                    : new ProgressTracker(getAptrustBagName(), progressListener, progressInterval, getTotalLength(payload));
+            if (tar) {
+                if (tarOut == null) {
+                    tarOut = new BufferedOutputStream(new FileOutputStream(tarFile), StreamUtils.BUFFER_SIZE);
+                }
+                tarWriter = new BagTarWriter(tarOut, getAptrustBagName());
+                if (indexFile != null) {
+                    tarWriter.writeIndex(indexFile);
+                }
+            }
+            spool = new ManifestSpool(destinationDir, new ArrayList<SupportedAlgorithm>(algorithms), manifestRunSize);
+            File dataDir = new File(b.getRootDir().toFile(), "data");
+
+            // bring in the payload, computing the payload manifest entries from the same
+            // read that streams each file into the tar or stages it in the bag directory
+            // (the entries are spooled and written to the manifests sorted by path so that
+            // their lines are in a stable order)
+            final List<Manifest> manifests = new ArrayList<Manifest>();
+            for (SupportedAlgorithm algorithm : algorithms) {
+                manifests.add(new Manifest(algorithm));
+            }
+            if (tar) {
+                tarTagFile(tarWriter, new File(b.getRootDir().toFile(), "bagit.txt"), metrics);
+                tarWriter.setProgress(progress);
+                final ManifestDigester digester = new ManifestDigester(manifests);
+                for (PendingPayloadFile payloadFile : payload) {
+                    final long start = System.nanoTime();
+                    final long size = tarPayloadFile(tarWriter, payloadFile, dataDir, manifests, spool, digester, checksumCache);
+                    metrics.record(BagMetrics.Phase.TAR, System.nanoTime() - start, size, 1);
+                    payloadSize += size;
+                    freePayloadFile(payloadFile);
+                }
+                tarWriter.setProgress(null);
+            } else {
+                payloadSize = new PayloadStager(this, dataDir, parallelism, checksumCache, spool, metrics, progress)
+                        .stage(payload, manifests);
+            }
+            if (progress != null) {
+                progress.finish();
+            }
+            final long tagFilesStart = System.nanoTime();
+            spool.writeManifests(b.getRootDir(), b.getFileEncoding());
+            final PayloadManifest manifestCopy = this.manifestCopy ? readManifestCopy(b, algorithms) : null;
+            writeMetadataFiles(b, bagInfo, aptrustInfo, algorithms);
+            metrics.record(BagMetrics.Phase.TAG_FILES, System.nanoTime() - tagFilesStart, 0, algorithms.size() * 2 + 2);
+
+            if (tar) {
+                tarWriter.markTagFiles();
+                for (File tagFile : getTagFiles(bagOutputFile)) {
+                    tarTagFile(tarWriter, tagFile, metrics);
+                }
+                final long start = System.nanoTime();
+                final byte[] md5 = tarWriter.finish();
+                metrics.record(BagMetrics.Phase.TAR, System.nanoTime() - start, 0, 0);
+                FileUtils.deleteDirectory(bagOutputFile);
+                complete = true;
+                return new BagSummary(tarFile, md5, manifestCopy, payloadSize, metrics, indexFile);
+            } else {
+                complete = true;
+                return new BagSummary(bagOutputFile, null, manifestCopy, payloadSize, metrics);
+            }
+        } finally {
+            try {
+                if (spool != null) {
+                    spool.close();
+                }
+            } finally {
+                if (tarWriter != null) {
+                    tarWriter.close();
+                } else if (tarOut != null) {
+                    tarOut.close();
+                }
+            }
+            if (tar && !complete) {
+                // don't leave a partial tar (or the bag directory from which its tag files came) behind
+                if (tarFile != null && tarOut != null) {
+                    tarFile.delete();
+                }
+                if (indexFile != null && tarWriter != null) {
+                    indexFile.delete();
+                }
+                FileUtils.deleteQuietly(bagOutputFile);
+            }
+            metrics.finish();
+            if (metricsSink != null) {
+                metricsSink.metricsRecorded(metrics);
             }
         }
-        File bagOutputFile = new File(destinationDir, getAptrustBagName());
-        bagOutputFile.mkdirs();
-
-        final Bag b = new Bag(new Version(0, 97));
-        b.setRootDir(bagOutputFile.toPath());
-        Charset charset = b.getFileEncoding();
+    }
 
-        final List<PendingPayloadFile> payload = getPayloadFiles();
+    /**
+     * Gets the total length of the payload, or -1 if the length of any of its
+     * content isn't known or the payload isn't a collection (and so can't be
+     * iterated over more than once).
+     */
+    private static long getTotalLength(Iterable<PendingPayloadFile> payload) {
+        if (!(payload instanceof Collection)) {
+            return -1;
+        }
+        long total = 0;
+        for (PendingPayloadFile f : payload) {
+            final long length = f.getSource().getLength();
+            if (length < 0) {
+                return -1;
+            }
+            total += length;
+        }
+        return total;
+    }
 
-        // write the bagit.txt
-        BagitFileWriter.writeBagitFile(b.getVersion(), b.getFileEncoding(), b.getRootDir());
+    private static void tarTagFile(BagTarWriter tarWriter, File tagFile, BagMetrics metrics) throws IOException {
+        final long start = System.nanoTime();
+        final long size = tarWriter.addFile(tagFile.getName(), tagFile);
+        metrics.record(BagMetrics.Phase.TAR, System.nanoTime() - start, size, 1);
+    }
 
-        // bring in the payload
-        File dataDir = new File(b.getRootDir().toFile(), "data");
-        for (PendingPayloadFile payloadFile : payload) {
-            payloadSize += payloadFile.getFile().length();
-            final Path destination = new File(dataDir, payloadFile.getPathWithinPayload()).toPath();
-            destination.getParent().toFile().mkdirs();
+    /**
+     * Writes a payload file into the tar and adds its entry to each manifest.
+     * The content must be read into the tar anyway, but it isn't hashed when
+     * its checksums were supplied with it or are found in the cache.  Content of
+     * unknown length is first spooled to a temporary file in the bag directory.
+     * @param dataDir the data directory of the bag (to which manifest paths are
+     *                relative); its parent is the bag directory
+     * @param spool the spool to which the manifest entry is added, or null if it
+     *              should be added to the manifests themselves
+     * @param checksumCache a cache of previously computed checksums, or null
+     * @return the size of the payload file
+     */
+    static long tarPayloadFile(BagTarWriter tarWriter, PendingPayloadFile payloadFile, File dataDir, List<Manifest> manifests,
+                               ManifestSpool spool, ManifestDigester digester, ChecksumCache checksumCache) throws IOException {
+        final String path = "data/" + payloadFile.getPathWithinPayload();
+        final PayloadSource source = payloadFile.getSource();
+        final ChecksumCache.FileIdentity id = checksumCache == null || payloadFile.getFile() == null
+                ? null : checksumCache.identify(payloadFile.getFile());
+        String[] checksums = id == null ? ManifestDigester.getSuppliedChecksums(source, manifests) : checksumCache.get(id, manifests);
+        final List<MessageDigest> digests = checksums == null ? digester.getDigests() : Collections.<MessageDigest>emptyList();
+        final long size;
+        if (payloadFile.getFile() != null) {
+            size = tarWriter.addFile(path, payloadFile.getFile(), digests);
+        } else if (source.getLength() >= 0) {
+            final InputStream in = source.openStream();
+            try {
+                size = tarWriter.addEntry(path, in, source.getLength(), System.currentTimeMillis(), digests);
+            } finally {
+                in.close();
+            }
+        } else {
+            final File spoolFile = File.createTempFile("payload", ".tmp", dataDir.getParentFile());
             try {
-                Files.createLink(destination, payloadFile.getFile().toPath());
-            } catch (FileSystemException e) {
-                LOGGER.info("Exception hard-linking bag payload! (performing aopy)", e);
-                Files.copy(payloadFile.getFile().toPath(), destination);
-            }
-            freePayloadFile(payloadFile);
-        }
-
-        // write the payload manifest
-        SupportedAlgorithm algorithm = StandardSupportedAlgorithms.SHA256;
-        //Manifest manifest = new Manifest(algorithm);
-        MessageDigest messageDigest = MessageDigest.getInstance(algorithm.getMessageDigestName());
-        final Map<Manifest, MessageDigest> manifestToMessageDigestMap = Hasher.createManifestToMessageDigestMap(Collections.singleton(algorithm));
-        //manifestToMessageDigestMap.put(manifest, messageDigest);
-        CreatePayloadManifestsVistor visitor = new CreatePayloadManifestsVistor(manifestToMessageDigestMap, false);
-        Files.walkFileTree(Paths.get(dataDir.toURI()), visitor);
-        b.getPayLoadManifests().addAll(manifestToMessageDigestMap.keySet());
+                final InputStream in = source.openStream();
+                try {
+                    final OutputStream out = new FileOutputStream(spoolFile);
+                    try {
+                        StreamUtils.copy(in, out, new byte[StreamUtils.BUFFER_SIZE], digests);
+                    } finally {
+                        out.close();
+                    }
+                } finally {
+                    in.close();
+                }
+                size = tarWriter.addFile(path, spoolFile);
+            } finally {
+                spoolFile.delete();
+            }
+        }
+        if (checksums == null) {
+            checksums = digester.finish();
+            if (id != null) {
+                checksumCache.put(id, manifests, checksums);
+            }
+        }
+        if (spool != null) {
+            spool.add(path, checksums);
+        } else {
+            ManifestDigester.addEntry(manifests, new File(dataDir, payloadFile.getPathWithinPayload()).toPath(), checksums);
+        }
+        return size;
+    }
+
+    /**
+     * Writes the payload manifests, bag-info.txt, aptrust-info.txt and the tag
+     * manifests into the root directory of the given bag, replacing any that
+     * exist.
+     * @param manifests the complete payload manifests
+     * @return a compact copy of the SHA-256 payload manifest (or the manifest for
+     * the first algorithm if SHA-256 isn't among them)
+     */
+    static PayloadManifest writeTagFiles(Bag b, List<Manifest> manifests, BagInfo bagInfo, APTrustInfo aptrustInfo,
+                                Set<SupportedAlgorithm> algorithms) throws IOException, NoSuchAlgorithmException {
+        b.getPayLoadManifests().addAll(manifests);
         ManifestWriter.writePayloadManifests(b.getPayLoadManifests(), b.getRootDir(), b.getRootDir(), b.getFileEncoding());
-        final String manifestCopy = FileUtils.readFileToString(new File(b.getRootDir().toFile(), "manifest-sha256.txt"));
+        final PayloadManifest manifestCopy = readManifestCopy(b, algorithms);
+        writeMetadataFiles(b, bagInfo, aptrustInfo, algorithms);
+        return manifestCopy;
+    }
+
+    /**
+     * Reads a compact copy of the SHA-256 payload manifest (or the manifest for
+     * the first algorithm if SHA-256 isn't among them) from the root directory
+     * of the given bag.
+     */
+    private static PayloadManifest readManifestCopy(Bag b, Set<SupportedAlgorithm> algorithms) throws IOException {
+        final SupportedAlgorithm copiedAlgorithm = algorithms.contains(StandardSupportedAlgorithms.SHA256)
+                ? StandardSupportedAlgorithms.SHA256 : algorithms.iterator().next();
+        return PayloadManifest.read(new File(b.getRootDir().toFile(), "manifest-" + copiedAlgorithm.getBagitName() + ".txt"),
+                copiedAlgorithm.getBagitName(), b.getFileEncoding());
+    }
+
+    /**
+     * Writes bag-info.txt, aptrust-info.txt and the tag manifests into the root
+     * directory of the given bag, whose payload manifests have been written.
+     */
+    private static void writeMetadataFiles(Bag b, BagInfo bagInfo, APTrustInfo aptrustInfo, Set<SupportedAlgorithm> algorithms)
+            throws IOException, NoSuchAlgorithmException {
+        final File rootDir = b.getRootDir().toFile();
+        final Charset charset = b.getFileEncoding();
 
         // write bag-info.txt
         bagInfo.addToMetadata(b);
-        MetadataWriter.writeBagMetadata(b.getMetadata(), b.getVersion(), b.getRootDir(), b.getFileEncoding());
+        MetadataWriter.writeBagMetadata(b.getMetadata(), b.getVersion(), b.getRootDir(), charset);
 
         // write the aptrust-info.txt
-        final Path aptrustInfoPath = new File(b.getRootDir().toFile(), "aptrust-info.txt").toPath();
-        Files.write(aptrustInfoPath, ("Title : " + aptrustInfo.getTitle() + System.lineSeparator()).getBytes(charset),
-                StandardOpenOption.APPEND, StandardOpenOption.CREATE);
-        Files.write(aptrustInfoPath, ("Access : " + aptrustInfo.getAccess() + System.lineSeparator()).getBytes(charset),
-                StandardOpenOption.APPEND, StandardOpenOption.CREATE);
-
-        // write the tag manifest
-        Manifest tagManifest = new Manifest(algorithm);
-        tagManifest.getFileToChecksumMap().put(aptrustInfoPath, Hasher.hash(aptrustInfoPath, messageDigest));
-        final File bagInfoFile = new File(b.getRootDir().toFile(), "bag-info.txt");
-        tagManifest.getFileToChecksumMap().put(bagInfoFile.toPath(), Hasher.hash(bagInfoFile.toPath(), messageDigest));
-        b.getTagManifests().add(tagManifest);
-        ManifestWriter.writeTagManifests(b.getTagManifests(), b.getRootDir(), b.getRootDir(), b.getFileEncoding());
-
-        if (tar) {
-            final BagSummary result = tarDirectory(bagOutputFile, manifestCopy.toString(), payloadSize);
-            FileUtils.deleteDirectory(bagOutputFile);
-            return result;
+        final Path aptrustInfoPath = new File(rootDir, "aptrust-info.txt").toPath();
+        Files.write(aptrustInfoPath, ("Title : " + aptrustInfo.getTitle() + System.lineSeparator()
+                + "Access : " + aptrustInfo.getAccess() + System.lineSeparator()).getBytes(charset));
+
+        // write the tag manifests (each tag file is read once for all algorithms)
+        final Map<Manifest, MessageDigest> tagManifests = Hasher.createManifestToMessageDigestMap(algorithms);
+        Hasher.hash(aptrustInfoPath, tagManifests);
+        Hasher.hash(new File(rootDir, "bag-info.txt").toPath(), tagManifests);
+        b.getTagManifests().addAll(tagManifests.keySet());
+        ManifestWriter.writeTagManifests(b.getTagManifests(), b.getRootDir(), b.getRootDir(), charset);
+    }
+
+    private void ensureDirectory(File dir) {
+        if (!dir.exists()) {
+            dir.mkdirs();
         } else {
-            return new BagSummary(bagOutputFile, null, manifestCopy.toString(), payloadSize);
+            if (!dir.isDirectory()) {
+                throw new IllegalArgumentException(dir + " is not a directory!");
+            }
         }
     }
 
-    private BagSummary tarDirectory(final File file, String manifestCopy, long payloadSize) throws IOException, InterruptedException {
-        final File tarFile = new File(file.getAbsolutePath() + ".tar");
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ProcessBuilder pb = new ProcessBuilder("tar", "-cvf", tarFile.getAbsolutePath(), file.getName());
-        pb.directory(file.getParentFile());
-        Process p = pb.start();
-        
-        new Thread(new OutputDrainerThread(p.getInputStream(), baos)).start();
-        new Thread(new OutputDrainerThread(p.getErrorStream(), baos)).start();
-        int returnCode = p.waitFor();
-        if (returnCode != 0) {
-            throw new RuntimeException("Invalid return code for process! " + new String(baos.toByteArray(), "UTF-8"));
-        }
-        final HashOutputStream dest = new HashOutputStream();
-        FileInputStream fis = new FileInputStream(tarFile);
-        IOUtils.copy(fis, dest);
-        fis.close();
-        
-        return new BagSummary(tarFile, dest.getMD5Hash(), manifestCopy, payloadSize);
+    /**
+     * Gets the tag files (other than bagit.txt, which is written first) that
+     * are at the root of the given bag directory, in a stable order.
+     */
+    static List<File> getTagFiles(File bagDir) {
+        final List<File> tagFiles = new ArrayList<File>();
+        for (File f : bagDir.listFiles()) {
+            if (f.isFile() && !f.getName().equals("bagit.txt")) {
+                tagFiles.add(f);
+            }
+        }
+        Collections.sort(tagFiles);
+        return tagFiles;
     }
 
     public List<File> getFilesWithinDir(File dir, List<File> result) {
@@ -174,7 +563,11 @@ public abstract class APTrustBag {
         return result;
     }
 
-    private String getAptrustBagName() {
+    /**
+     * Gets the name of the bag, which is also the name of its root directory and
+     * (with ".tar" appended) of the serialized tar file.
+     */
+    public String getAptrustBagName() {
         return getInstitutionalId() + "." + getItemId();
     }
 
@@ -184,10 +577,22 @@ public abstract class APTrustBag {
 
     protected abstract String getItemId();
 
+    /**
+     * Gets the payload files.
+     */
     protected abstract List<PendingPayloadFile> getPayloadFiles() throws Exception;
 
     /**
-     * Will be called once the payload file (returned by getPayloadFiles())
+     * Gets the payload, which is iterated over once each time the bag is
+     * serialized.  This is the list returned by getPayloadFiles(), except in
+     * a StreamingAPTrustBag, which supplies a very large payload lazily.
+     */
+    protected Iterable<PendingPayloadFile> getPayload() throws Exception {
+        return getPayloadFiles();
+    }
+
+    /**
+     * Will be called once the payload file (returned by getPayload())
      * has been used and will not be needed.  This allows temporary files
      * to be cleaned up by implementing classes.
      */
@@ -221,7 +626,7 @@ public abstract class APTrustBag {
         }
 
         public void write(int b) throws IOException {
-            digest.update(new byte[] { (byte) b });
+            digest.update((byte) b);
             if (pipe != null) {
                 pipe.write(b);
             }
@@ -241,6 +646,18 @@ public abstract class APTrustBag {
             }
         }
 
+        public void flush() throws IOException {
+            if (pipe != null) {
+                pipe.flush();
+            }
+        }
+
+        public void close() throws IOException {
+            if (pipe != null) {
+                pipe.close();
+            }
+        }
+
         public static byte[] getMD5Hash(String value) throws IOException {
             HashOutputStream os = new HashOutputStream(new ByteArrayOutputStream());
             os.write(value.getBytes("UTF-8"));
@@ -0,0 +1,273 @@
+package edu.virginia.lib.aptrust.bags;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Timings and volumes recorded while a bag is serialized or transferred,
+ * broken down by phase so that a slow bag can be traced to the step that was
+ * slow.  Each phase accumulates the time spent in it, the bytes it processed
+ * and the number of files it handled; phases performed by several threads at
+ * once (such as staging payload files in parallel) report the total time
+ * across threads, which may exceed the elapsed time of the whole operation.
+ * Multipart uploads also record the size and latency of each part.
+ * <p>
+ * Metrics are recorded from whichever threads perform the work, so every
+ * method is thread safe.
+ */
+public class BagMetrics {
+
+    /**
+     * The steps of serializing and transferring a bag.
+     */
+    public enum Phase {
+        /**
+         * Hard linking (or cloning) payload files into a bag directory.
+         */
+        LINK,
+        /**
+         * Reading payload files (that were linked or cloned rather than copied) solely to
+         * compute their checksums.
+         */
+        HASH,
+        /**
+         * Copying payload files into a bag directory, computing their checksums
+         * from the same read.
+         */
+        COPY,
+        /**
+         * Writing the payload manifests, bag-info.txt, aptrust-info.txt and the
+         * tag manifests.
+         */
+        TAG_FILES,
+        /**
+         * Writing payload and tag files into a tar, computing their checksums
+         * and the tar's MD5 from the same read.
+         */
+        TAR,
+        /**
+         * Sending a bag to S3.
+         */
+        TRANSFER
+    }
+
+    private final String bagName;
+
+    private final long startTime;
+
+    private long endTime;
+
+    private final Map<Phase, PhaseMetrics> phases = new EnumMap<Phase, PhaseMetrics>(Phase.class);
+
+    private final List<PartMetrics> parts = new ArrayList<PartMetrics>();
+
+    private final Map<StagingStrategy, Integer> stagingStrategies = new EnumMap<StagingStrategy, Integer>(StagingStrategy.class);
+
+    /**
+     * Starts recording metrics for an operation on the named bag.
+     */
+    public BagMetrics(final String bagName) {
+        this.bagName = bagName;
+        this.startTime = System.currentTimeMillis();
+    }
+
+    public String getBagName() {
+        return bagName;
+    }
+
+    /**
+     * Adds the given work to a phase.
+     * @param nanos the time spent, as measured by System.nanoTime()
+     * @param bytes the number of bytes processed
+     * @param files the number of files handled
+     */
+    public synchronized void record(Phase phase, long nanos, long bytes, int files) {
+        final PhaseMetrics m = phases.get(phase);
+        phases.put(phase, m == null ? new PhaseMetrics(phase, nanos, bytes, files) : m.add(nanos, bytes, files));
+    }
+
+    /**
+     * Records the upload of one part of a multipart upload.
+     * @param nanos the time from the first attempt to upload the part until it
+     *              succeeded, as measured by System.nanoTime()
+     * @return the recorded part
+     */
+    public synchronized PartMetrics recordPart(int partNumber, long bytes, long nanos) {
+        final PartMetrics part = new PartMetrics(partNumber, bytes, nanos);
+        parts.add(part);
+        return part;
+    }
+
+    /**
+     * Records that a payload file was staged using the given strategy.
+     */
+    public synchronized void recordStaging(StagingStrategy strategy) {
+        final Integer count = stagingStrategies.get(strategy);
+        stagingStrategies.put(strategy, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Gets the number of payload files staged with each strategy, which is
+     * empty if the payload wasn't staged into a bag directory.
+     */
+    public synchronized Map<StagingStrategy, Integer> getStagingStrategies() {
+        return new EnumMap<StagingStrategy, Integer>(stagingStrategies);
+    }
+
+    /**
+     * Marks the operation as finished.
+     */
+    public synchronized void finish() {
+        endTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Gets the time from the start of the operation until it finished (or until
+     * now if it hasn't).
+     */
+    public synchronized long getElapsedMillis() {
+        return (endTime == 0 ? System.currentTimeMillis() : endTime) - startTime;
+    }
+
+    /**
+     * Gets the metrics of the given phase, or null if no work was recorded for it.
+     */
+    public synchronized PhaseMetrics getPhase(Phase phase) {
+        return phases.get(phase);
+    }
+
+    /**
+     * Gets the metrics of every phase for which work was recorded, in the
+     * order the phases are declared.
+     */
+    public synchronized List<PhaseMetrics> getPhases() {
+        return new ArrayList<PhaseMetrics>(phases.values());
+    }
+
+    /**
+     * Gets the metrics of each uploaded part, in part number order.
+     */
+    public synchronized List<PartMetrics> getParts() {
+        final List<PartMetrics> result = new ArrayList<PartMetrics>(parts);
+        Collections.sort(result, new Comparator<PartMetrics>() {
+            @Override
+            public int compare(PartMetrics a, PartMetrics b) {
+                return Integer.compare(a.getPartNumber(), b.getPartNumber());
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder sb = new StringBuilder(bagName).append(": ").append(getElapsedMillis()).append("ms");
+        for (PhaseMetrics m : phases.values()) {
+            sb.append(", ").append(m);
+        }
+        if (!parts.isEmpty()) {
+            sb.append(", ").append(parts.size()).append(" parts");
+        }
+        return sb.toString();
+    }
+
+    private static double megabytesPerSecond(long bytes, long nanos) {
+        return nanos == 0 ? 0 : (bytes / (1024.0 * 1024.0)) / (nanos / 1000000000.0);
+    }
+
+    /**
+     * The accumulated work of one phase.
+     */
+    public static final class PhaseMetrics {
+
+        private final Phase phase;
+
+        private final long nanos;
+
+        private final long bytes;
+
+        private final int files;
+
+        private PhaseMetrics(Phase phase, long nanos, long bytes, int files) {
+            this.phase = phase;
+            this.nanos = nanos;
+            this.bytes = bytes;
+            this.files = files;
+        }
+
+        private PhaseMetrics add(long nanos, long bytes, int files) {
+            return new PhaseMetrics(phase, this.nanos + nanos, this.bytes + bytes, this.files + files);
+        }
+
+        public Phase getPhase() {
+            return phase;
+        }
+
+        public long getDurationNanos() {
+            return nanos;
+        }
+
+        public long getDurationMillis() {
+            return nanos / 1000000;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public int getFiles() {
+            return files;
+        }
+
+        /**
+         * Gets the throughput of the phase in MiB per second of time spent in it.
+         */
+        public double getMegabytesPerSecond() {
+            return megabytesPerSecond(bytes, nanos);
+        }
+
+        @Override
+        public String toString() {
+            return phase + " " + getDurationMillis() + "ms " + bytes + " bytes " + files + " files "
+                    + String.format("%.1f", getMegabytesPerSecond()) + " MB/s";
+        }
+    }
+
+    /**
+     * The upload of one part of a multipart upload.
+     */
+    public static final class PartMetrics {
+
+        private final int partNumber;
+
+        private final long bytes;
+
+        private final long nanos;
+
+        private PartMetrics(int partNumber, long bytes, long nanos) {
+            this.partNumber = partNumber;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        public int getPartNumber() {
+            return partNumber;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getLatencyMillis() {
+            return nanos / 1000000;
+        }
+
+        public double getMegabytesPerSecond() {
+            return megabytesPerSecond(bytes, nanos);
+        }
+    }
+
+}
@@ -0,0 +1,539 @@
+package edu.virginia.lib.aptrust.bags;
+
+import edu.virginia.lib.aptrust.bags.util.StreamUtils;
+import gov.loc.repository.bagit.exceptions.UnsupportedAlgorithmException;
+import gov.loc.repository.bagit.hash.StandardBagitAlgorithmNameToSupportedAlgorithmMapping;
+import gov.loc.repository.bagit.hash.StandardSupportedAlgorithms;
+import gov.loc.repository.bagit.hash.SupportedAlgorithm;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Restores serialized (tar) bags, such as those retrieved from APTrust, into
+ * bag directories, verifying each payload file against the payload manifests
+ * as it is extracted.  The tar is read once by a single thread, which hands
+ * the content of each entry to a bounded pool of threads that write and hash
+ * the files, so that many files are written (and hashed) at once.  The content
+ * passes through a fixed number of buffers, which bounds the memory used no
+ * matter how large the files are or how far the writers fall behind.
+ * <p>
+ * When a tar file is restored, its manifests (which this library writes after
+ * the payload) are read first by skipping from header to header, so each
+ * payload file is checked, and a mismatch logged, as soon as it has been
+ * written.  When a tar is restored from a stream, the payload files are hashed
+ * with the restorer's algorithms and checked once the manifests have been
+ * extracted.
+ * <pre>
+ *   RestoreSummary summary = new BagRestorer().threads(8).restore(tarFile, restoreDir);
+ * </pre>
+ */
+public class BagRestorer {
+
+    final private static Logger LOGGER = LoggerFactory.getLogger(BagRestorer.class);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String DATA = "data/";
+
+    private static final StandardBagitAlgorithmNameToSupportedAlgorithmMapping ALGORITHM_NAMES =
+            new StandardBagitAlgorithmNameToSupportedAlgorithmMapping();
+
+    private Set<SupportedAlgorithm> algorithms = Collections.<SupportedAlgorithm>singleton(StandardSupportedAlgorithms.SHA256);
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private int buffers = 0;
+
+    private int bufferSize = StreamUtils.BUFFER_SIZE;
+
+    /**
+     * Sets the algorithms with which payload files are hashed when a tar is
+     * restored from a stream, before its manifests have been read.  A manifest
+     * of any other algorithm can't be checked and is reported as an error.  The
+     * default is SHA-256 alone, the algorithm of the manifests this library
+     * writes.  When a tar file is restored, the algorithms of its manifests
+     * are used instead.
+     */
+    public BagRestorer algorithms(SupportedAlgorithm ... algorithms) {
+        if (algorithms.length == 0) {
+            throw new IllegalArgumentException("At least one algorithm must be specified!");
+        }
+        this.algorithms = Collections.unmodifiableSet(new LinkedHashSet<SupportedAlgorithm>(Arrays.asList(algorithms)));
+        return this;
+    }
+
+    public Set<SupportedAlgorithm> getAlgorithms() {
+        return algorithms;
+    }
+
+    /**
+     * Sets the number of threads that write and hash files at once.  The
+     * default is the number of available processors.
+     */
+    public BagRestorer threads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is required!");
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the number and size of the buffers through which content passes
+     * from the tar to the writing threads, which bounds the memory used by a
+     * restore.  The default is four buffers of one megabyte per thread.
+     */
+    public BagRestorer buffers(int count, int size) {
+        if (count < 1 || size < 1) {
+            throw new IllegalArgumentException("At least one non-empty buffer is required!");
+        }
+        this.buffers = count;
+        this.bufferSize = size;
+        return this;
+    }
+
+    public int getBufferCount() {
+        return buffers > 0 ? buffers : threads * 4;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Restores a tar file, whose name (less ".tar") must be the name of the
+     * bag within it, into a directory of that name within destinationDir.
+     */
+    public RestoreSummary restore(final File tarFile, final File destinationDir) throws IOException, InterruptedException {
+        final String bagName = tarFile.getName().endsWith(".tar")
+                ? tarFile.getName().substring(0, tarFile.getName().length() - 4) : tarFile.getName();
+        final Restoration r = new Restoration(bagName, destinationDir);
+        InputStream in = new FileInputStream(tarFile);
+        try {
+            r.readManifests(in);
+        } finally {
+            in.close();
+        }
+        in = new FileInputStream(tarFile);
+        try {
+            r.extract(in);
+        } finally {
+            in.close();
+        }
+        return r.finish();
+    }
+
+    /**
+     * Restores a tar read from a stream, which is not closed, into a directory
+     * named for the bag within destinationDir.
+     * @param bagName the expected name of the bag within the tar
+     */
+    public RestoreSummary restore(final InputStream tar, final String bagName, final File destinationDir)
+            throws IOException, InterruptedException {
+        final Restoration r = new Restoration(bagName, destinationDir);
+        r.extract(tar);
+        return r.finish();
+    }
+
+    private static List<MessageDigest> createDigests(Iterable<SupportedAlgorithm> algorithms) {
+        final List<MessageDigest> digests = new ArrayList<MessageDigest>();
+        for (SupportedAlgorithm a : algorithms) {
+            try {
+                digests.add(MessageDigest.getInstance(a.getMessageDigestName()));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return digests;
+    }
+
+    /**
+     * The state of the restoration of one tar.  The methods called by the
+     * writing threads are synchronized.
+     */
+    private class Restoration {
+
+        private final String bagName;
+
+        private final File bagDir;
+
+        private final long start = System.nanoTime();
+
+        private final List<String> errors = new ArrayList<String>();
+
+        private final List<String> mismatches = new ArrayList<String>();
+
+        /**
+         * The payload manifests; entries are removed as they are checked, so
+         * that those left at the end are missing from the tar.
+         */
+        private final Map<SupportedAlgorithm, Map<String, String>> manifests =
+                new LinkedHashMap<SupportedAlgorithm, Map<String, String>>();
+
+        /**
+         * The algorithms with which payload files are hashed.
+         */
+        private List<SupportedAlgorithm> order = new ArrayList<SupportedAlgorithm>(algorithms);
+
+        /**
+         * The digests of the payload files restored before the manifests were
+         * read, by path, in the order of the algorithms.
+         */
+        private final Map<String, byte[][]> pending = new LinkedHashMap<String, byte[][]>();
+
+        private int payloadFileCount;
+
+        private long payloadSize;
+
+        private Restoration(String bagName, File destinationDir) {
+            this.bagName = bagName;
+            this.bagDir = new File(destinationDir, bagName);
+        }
+
+        /**
+         * Reads the payload manifests from the tar, skipping the content of
+         * every other entry.
+         */
+        private void readManifests(InputStream in) throws IOException {
+            final TarArchiveInputStream tar = new TarArchiveInputStream(in, "UTF-8");
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextTarEntry()) != null) {
+                // errors in the entry names are recorded when the tar is extracted
+                final String path = entry.getName().startsWith(bagName + "/") ? entry.getName().substring(bagName.length() + 1) : "";
+                if (!entry.isDirectory() && path.startsWith("manifest-") && path.endsWith(".txt") && path.indexOf('/') == -1) {
+                    final SupportedAlgorithm a = getAlgorithm(path);
+                    if (a != null) {
+                        manifests.put(a, parseManifest(path, tar));
+                    }
+                }
+            }
+            if (!manifests.isEmpty()) {
+                order = new ArrayList<SupportedAlgorithm>(manifests.keySet());
+            }
+        }
+
+        /**
+         * Reads the tar, handing each file entry to the writing threads.
+         */
+        private void extract(InputStream in) throws IOException, InterruptedException {
+            final BlockingQueue<byte[]> free = new ArrayBlockingQueue<byte[]>(getBufferCount());
+            for (int i = 0; i < getBufferCount(); i ++) {
+                free.add(new byte[bufferSize]);
+            }
+            final ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                final TarArchiveInputStream tar =
+                        new TarArchiveInputStream(new BufferedInputStream(in, StreamUtils.BUFFER_SIZE), "UTF-8");
+                TarArchiveEntry entry;
+                while ((entry = tar.getNextTarEntry()) != null) {
+                    final String path = getPathWithinBag(entry.getName());
+                    if (path == null) {
+                        continue;
+                    }
+                    final File target = new File(bagDir, path);
+                    if (entry.isDirectory()) {
+                        target.mkdirs();
+                        continue;
+                    }
+                    // the writer is queued before its content is read, so the content of
+                    // every earlier file has been handed off by the time any buffer is awaited
+                    final EntryWriter writer = new EntryWriter(path, target, entry.getModTime().getTime(), free);
+                    executor.execute(writer);
+                    int read;
+                    do {
+                        final byte[] buffer = free.take();
+                        read = IOUtils.read(tar, buffer);
+                        if (read > 0) {
+                            writer.chunks.put(new Chunk(buffer, read));
+                        } else {
+                            free.put(buffer);
+                        }
+                    } while (read == bufferSize);
+                    writer.chunks.put(Chunk.END);
+                }
+                executor.shutdown();
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        /**
+         * Records a file that has been written and hashed, checking it against
+         * the manifests if they've been read.
+         * @param digests the digests in the order of the algorithms, or null
+         *                if the file isn't part of the payload
+         */
+        private synchronized void restored(String path, long size, List<MessageDigest> digests, IOException failure) {
+            if (failure != null) {
+                LOGGER.error("Unable to restore " + path + " in " + bagName + "!", failure);
+                errors.add("Unable to restore " + path + ": " + failure.getMessage());
+            }
+            if (digests == null) {
+                return;
+            }
+            payloadFileCount ++;
+            payloadSize += size;
+            final byte[][] values = new byte[digests.size()][];
+            for (int i = 0; i < digests.size(); i ++) {
+                values[i] = digests.get(i).digest();
+            }
+            if (manifests.isEmpty()) {
+                pending.put(path, values);
+            } else {
+                check(path, values);
+            }
+        }
+
+        private RestoreSummary finish() throws IOException {
+            if (manifests.isEmpty()) {
+                // the tar was streamed, so the manifests are read from the restored bag
+                final File[] files = bagDir.listFiles();
+                for (File f : files == null ? new File[0] : files) {
+                    if (f.isFile() && f.getName().startsWith("manifest-") && f.getName().endsWith(".txt")) {
+                        final SupportedAlgorithm a = getAlgorithm(f.getName());
+                        if (a == null) {
+                            continue;
+                        }
+                        final InputStream in = new FileInputStream(f);
+                        try {
+                            manifests.put(a, parseManifest(f.getName(), in));
+                        } finally {
+                            in.close();
+                        }
+                    }
+                }
+                for (SupportedAlgorithm a : manifests.keySet()) {
+                    if (!order.contains(a)) {
+                        errors.add("Unable to verify manifest-" + a.getBagitName() + ".txt without reading the tar again!");
+                    }
+                }
+                for (Map.Entry<String, byte[][]> p : pending.entrySet()) {
+                    check(p.getKey(), p.getValue());
+                }
+            }
+            if (manifests.isEmpty()) {
+                errors.add("No payload manifest was found!");
+            }
+            for (Map.Entry<SupportedAlgorithm, Map<String, String>> m : manifests.entrySet()) {
+                if (order.contains(m.getKey())) {
+                    for (String path : m.getValue().keySet()) {
+                        errors.add(path + " is listed in manifest-" + m.getKey().getBagitName() + ".txt but is not in the tar!");
+                    }
+                }
+            }
+            return new RestoreSummary(bagDir, errors, mismatches, payloadFileCount, payloadSize, System.nanoTime() - start);
+        }
+
+        private void check(String path, byte[][] values) {
+            for (int i = 0; i < order.size(); i ++) {
+                final SupportedAlgorithm a = order.get(i);
+                final Map<String, String> manifest = manifests.get(a);
+                if (manifest == null) {
+                    continue;
+                }
+                final String expected = manifest.remove(path);
+                if (expected == null) {
+                    errors.add(path + " is not listed in manifest-" + a.getBagitName() + ".txt!");
+                } else if (!expected.equals(String.valueOf(Hex.encodeHex(values[i])))) {
+                    LOGGER.error(a.getBagitName() + " checksum mismatch for " + path + " in " + bagName + "!");
+                    errors.add(a.getBagitName() + " checksum mismatch for " + path + "!");
+                    if (!mismatches.contains(path)) {
+                        mismatches.add(path);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Gets the path of an entry relative to the bag directory, recording an
+         * error if it isn't safely within the bag directory.
+         * @return the path, or null if the entry is the bag directory or is
+         *         outside of it
+         */
+        private String getPathWithinBag(String name) {
+            if (!name.startsWith(bagName + "/")) {
+                if (!name.equals(bagName)) {
+                    addError(name + " is outside of the bag directory!");
+                }
+                return null;
+            }
+            String path = name.substring(bagName.length() + 1);
+            if (path.endsWith("/")) {
+                path = path.substring(0, path.length() - 1);
+            }
+            if (path.isEmpty()) {
+                return null;
+            }
+            for (String segment : path.split("/")) {
+                if (segment.isEmpty() || segment.equals(".") || segment.equals("..")) {
+                    addError(name + " is not a valid path within the bag directory!");
+                    return null;
+                }
+            }
+            return path;
+        }
+
+        private synchronized void addError(String error) {
+            errors.add(error);
+        }
+
+        private SupportedAlgorithm getAlgorithm(String path) {
+            final String name = path.substring("manifest-".length(), path.length() - ".txt".length());
+            try {
+                return ALGORITHM_NAMES.getSupportedAlgorithm(name);
+            } catch (UnsupportedAlgorithmException e) {
+                addError(path + " uses an unsupported algorithm!");
+                return null;
+            }
+        }
+
+        /**
+         * Reads the lines of a manifest ("[checksum]  [path]") into a map from
+         * path to checksum, leaving the stream at its end.
+         */
+        private Map<String, String> parseManifest(String path, InputStream in) throws IOException {
+            final Map<String, String> entries = new HashMap<String, String>();
+            final BufferedReader r = new BufferedReader(new InputStreamReader(in, UTF_8));
+            String line;
+            while ((line = r.readLine()) != null) {
+                final String[] parts = line.split("\\s+", 2);
+                if (parts.length != 2 || parts[1].trim().isEmpty()) {
+                    addError("Invalid line in " + path + ": " + line);
+                } else {
+                    entries.put(parts[1].trim(), parts[0].toLowerCase());
+                }
+            }
+            return entries;
+        }
+
+        /**
+         * Writes (and, for payload files, hashes) the content of one entry as
+         * it is handed over by the reading thread, returning each buffer once
+         * it's been used.  Buffers are still consumed after a failure to write,
+         * so that the reading thread is never left waiting.
+         */
+        private class EntryWriter implements Runnable {
+
+            private final String path;
+
+            private final File target;
+
+            private final long modTime;
+
+            private final BlockingQueue<byte[]> free;
+
+            private final BlockingQueue<Chunk> chunks = new LinkedBlockingQueue<Chunk>();
+
+            private EntryWriter(String path, File target, long modTime, BlockingQueue<byte[]> free) {
+                this.path = path;
+                this.target = target;
+                this.modTime = modTime;
+                this.free = free;
+            }
+
+            @Override
+            public void run() {
+                final List<MessageDigest> digests = path.startsWith(DATA) ? createDigests(order) : null;
+                IOException failure = null;
+                OutputStream out = null;
+                long size = 0;
+                try {
+                    target.getParentFile().mkdirs();
+                    out = new FileOutputStream(target);
+                } catch (IOException e) {
+                    failure = e;
+                }
+                try {
+                    Chunk c;
+                    while ((c = chunks.take()) != Chunk.END) {
+                        if (failure == null) {
+                            try {
+                                out.write(c.buffer, 0, c.length);
+                            } catch (IOException e) {
+                                failure = e;
+                            }
+                        }
+                        if (digests != null) {
+                            for (MessageDigest d : digests) {
+                                d.update(c.buffer, 0, c.length);
+                            }
+                        }
+                        size += c.length;
+                        free.put(c.buffer);
+                    }
+                } catch (InterruptedException e) {
+                    // the restore was abandoned
+                    Thread.currentThread().interrupt();
+                    IOUtils.closeQuietly(out);
+                    return;
+                }
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        if (failure == null) {
+                            failure = e;
+                        }
+                    }
+                }
+                target.setLastModified(modTime);
+                restored(path, size, digests, failure);
+            }
+        }
+    }
+
+    /**
+     * A filled portion of one of the buffers.
+     */
+    private static class Chunk {
+
+        private static final Chunk END = new Chunk(null, -1);
+
+        private final byte[] buffer;
+
+        private final int length;
+
+        private Chunk(byte[] buffer, int length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
+    }
+
+}
@@ -0,0 +1,316 @@
+package edu.virginia.lib.aptrust.bags;
+
+import gov.loc.repository.bagit.hash.StandardSupportedAlgorithms;
+import gov.loc.repository.bagit.hash.SupportedAlgorithm;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Divides the payload of one logical item among as few bags as possible such
+ * that no serialized (tar) bag exceeds a maximum size.  The bags form a group:
+ * each is named "[item id].b[k].of[N]" and has a Bag-Count of "k of N" and a
+ * shared Bag-Group-Identifier.
+ * <p>
+ * The size of each tar is estimated conservatively from the sizes of the
+ * payload files, accounting for tar headers (including the extended headers
+ * needed for long paths and very large files), padding to 512 byte blocks,
+ * directory entries, the payload manifest lines and a fixed allowance for the
+ * remaining tag files and the end of the archive.  Files are packed largest
+ * first into the first bag with room for them; within each bag they keep the
+ * order in which they were supplied.
+ * <pre>
+ *   List&lt;FileBag&gt; bags = new BagSplitter("virginia.edu", "item", bagInfo, aptrustInfo, 200L * 1024 * 1024 * 1024)
+ *           .split(payload);
+ * </pre>
+ * The resulting bags may be serialized concurrently with serialize() or
+ * serialized and transferred with a BagPipeline.
+ */
+public class BagSplitter {
+
+    private static final long BLOCK_SIZE = 512;
+
+    /**
+     * The largest size that fits in a tar header without an extended header.
+     */
+    private static final long MAX_OCTAL_SIZE = 077777777777L;
+
+    /**
+     * The longest name that fits in a tar header without an extended header.
+     */
+    private static final int MAX_NAME_LENGTH = 100;
+
+    /**
+     * An allowance for bagit.txt, bag-info.txt, aptrust-info.txt, the tag
+     * manifests and the end of archive marker padded to a full tar record.
+     */
+    private static final long TAG_FILE_ALLOWANCE = 32 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final String institutionId;
+
+    private final String itemId;
+
+    private final BagInfo bagInfo;
+
+    private final APTrustInfo aptrustInfo;
+
+    private final long maxBagSize;
+
+    private Set<SupportedAlgorithm> algorithms = Collections.<SupportedAlgorithm>singleton(StandardSupportedAlgorithms.SHA256);
+
+    /**
+     * @param institutionId the institution id for every bag
+     * @param itemId the id of the item, from which each bag's id is derived and
+     *               which is the group identifier unless bagInfo has one
+     * @param bagInfo the bag info whose source organization, group identifier
+     *                and internal sender fields are copied to each bag
+     * @param aptrustInfo the APTrust info for every bag
+     * @param maxBagSize the maximum size of each serialized tar file
+     */
+    public BagSplitter(final String institutionId, final String itemId, final BagInfo bagInfo,
+                       final APTrustInfo aptrustInfo, final long maxBagSize) {
+        if (maxBagSize <= TAG_FILE_ALLOWANCE) {
+            throw new IllegalArgumentException("The maximum bag size must exceed " + TAG_FILE_ALLOWANCE + " bytes!");
+        }
+        this.institutionId = institutionId;
+        this.itemId = itemId;
+        this.bagInfo = bagInfo;
+        this.aptrustInfo = aptrustInfo;
+        this.maxBagSize = maxBagSize;
+    }
+
+    /**
+     * Sets the algorithms for which manifests are written in each bag.  The
+     * default is SHA-256 alone.
+     */
+    public BagSplitter algorithms(SupportedAlgorithm ... algorithms) {
+        if (algorithms.length == 0) {
+            throw new IllegalArgumentException("At least one algorithm must be specified!");
+        }
+        this.algorithms = Collections.unmodifiableSet(new LinkedHashSet<SupportedAlgorithm>(Arrays.asList(algorithms)));
+        return this;
+    }
+
+    public Set<SupportedAlgorithm> getAlgorithms() {
+        return algorithms;
+    }
+
+    /**
+     * Divides the payload among bags.
+     * @throws IllegalArgumentException if a single payload file can't fit in a bag
+     */
+    public List<FileBag> split(final List<PendingPayloadFile> payload) throws NoSuchAlgorithmException {
+        // the bag names (and so every tar entry name) grow if there are 1000 or more bags
+        int digits = 3;
+        List<List<PendingPayloadFile>> groups = pack(payload, digits);
+        while (groups.size() >= Math.pow(10, digits)) {
+            groups = pack(payload, ++ digits);
+        }
+        final List<FileBag> bags = new ArrayList<FileBag>();
+        final String format = "%s.b%0" + digits + "d.of%0" + digits + "d";
+        for (int i = 0; i < groups.size(); i ++) {
+            final BagInfo info = new BagInfo()
+                    .sourceOrganization(bagInfo.getSourceOrganization())
+                    .bagGroupIdentifier(bagInfo.getBagGroupIdentifier() != null ? bagInfo.getBagGroupIdentifier() : itemId)
+                    .internalSenderDescription(bagInfo.getInternalSenderDescription())
+                    .internalSenderIdentifier(bagInfo.getInternalSenderIdentifier())
+                    .bagNumber(i + 1)
+                    .bagCount(groups.size());
+            final FileBag bag = new FileBag(institutionId, info, aptrustInfo, String.format(format, itemId, i + 1, groups.size()),
+                    groups.get(i).toArray(new PendingPayloadFile[0]));
+            bag.algorithms(algorithms.toArray(new SupportedAlgorithm[0]));
+            bags.add(bag);
+        }
+        return bags;
+    }
+
+    /**
+     * Divides the payload among bags and serializes them concurrently.
+     * @param threads the number of bags to serialize at once
+     * @return the summaries of the bags, in bag number order
+     */
+    public List<BagSummary> serialize(final List<PendingPayloadFile> payload, final File destinationDir,
+                                      final boolean tar, final int threads) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<BagSummary>> futures = new ArrayList<Future<BagSummary>>();
+            for (final FileBag bag : split(payload)) {
+                futures.add(executor.submit(new Callable<BagSummary>() {
+                    @Override
+                    public BagSummary call() throws Exception {
+                        return bag.serializeAPTrustBag(destinationDir, tar);
+                    }
+                }));
+            }
+            final List<BagSummary> summaries = new ArrayList<BagSummary>();
+            for (Future<BagSummary> f : futures) {
+                try {
+                    summaries.add(f.get());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+            return summaries;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Packs the payload files into groups, each of which fits in a bag.
+     * @param digits the number of digits in the bag numbers within bag names
+     */
+    private List<List<PendingPayloadFile>> pack(final List<PendingPayloadFile> payload, final int digits)
+            throws NoSuchAlgorithmException {
+        final int itemIdLength = itemId.length() + ".b.of".length() + digits * 2;
+        final String bagNamePlaceholder = institutionId + "." + new String(new char[itemIdLength]).replace('\0', 'x');
+        int manifestLineLength = 0;
+        for (SupportedAlgorithm a : algorithms) {
+            // "[checksum]  data/[path]\n", less the path
+            manifestLineLength += MessageDigest.getInstance(a.getMessageDigestName()).getDigestLength() * 2 + 2 + "data/".length() + 1;
+        }
+
+        final List<Integer> order = new ArrayList<Integer>();
+        final long[] costs = new long[payload.size()];
+        for (int i = 0; i < payload.size(); i ++) {
+            final String path = "data/" + payload.get(i).getPathWithinPayload();
+            final long length = payload.get(i).getSource().getLength();
+            if (length < 0) {
+                throw new IllegalArgumentException("The length of " + path + " must be known to split a payload!");
+            }
+            costs[i] = entrySize(bagNamePlaceholder + "/" + path, length)
+                    + (manifestLineLength + path.getBytes(UTF_8).length - "data/".length()) * algorithms.size();
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(costs[b], costs[a]);
+            }
+        });
+
+        final List<Bin> bins = new ArrayList<Bin>();
+        for (Integer i : order) {
+            Bin fit = null;
+            for (Bin bin : bins) {
+                if (bin.size + bin.cost(bagNamePlaceholder, payload.get(i), costs[i]) <= maxBagSize) {
+                    fit = bin;
+                    break;
+                }
+            }
+            if (fit == null) {
+                fit = new Bin(bagNamePlaceholder);
+                if (fit.size + fit.cost(bagNamePlaceholder, payload.get(i), costs[i]) > maxBagSize) {
+                    throw new IllegalArgumentException(payload.get(i).getPathWithinPayload() + " is too large to fit in a bag of "
+                            + maxBagSize + " bytes!");
+                }
+                bins.add(fit);
+            }
+            fit.add(bagNamePlaceholder, payload.get(i), costs[i], i);
+        }
+
+        final List<List<PendingPayloadFile>> groups = new ArrayList<List<PendingPayloadFile>>();
+        for (Bin bin : bins) {
+            Collections.sort(bin.indices);
+            final List<PendingPayloadFile> group = new ArrayList<PendingPayloadFile>();
+            for (Integer i : bin.indices) {
+                group.add(payload.get(i));
+            }
+            groups.add(group);
+        }
+        return groups;
+    }
+
+    /**
+     * Gets the number of bytes a tar entry occupies: its header, any extended
+     * header and its content padded to a whole number of blocks.
+     */
+    static long entrySize(final String name, final long size) {
+        final int nameLength = name.getBytes(UTF_8).length;
+        long entrySize = BLOCK_SIZE + pad(size);
+        if (nameLength > MAX_NAME_LENGTH || size > MAX_OCTAL_SIZE) {
+            // an extended header entry whose content holds the path and size records
+            entrySize += BLOCK_SIZE + pad(nameLength + 64);
+        }
+        return entrySize;
+    }
+
+    private static long pad(long size) {
+        return (size + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+    }
+
+    /**
+     * The files destined for one bag, along with its estimated size.
+     */
+    private class Bin {
+
+        private long size;
+
+        private final Set<String> directories = new HashSet<String>();
+
+        private final List<Integer> indices = new ArrayList<Integer>();
+
+        private Bin(String bagName) {
+            size = TAG_FILE_ALLOWANCE + entrySize(bagName + "/", 0);
+            for (String tagFile : new String[] { "bagit.txt", "bag-info.txt", "aptrust-info.txt" }) {
+                size += entrySize(bagName + "/" + tagFile, 0);
+            }
+            // each payload manifest's header and the padding of its last block
+            for (SupportedAlgorithm a : algorithms) {
+                size += entrySize(bagName + "/manifest-" + a.getBagitName() + ".txt", 0) + BLOCK_SIZE;
+            }
+        }
+
+        /**
+         * Gets the size the bag would grow by if the file were added, including
+         * any directory entries it would require.
+         */
+        private long cost(String bagName, PendingPayloadFile f, long fileCost) {
+            long cost = fileCost;
+            for (String dir : getDirectories(f)) {
+                if (!directories.contains(dir)) {
+                    cost += entrySize(bagName + "/" + dir + "/", 0);
+                }
+            }
+            return cost;
+        }
+
+        private void add(String bagName, PendingPayloadFile f, long fileCost, int index) {
+            size += cost(bagName, f, fileCost);
+            directories.addAll(getDirectories(f));
+            indices.add(index);
+        }
+
+        private List<String> getDirectories(PendingPayloadFile f) {
+            final List<String> dirs = new ArrayList<String>();
+            String path = "data/" + f.getPathWithinPayload();
+            int lastSlash;
+            while ((lastSlash = path.lastIndexOf('/')) > 0) {
+                path = path.substring(0, lastSlash);
+                dirs.add(path);
+            }
+            return dirs;
+        }
+    }
+
+}
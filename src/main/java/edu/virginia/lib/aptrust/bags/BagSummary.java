@@ -5,6 +5,8 @@ import org.apache.commons.codec.binary.Hex;
 
 import java.io.File;
 import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.Map;
 
 public class BagSummary {
 
@@ -12,17 +14,62 @@ public class BagSummary {
 
     private byte[] checksum;
     
-    private String manifestCopy;
+    private PayloadManifest manifestCopy;
+
+    private String manifestText;
     
     private long payloadSize;
 
+    private BagMetrics metrics;
+
+    private File indexFile;
+
+    /**
+     * Creates a summary with a copy of the payload manifest's text, which is
+     * held compactly when it is a well-formed manifest that the compact copy
+     * reproduces exactly, and otherwise held as it is (in which case
+     * getManifest() returns null if the text couldn't be parsed at all).
+     */
     public BagSummary(File file, byte[] checksum, String manifestCopy, long payloadSize) {
+        this(file, checksum, parseManifest(manifestCopy), payloadSize);
+        if (manifestCopy != null && (this.manifestCopy == null || !this.manifestCopy.toText().equals(manifestCopy))) {
+            this.manifestText = manifestCopy;
+        }
+    }
+
+    private static PayloadManifest parseManifest(String text) {
+        if (text == null) {
+            return null;
+        }
+        try {
+            return PayloadManifest.parse(text, null);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public BagSummary(File file, byte[] checksum, PayloadManifest manifestCopy, long payloadSize) {
+        this(file, checksum, manifestCopy, payloadSize, null);
+    }
+
+    public BagSummary(File file, byte[] checksum, PayloadManifest manifestCopy, long payloadSize, BagMetrics metrics) {
+        this(file, checksum, manifestCopy, payloadSize, metrics, null);
+    }
+
+    public BagSummary(File file, byte[] checksum, PayloadManifest manifestCopy, long payloadSize, BagMetrics metrics,
+                      File indexFile) {
         this.file = file;
         this.checksum = checksum;
         this.manifestCopy = manifestCopy;
         this.payloadSize = payloadSize;
+        this.metrics = metrics;
+        this.indexFile = indexFile;
     }
 
+    /**
+     * Gets the tar file or bag directory that was written, or null if the bag
+     * was streamed as a tar rather than written to a file.
+     */
     public File getFile() {
         return this.file;
     }
@@ -31,14 +78,63 @@ public class BagSummary {
         return this.checksum;
     }
     
+    /**
+     * Gets the text of the payload manifest, which is built from the compact
+     * copy each time this is called (unless the text it was created with
+     * couldn't be held compactly).
+     */
     public String getManifestCopy() {
-    	return this.manifestCopy;
+        if (this.manifestText != null) {
+            return this.manifestText;
+        }
+    	return this.manifestCopy == null ? null : this.manifestCopy.toText();
+    }
+
+    /**
+     * Gets the compact copy of the payload manifest, whose entries may be
+     * iterated over without building its text, or null if there is no copy
+     * or the text it was created with couldn't be parsed.
+     */
+    public PayloadManifest getManifest() {
+        return this.manifestCopy;
     }
     
     public long getBagPayloadSize() {
     	return this.payloadSize;
     }
 
+    /**
+     * Gets the timings and volumes of each phase of the serialization, or null
+     * if none were recorded.
+     */
+    public BagMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Gets the index file written alongside the tar, or null if none was written.
+     */
+    public File getIndexFile() {
+        return this.indexFile;
+    }
+
+    /**
+     * Gets the TarIndex for the tar file, or null if either the index or the
+     * tar wasn't written to a file.
+     */
+    public TarIndex getTarIndex() {
+        return this.indexFile == null || this.file == null ? null : new TarIndex(this.file, this.indexFile);
+    }
+
+    /**
+     * Gets the number of payload files staged into the bag directory with each
+     * strategy (hard link, clone or copy), which is empty if the payload wasn't
+     * staged (as when it is streamed into a tar).
+     */
+    public Map<StagingStrategy, Integer> getStagingStrategies() {
+        return this.metrics == null ? Collections.<StagingStrategy, Integer>emptyMap() : this.metrics.getStagingStrategies();
+    }
+
     public String getBase64Checksum() {
         if (checksum == null) {
             return null;
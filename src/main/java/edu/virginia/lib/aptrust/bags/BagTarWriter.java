@@ -0,0 +1,337 @@
+package edu.virginia.lib.aptrust.bags;
+
+import edu.virginia.lib.aptrust.bags.util.StreamUtils;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.output.CountingOutputStream;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Writes the files that make up a bag directly into a tar stream.  Every entry
+ * is placed within a directory named for the bag (the layout produced by running
+ * "tar -cf bagname.tar bagname" from the bag's parent directory) and the MD5 of
+ * the tar is computed as it is written, so that the resulting file never needs
+ * to be read back.  Optionally, a TarIndex of the offset, length and SHA-256
+ * checksum of each file entry is written alongside the tar, in which case the
+ * MD5 is computed with a ResumableMd5 (which is slower than MessageDigest) so
+ * that its state where the tag files begin may be recorded in the index.
+ */
+public class BagTarWriter implements Closeable {
+
+    private final String bagName;
+
+    private final Md5OutputStream hashStream;
+
+    private final CountingOutputStream counter;
+
+    private final long offset;
+
+    private final TarArchiveOutputStream tar;
+
+    private final Set<String> directories = new HashSet<String>();
+
+    private final byte[] buffer = new byte[StreamUtils.BUFFER_SIZE];
+
+    private byte[] md5;
+
+    private ProgressTracker progress;
+
+    private Writer index;
+
+    private MessageDigest indexDigest;
+
+    /**
+     * @param out the stream to which the tar will be written; it will be closed
+     *            when this writer is finished
+     * @param bagName the name of the bag, used as the name of the root directory
+     *                within the tar
+     */
+    public BagTarWriter(final OutputStream out, final String bagName) throws IOException {
+        this(out, bagName, 0, Collections.<String>emptySet(), null);
+    }
+
+    /**
+     * Creates a writer for entries that will be appended to an existing tar
+     * (from which the end of archive marker has been removed).
+     * @param offset the length of the existing tar, to which the offsets in
+     *               the index are relative
+     * @param existingDirectories the paths (relative to the root of the bag,
+     *                            with "" for the bag directory itself) of the
+     *                            directories already in the tar
+     * @param md5 the MD5 of the existing tar, which is updated with the appended
+     *            entries so that finish() returns the MD5 of the whole tar
+     */
+    BagTarWriter(final OutputStream out, final String bagName, final long offset,
+                 final Collection<String> existingDirectories, final ResumableMd5 md5) throws IOException {
+        this.bagName = bagName;
+        this.offset = offset;
+        hashStream = new Md5OutputStream(out, md5);
+        // the tar writes each record straight through, so the count is the offset of the next entry
+        counter = new CountingOutputStream(hashStream);
+        tar = new TarArchiveOutputStream(counter, "UTF-8");
+        tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+        directories.addAll(existingDirectories);
+    }
+
+    /**
+     * Sets the progress to which the content of subsequently added entries is
+     * added as it is written, or null to stop tracking progress.
+     */
+    void setProgress(final ProgressTracker progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * Writes an index of every subsequently added file entry to the given file,
+     * which is completed when the tar is finished.  Because the SHA-256 checksum
+     * of each entry is recorded, entries are hashed as they're written unless a
+     * SHA-256 digest is among those supplied for them.
+     * @see TarIndex
+     */
+    public void writeIndex(final File indexFile) throws IOException {
+        if (index != null) {
+            throw new IllegalStateException("An index is already being written!");
+        }
+        if (counter.getByteCount() == 0 && hashStream.resumable == null) {
+            hashStream.resumable = new ResumableMd5();
+        }
+        index = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexFile), "UTF-8"));
+        indexDigest = TarIndex.newSha256();
+    }
+
+    /**
+     * Adds a file (for instance, one of the tag files) to the tar.
+     * @param pathWithinBag the path of the file relative to the root of the bag
+     * @param source the file whose content should be written
+     * @return the number of bytes of content written
+     */
+    public long addFile(final String pathWithinBag, final File source) throws IOException {
+        return addFile(pathWithinBag, source, Collections.<MessageDigest>emptyList());
+    }
+
+    /**
+     * Adds a file to the tar, updating each of the supplied digests with its
+     * content as it is written.  The digests are not reset beforehand.
+     * @param pathWithinBag the path of the file relative to the root of the bag
+     * @param source the file whose content should be written
+     * @param digests digests to be updated with the file's content
+     * @return the number of bytes of content written
+     */
+    public long addFile(final String pathWithinBag, final File source, final Collection<MessageDigest> digests) throws IOException {
+        final InputStream in = new FileInputStream(source);
+        try {
+            return addEntry(pathWithinBag, in, source.length(), source.lastModified(), digests);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Adds a file whose content is read from the given stream (for instance,
+     * an entry being copied from another tar), updating each of the supplied
+     * digests with its content as it is written.
+     * @param pathWithinBag the path of the file relative to the root of the bag
+     * @param content the content, which must be exactly size bytes long; the
+     *                stream is not closed
+     * @param size the size of the content
+     * @param modTime the modification time to record for the entry
+     * @param digests digests to be updated with the file's content
+     * @return the number of bytes of content written
+     */
+    public long addEntry(final String pathWithinBag, final InputStream content, final long size, final long modTime,
+                         final Collection<MessageDigest> digests) throws IOException {
+        final int lastSlash = pathWithinBag.lastIndexOf('/');
+        addDirectory(lastSlash > 0 ? pathWithinBag.substring(0, lastSlash) : "");
+        final TarArchiveEntry entry = new TarArchiveEntry(bagName + "/" + pathWithinBag);
+        entry.setSize(size);
+        entry.setModTime(modTime);
+        final long headerOffset = offset + counter.getByteCount();
+        tar.putArchiveEntry(entry);
+        final long dataOffset = offset + counter.getByteCount();
+        if (progress != null) {
+            progress.begin(BagMetrics.Phase.TAR, pathWithinBag);
+        }
+        MessageDigest sha256 = null;
+        Collection<MessageDigest> allDigests = digests;
+        if (index != null) {
+            for (MessageDigest d : digests) {
+                if (d.getAlgorithm().equals(indexDigest.getAlgorithm())) {
+                    sha256 = d;
+                }
+            }
+            if (sha256 == null) {
+                sha256 = indexDigest;
+                sha256.reset();
+                allDigests = new ArrayList<MessageDigest>(digests);
+                allDigests.add(sha256);
+            }
+        }
+        final long written = StreamUtils.copy(content, tar, buffer, allDigests, progress);
+        tar.closeArchiveEntry();
+        if (index != null) {
+            index.write(TarIndex.formatLine(pathWithinBag, headerOffset, dataOffset, written,
+                    String.valueOf(Hex.encodeHex(checksumSoFar(sha256)))));
+        }
+        return written;
+    }
+
+    /**
+     * Gets the checksum of what a digest has been updated with, without
+     * resetting it, since a supplied digest is finished by the caller.
+     */
+    private static byte[] checksumSoFar(final MessageDigest digest) {
+        try {
+            return ((MessageDigest) digest.clone()).digest();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Adds a directory entry (and entries for any missing parent directories)
+     * to the tar.  Directories that have already been added are ignored.
+     * @param pathWithinBag the path of the directory relative to the root of the
+     *                      bag, or an empty string for the bag directory itself
+     */
+    public void addDirectory(final String pathWithinBag) throws IOException {
+        if (directories.contains(pathWithinBag)) {
+            return;
+        }
+        final int lastSlash = pathWithinBag.lastIndexOf('/');
+        if (lastSlash > 0) {
+            addDirectory(pathWithinBag.substring(0, lastSlash));
+        } else if (pathWithinBag.length() > 0) {
+            addDirectory("");
+        }
+        final TarArchiveEntry entry = new TarArchiveEntry(bagName + "/" + pathWithinBag + (pathWithinBag.length() > 0 ? "/" : ""));
+        entry.setModTime(System.currentTimeMillis());
+        tar.putArchiveEntry(entry);
+        tar.closeArchiveEntry();
+        directories.add(pathWithinBag);
+    }
+
+    /**
+     * Records in the index, if one is being written with a resumable MD5, the
+     * state of the MD5 of the tar so far.  This is called before the tag files
+     * are added, so that entries may later be appended in their place (see
+     * BagUpdate) without the entries before them being read again.
+     */
+    void markTagFiles() throws IOException {
+        if (index != null && hashStream.resumable != null) {
+            index.write(TarIndex.formatMd5Line(offset + counter.getByteCount(), hashStream.resumable.save()));
+        }
+    }
+
+    /**
+     * Writes the end of archive marker, closes the underlying stream and
+     * returns the MD5 checksum of the complete tar.
+     */
+    public byte[] finish() throws IOException {
+        if (md5 == null) {
+            addDirectory("");
+            tar.close();
+            if (index != null) {
+                index.close();
+            }
+            md5 = hashStream.getMD5Hash();
+        }
+        return md5;
+    }
+
+    /**
+     * Closes the underlying stream.  If finish() has not been called, the tar
+     * is abandoned without an end of archive marker.  This is safe to call after
+     * finish() and should be called in a finally block to release resources when
+     * the tar could not be completed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (md5 == null) {
+            try {
+                hashStream.close();
+            } finally {
+                if (index != null) {
+                    index.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Passes what is written through to a stream, updating the MD5 of the tar
+     * with it: a MessageDigest unless a ResumableMd5 was set before anything
+     * was written.
+     */
+    private static class Md5OutputStream extends OutputStream {
+
+        private final OutputStream out;
+
+        private final MessageDigest digest;
+
+        private ResumableMd5 resumable;
+
+        private Md5OutputStream(final OutputStream out, final ResumableMd5 resumable) {
+            this.out = out;
+            this.resumable = resumable;
+            try {
+                digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private byte[] getMD5Hash() {
+            return resumable != null ? resumable.digest() : digest.digest();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (resumable != null) {
+                resumable.update(b);
+            } else {
+                digest.update((byte) b);
+            }
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (resumable != null) {
+                resumable.update(b, off, len);
+            } else {
+                digest.update(b, off, len);
+            }
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+}
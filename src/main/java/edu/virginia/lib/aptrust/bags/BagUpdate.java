@@ -0,0 +1,627 @@
+package edu.virginia.lib.aptrust.bags;
+
+import edu.virginia.lib.aptrust.bags.util.StreamUtils;
+import gov.loc.repository.bagit.domain.Bag;
+import gov.loc.repository.bagit.domain.Manifest;
+import gov.loc.repository.bagit.domain.Version;
+import gov.loc.repository.bagit.hash.StandardBagitAlgorithmNameToSupportedAlgorithmMapping;
+import gov.loc.repository.bagit.hash.SupportedAlgorithm;
+import gov.loc.repository.bagit.reader.ManifestReader;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Applies a set of payload changes (files added, replaced or removed) to a bag
+ * that has already been serialized, either as a directory or as a tar file.
+ * The checksums of untouched payload files are taken from the bag's existing
+ * payload manifests rather than computed again; only added and replaced files
+ * are hashed, and bag-info.txt, aptrust-info.txt and the manifests are
+ * regenerated.
+ * <p>
+ * A directory bag is updated in place, so the time taken depends only on the
+ * size of the changed files.  The changed files and new tag files are prepared
+ * beside the bag and moved into it only once they are complete, so a failed
+ * update leaves the bag as it was.
+ * <p>
+ * When files are only added to a tar bag that has a TarIndex (see
+ * APTrustBag.tarIndex()), the tag files at the end of the tar are truncated
+ * and the added files and new tag files are appended in their place.  The
+ * index records the state of the tar's MD5 where the tag files begin, so the
+ * entries that are kept aren't read at all and such an update takes time
+ * proportional only to the size of the added files (an index written before
+ * the state was recorded there costs one read of the kept entries).
+ * <p>
+ * Replacing or removing files in a tar bag is not incremental.  Entries can't
+ * be removed from a tar (and a second entry for a replaced file would leave
+ * its old content in the bag), so a tar bag from which files are removed or in
+ * which they're replaced, or which has no index, is rewritten: untouched
+ * entries are copied without being hashed, but such an update takes time
+ * proportional to the size of the whole bag.
+ * <pre>
+ *   BagSummary s = new BagUpdate(tarFile, bagInfo, aptrustInfo)
+ *           .replace(new PendingPayloadFile(newVersion, "images/0001.tif"))
+ *           .remove("images/0002.tif")
+ *           .apply();
+ * </pre>
+ */
+public class BagUpdate {
+
+    private final File bag;
+
+    private final BagInfo bagInfo;
+
+    private final APTrustInfo aptrustInfo;
+
+    private final Map<String, PendingPayloadFile> added = new LinkedHashMap<String, PendingPayloadFile>();
+
+    private final Map<String, PendingPayloadFile> replaced = new LinkedHashMap<String, PendingPayloadFile>();
+
+    private final Set<String> removed = new LinkedHashSet<String>();
+
+    /**
+     * @param bag the bag directory or tar file (as produced by
+     *            APTrustBag.serializeAPTrustBag()) to update
+     * @param bagInfo the bag info for the updated bag
+     * @param aptrustInfo the APTrust info for the updated bag
+     */
+    public BagUpdate(final File bag, final BagInfo bagInfo, final APTrustInfo aptrustInfo) {
+        this.bag = bag;
+        this.bagInfo = bagInfo;
+        this.aptrustInfo = aptrustInfo;
+    }
+
+    /**
+     * Adds a payload file, which must not already be in the bag.
+     */
+    public BagUpdate add(PendingPayloadFile f) {
+        checkUnchanged(f.getPathWithinPayload());
+        added.put(f.getPathWithinPayload(), f);
+        return this;
+    }
+
+    /**
+     * Replaces the content of a payload file that is in the bag.
+     */
+    public BagUpdate replace(PendingPayloadFile f) {
+        checkUnchanged(f.getPathWithinPayload());
+        replaced.put(f.getPathWithinPayload(), f);
+        return this;
+    }
+
+    /**
+     * Removes a payload file from the bag.
+     * @param pathWithinPayload the path of the file relative to the data directory
+     */
+    public BagUpdate remove(String pathWithinPayload) {
+        checkUnchanged(pathWithinPayload);
+        removed.add(pathWithinPayload);
+        return this;
+    }
+
+    private void checkUnchanged(String path) {
+        if (added.containsKey(path) || replaced.containsKey(path) || removed.contains(path)) {
+            throw new IllegalArgumentException(path + " is already being changed!");
+        }
+    }
+
+    /**
+     * Applies the changes.
+     * @return a BagSummary for the updated bag, with a checksum if it is a tar file
+     */
+    public BagSummary apply() throws Exception {
+        if (bag.isDirectory()) {
+            return applyToDirectory();
+        } else if (bag.isFile() && bag.getName().endsWith(".tar")) {
+            return applyToTar();
+        } else {
+            throw new IllegalArgumentException(bag + " is neither a bag directory nor a tar file!");
+        }
+    }
+
+    /**
+     * Updates a bag directory in two steps: the added and replaced files are
+     * staged and the new tag files are written in a working directory beside
+     * the bag, and only then are the changes moved into the bag (the tag files
+     * last).  A failure while staging or hashing leaves the bag untouched.
+     */
+    private BagSummary applyToDirectory() throws Exception {
+        final Path root = bag.toPath();
+        final File workingDir = Files.createTempDirectory(bag.getAbsoluteFile().getParentFile().toPath(), bag.getName()).toFile();
+        try {
+            // the manifests are moved to the working directory, where the new tag files are written
+            final Path workingRoot = workingDir.toPath();
+            final List<Manifest> manifests = readPayloadManifests(root);
+            checkChanges(root, manifests.get(0));
+            for (Manifest m : manifests) {
+                final Map<Path, String> moved = new TreeMap<Path, String>();
+                for (Map.Entry<Path, String> entry : m.getFileToChecksumMap().entrySet()) {
+                    moved.put(workingRoot.resolve(root.relativize(entry.getKey())), entry.getValue());
+                }
+                m.setFileToChecksumMap(moved);
+            }
+            for (String path : removed) {
+                removeEntry(manifests, workingRoot, path);
+            }
+            final List<PendingPayloadFile> staged = new ArrayList<PendingPayloadFile>(replaced.values());
+            staged.addAll(added.values());
+            for (PendingPayloadFile f : staged) {
+                removeEntry(manifests, workingRoot, f.getPathWithinPayload());
+            }
+            final File stagingDir = new File(workingDir, "data");
+            final BagMetrics metrics = new BagMetrics(bag.getName());
+            new PayloadStager(null, stagingDir, 1, null, null, metrics, null).stage(staged, manifests);
+            final long start = System.nanoTime();
+            final PayloadManifest manifestCopy = APTrustBag.writeTagFiles(createBag(workingRoot), manifests, bagInfo,
+                    aptrustInfo, getAlgorithms(manifests));
+            metrics.record(BagMetrics.Phase.TAG_FILES, System.nanoTime() - start, 0, manifests.size() * 2 + 2);
+
+            final File dataDir = new File(bag, "data");
+            for (String path : removed) {
+                deleteWithEmptyParents(new File(dataDir, path), dataDir);
+            }
+            for (PendingPayloadFile f : staged) {
+                final Path destination = new File(dataDir, f.getPathWithinPayload()).toPath();
+                Files.createDirectories(destination.getParent());
+                Files.move(new File(stagingDir, f.getPathWithinPayload()).toPath(), destination,
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            final List<File> tagFiles = APTrustBag.getTagFiles(workingDir);
+            for (File oldTagFile : APTrustBag.getTagFiles(bag)) {
+                if (!new File(workingDir, oldTagFile.getName()).exists()) {
+                    Files.delete(oldTagFile.toPath());
+                }
+            }
+            for (File tagFile : tagFiles) {
+                Files.move(tagFile.toPath(), new File(bag, tagFile.getName()).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+
+            long payloadSize = 0;
+            for (Path p : manifests.get(0).getFileToChecksumMap().keySet()) {
+                payloadSize += Files.size(root.resolve(workingRoot.relativize(p)));
+            }
+            metrics.finish();
+            return new BagSummary(bag, null, manifestCopy, payloadSize, metrics);
+        } finally {
+            FileUtils.deleteDirectory(workingDir);
+        }
+    }
+
+    private BagSummary applyToTar() throws Exception {
+        final String bagName = bag.getName().substring(0, bag.getName().length() - ".tar".length());
+        if (removed.isEmpty() && replaced.isEmpty() && TarIndex.getIndexFile(bag).exists()) {
+            final BagSummary appended = appendToTar(bagName, new TarIndex(bag, TarIndex.getIndexFile(bag)));
+            if (appended != null) {
+                return appended;
+            }
+        }
+        final File workingDir = Files.createTempDirectory(bag.getAbsoluteFile().getParentFile().toPath(), bagName).toFile();
+        final File updatedTar = new File(bag.getPath() + ".tmp");
+        // an index beside the tar would no longer match it, so one is rewritten along with it
+        final File index = TarIndex.getIndexFile(bag);
+        final File updatedIndex = index.exists() ? TarIndex.getIndexFile(updatedTar) : null;
+        try {
+            // the manifests are near the end of the tar, but the payload entries
+            // before them are skipped (not read) when the tar is a file
+            extractManifests(bagName, workingDir);
+            final Path root = workingDir.toPath();
+            final List<Manifest> manifests = readPayloadManifests(root);
+            checkChanges(root, manifests.get(0));
+
+            long payloadSize = 0;
+            final BagMetrics metrics = new BagMetrics(bagName);
+            final BagTarWriter tarWriter = new BagTarWriter(new BufferedOutputStream(new FileOutputStream(updatedTar)), bagName);
+            try {
+                if (updatedIndex != null) {
+                    tarWriter.writeIndex(updatedIndex);
+                }
+                final TarArchiveInputStream tarIn = new TarArchiveInputStream(new BufferedInputStream(new FileInputStream(bag), StreamUtils.BUFFER_SIZE), "UTF-8");
+                try {
+                    TarArchiveEntry e;
+                    while ((e = tarIn.getNextTarEntry()) != null) {
+                        final String path = getPathWithinBag(bagName, e);
+                        if (e.isDirectory() || path == null) {
+                            continue;
+                        }
+                        if (path.equals("bagit.txt")) {
+                            tarWriter.addEntry(path, tarIn, e.getSize(), e.getModTime().getTime(), Collections.<MessageDigest>emptyList());
+                        } else if (path.startsWith("data/")) {
+                            final String pathWithinPayload = path.substring("data/".length());
+                            if (!removed.contains(pathWithinPayload) && !replaced.containsKey(pathWithinPayload)) {
+                                payloadSize += tarWriter.addEntry(path, tarIn, e.getSize(), e.getModTime().getTime(),
+                                        Collections.<MessageDigest>emptyList());
+                            }
+                        }
+                    }
+                } finally {
+                    tarIn.close();
+                }
+                for (String path : removed) {
+                    removeEntry(manifests, root, path);
+                }
+                final List<PendingPayloadFile> changed = new ArrayList<PendingPayloadFile>(replaced.values());
+                changed.addAll(added.values());
+                final ManifestDigester digester = new ManifestDigester(manifests);
+                for (PendingPayloadFile f : changed) {
+                    removeEntry(manifests, root, f.getPathWithinPayload());
+                    final long start = System.nanoTime();
+                    final long size = APTrustBag.tarPayloadFile(tarWriter, f, root.resolve("data").toFile(), manifests, null, digester, null);
+                    metrics.record(BagMetrics.Phase.TAR, System.nanoTime() - start, size, 1);
+                    payloadSize += size;
+                }
+
+                deleteTagFiles(workingDir);
+                final long start = System.nanoTime();
+                final PayloadManifest manifestCopy = APTrustBag.writeTagFiles(createBag(root), manifests, bagInfo, aptrustInfo,
+                        getAlgorithms(manifests));
+                metrics.record(BagMetrics.Phase.TAG_FILES, System.nanoTime() - start, 0, manifests.size() * 2 + 2);
+                tarWriter.markTagFiles();
+                for (File tagFile : APTrustBag.getTagFiles(workingDir)) {
+                    tarWriter.addFile(tagFile.getName(), tagFile);
+                }
+                final byte[] md5 = tarWriter.finish();
+                Files.move(updatedTar.toPath(), bag.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                if (updatedIndex != null) {
+                    Files.move(updatedIndex.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+                metrics.finish();
+                return new BagSummary(bag, md5, manifestCopy, payloadSize, metrics, updatedIndex != null ? index : null);
+            } finally {
+                tarWriter.close();
+            }
+        } finally {
+            FileUtils.deleteDirectory(workingDir);
+            updatedTar.delete();
+            if (updatedIndex != null) {
+                updatedIndex.delete();
+            }
+        }
+    }
+
+    /**
+     * Adds the files to an indexed tar without rewriting it: the tag files and
+     * end of archive marker are replaced by the added payload files and the new
+     * tag files.  The tail of the tar is written to a file beside it first, and
+     * if appending it fails the old tag files are put back.
+     * @return a BagSummary for the updated bag, or null (leaving the tar
+     *         untouched) if the index doesn't show the tag files last, as
+     *         APTrustBag writes them
+     */
+    private BagSummary appendToTar(String bagName, TarIndex tarIndex) throws Exception {
+        // the directories of the added files, which need entries unless the tar already has them
+        final Set<String> directories = new HashSet<String>();
+        for (String path : added.keySet()) {
+            final String pathWithinBag = "data/" + path;
+            for (int slash = pathWithinBag.lastIndexOf('/'); slash > 0; slash = pathWithinBag.lastIndexOf('/', slash - 1)) {
+                directories.add(pathWithinBag.substring(0, slash));
+            }
+        }
+        final Set<String> existingDirectories = new HashSet<String>(Collections.singleton(""));
+        final List<TarIndex.Entry> tagEntries = new ArrayList<TarIndex.Entry>();
+        long tailOffset = -1;
+        long payloadSize = 0;
+        String md5Line = null;
+        final BufferedReader r = tarIndex.openIndex();
+        try {
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (!TarIndex.isEntryLine(line)) {
+                    md5Line = line;
+                    continue;
+                }
+                final TarIndex.Entry e = TarIndex.parseLine(line);
+                final String path = e.getPath();
+                if (path.indexOf('/') == -1 && !path.equals("bagit.txt")) {
+                    if (tailOffset == -1) {
+                        tailOffset = e.getHeaderOffset();
+                    }
+                    tagEntries.add(e);
+                } else if (tailOffset != -1) {
+                    return null;
+                } else if (path.startsWith("data/")) {
+                    payloadSize += e.getLength();
+                    for (int slash = path.lastIndexOf('/'); slash > 0; slash = path.lastIndexOf('/', slash - 1)) {
+                        final String dir = path.substring(0, slash);
+                        if (directories.remove(dir)) {
+                            existingDirectories.add(dir);
+                        }
+                    }
+                }
+            }
+        } finally {
+            r.close();
+        }
+        if (tailOffset == -1) {
+            return null;
+        }
+        final TarIndex.Entry lastEntry = tagEntries.get(tagEntries.size() - 1);
+        if (bag.length() < lastEntry.getDataOffset() + lastEntry.getLength()) {
+            return null;
+        }
+
+        final File workingDir = Files.createTempDirectory(bag.getAbsoluteFile().getParentFile().toPath(), bagName).toFile();
+        final File tail = new File(bag.getPath() + ".tail");
+        final File tailIndex = TarIndex.getIndexFile(tail);
+        final File oldTail = new File(bag.getPath() + ".old-tail");
+        final File updatedIndex = new File(tarIndex.getIndexFile().getPath() + ".tmp");
+        try {
+            for (TarIndex.Entry e : tagEntries) {
+                if (e.getPath().startsWith("manifest-")) {
+                    final InputStream in = tarIndex.open(e);
+                    try {
+                        Files.copy(in, new File(workingDir, e.getPath()).toPath());
+                    } finally {
+                        in.close();
+                    }
+                }
+            }
+            final Path root = workingDir.toPath();
+            final List<Manifest> manifests = readPayloadManifests(root);
+            checkChanges(root, manifests.get(0));
+
+            final BagMetrics metrics = new BagMetrics(bagName);
+            final byte[] buffer = new byte[StreamUtils.BUFFER_SIZE];
+            ResumableMd5 md5 = md5Line == null ? null : TarIndex.parseMd5Line(md5Line, tailOffset);
+            if (md5 == null) {
+                // the index doesn't record the MD5 of the entries that are kept, so they're read
+                md5 = new ResumableMd5();
+                final long start = System.nanoTime();
+                copyRange(bag, 0, tailOffset, null, md5, buffer);
+                metrics.record(BagMetrics.Phase.HASH, System.nanoTime() - start, tailOffset, 0);
+            }
+            final PayloadManifest manifestCopy;
+            final byte[] tarMd5;
+            final BagTarWriter tarWriter = new BagTarWriter(new BufferedOutputStream(new FileOutputStream(tail)), bagName,
+                    tailOffset, existingDirectories, md5);
+            try {
+                tarWriter.writeIndex(tailIndex);
+                final ManifestDigester digester = new ManifestDigester(manifests);
+                for (PendingPayloadFile f : added.values()) {
+                    final long start = System.nanoTime();
+                    final long size = APTrustBag.tarPayloadFile(tarWriter, f, root.resolve("data").toFile(), manifests, null, digester, null);
+                    metrics.record(BagMetrics.Phase.TAR, System.nanoTime() - start, size, 1);
+                    payloadSize += size;
+                }
+                deleteTagFiles(workingDir);
+                final long start = System.nanoTime();
+                manifestCopy = APTrustBag.writeTagFiles(createBag(root), manifests, bagInfo, aptrustInfo, getAlgorithms(manifests));
+                metrics.record(BagMetrics.Phase.TAG_FILES, System.nanoTime() - start, 0, manifests.size() * 2 + 2);
+                tarWriter.markTagFiles();
+                for (File tagFile : APTrustBag.getTagFiles(workingDir)) {
+                    tarWriter.addFile(tagFile.getName(), tagFile);
+                }
+                tarMd5 = tarWriter.finish();
+            } finally {
+                tarWriter.close();
+            }
+            writeUpdatedIndex(tarIndex, tailOffset, tailIndex, updatedIndex);
+
+            final OutputStream oldTailOut = new FileOutputStream(oldTail);
+            try {
+                copyRange(bag, tailOffset, bag.length() - tailOffset, oldTailOut, null, buffer);
+            } finally {
+                oldTailOut.close();
+            }
+            final FileChannel channel = FileChannel.open(bag.toPath(), StandardOpenOption.WRITE);
+            try {
+                try {
+                    channel.truncate(tailOffset);
+                    copyRange(tail, 0, tail.length(), Channels.newOutputStream(channel.position(tailOffset)), null, buffer);
+                } catch (IOException e) {
+                    // put the old tag files back, so that the bag is as it was
+                    channel.truncate(tailOffset);
+                    copyRange(oldTail, 0, oldTail.length(), Channels.newOutputStream(channel.position(tailOffset)), null, buffer);
+                    throw e;
+                }
+            } finally {
+                channel.close();
+            }
+            Files.move(updatedIndex.toPath(), tarIndex.getIndexFile().toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            metrics.finish();
+            return new BagSummary(bag, tarMd5, manifestCopy, payloadSize, metrics, tarIndex.getIndexFile());
+        } finally {
+            FileUtils.deleteDirectory(workingDir);
+            tail.delete();
+            tailIndex.delete();
+            oldTail.delete();
+            updatedIndex.delete();
+        }
+    }
+
+    /**
+     * Writes the index of an appended tar: the lines for the entries before
+     * the tail that was replaced followed by the index of the new tail.
+     */
+    private static void writeUpdatedIndex(TarIndex tarIndex, long tailOffset, File tailIndex, File updatedIndex)
+            throws IOException {
+        final Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(updatedIndex), "UTF-8"));
+        try {
+            final BufferedReader r = tarIndex.openIndex();
+            try {
+                String line;
+                while ((line = r.readLine()) != null) {
+                    if (!TarIndex.isEntryLine(line)) {
+                        continue;
+                    } else if (TarIndex.parseLine(line).getHeaderOffset() >= tailOffset) {
+                        break;
+                    }
+                    w.write(line + "\n");
+                }
+            } finally {
+                r.close();
+            }
+            w.write(FileUtils.readFileToString(tailIndex, "UTF-8"));
+        } finally {
+            w.close();
+        }
+    }
+
+    /**
+     * Copies a range of a file to a stream (which isn't closed), updating the
+     * digest with it.
+     * @param out the stream to copy to, or null if the range is only digested
+     * @param digest the digest to update, or null
+     */
+    private static void copyRange(File f, long offset, long length, OutputStream out, ResumableMd5 digest, byte[] buffer)
+            throws IOException {
+        final FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        try {
+            final InputStream in = new BoundedInputStream(Channels.newInputStream(channel.position(offset)), length);
+            long copied = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (digest != null) {
+                    digest.update(buffer, 0, read);
+                }
+                if (out != null) {
+                    out.write(buffer, 0, read);
+                }
+                copied += read;
+            }
+            if (copied != length) {
+                throw new IOException(f + " ended after " + copied + " of " + length + " bytes from " + offset + "!");
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Copies bagit.txt and the payload manifests from the tar into the given
+     * directory.
+     */
+    private void extractManifests(String bagName, File dir) throws IOException {
+        final TarArchiveInputStream tarIn = new TarArchiveInputStream(new FileInputStream(bag), "UTF-8");
+        try {
+            TarArchiveEntry e;
+            while ((e = tarIn.getNextTarEntry()) != null) {
+                final String path = getPathWithinBag(bagName, e);
+                if (path != null && (path.equals("bagit.txt") || (path.startsWith("manifest-") && path.indexOf('/') == -1))) {
+                    Files.copy(tarIn, new File(dir, path).toPath());
+                }
+            }
+        } finally {
+            tarIn.close();
+        }
+    }
+
+    /**
+     * Gets the path of a tar entry relative to the bag directory, or null if
+     * it isn't within the bag directory.
+     */
+    private static String getPathWithinBag(String bagName, TarArchiveEntry e) {
+        return e.getName().startsWith(bagName + "/") ? e.getName().substring(bagName.length() + 1) : null;
+    }
+
+    /**
+     * Reads every payload manifest at the root of the given bag, with entries
+     * sorted by path.
+     */
+    private static List<Manifest> readPayloadManifests(Path root) throws Exception {
+        final List<Manifest> manifests = new ArrayList<Manifest>();
+        for (File f : APTrustBag.getTagFiles(root.toFile())) {
+            if (f.getName().startsWith("manifest-") && f.getName().endsWith(".txt")) {
+                final Manifest read = ManifestReader.readManifest(new StandardBagitAlgorithmNameToSupportedAlgorithmMapping(),
+                        f.toPath(), root, createBag(root).getFileEncoding());
+                final Manifest manifest = new Manifest(read.getAlgorithm());
+                manifest.setFileToChecksumMap(new TreeMap<Path, String>(read.getFileToChecksumMap()));
+                manifests.add(manifest);
+            }
+        }
+        if (manifests.isEmpty()) {
+            throw new IllegalArgumentException("No payload manifest found in " + root + "!");
+        }
+        return manifests;
+    }
+
+    private void checkChanges(Path root, Manifest manifest) {
+        for (String path : added.keySet()) {
+            if (manifest.getFileToChecksumMap().containsKey(root.resolve("data/" + path))) {
+                throw new IllegalArgumentException(path + " is already in the bag!");
+            }
+        }
+        final Set<String> existing = new LinkedHashSet<String>(replaced.keySet());
+        existing.addAll(removed);
+        for (String path : existing) {
+            if (!manifest.getFileToChecksumMap().containsKey(root.resolve("data/" + path))) {
+                throw new IllegalArgumentException(path + " is not in the bag!");
+            }
+        }
+    }
+
+    private static void removeEntry(List<Manifest> manifests, Path root, String pathWithinPayload) {
+        for (Manifest m : manifests) {
+            m.getFileToChecksumMap().remove(root.resolve("data/" + pathWithinPayload));
+        }
+    }
+
+    private static Set<SupportedAlgorithm> getAlgorithms(List<Manifest> manifests) {
+        final Set<SupportedAlgorithm> algorithms = new LinkedHashSet<SupportedAlgorithm>();
+        for (Manifest m : manifests) {
+            algorithms.add(m.getAlgorithm());
+        }
+        return algorithms;
+    }
+
+    private static Bag createBag(Path root) {
+        final Bag b = new Bag(new Version(0, 97));
+        b.setRootDir(root);
+        return b;
+    }
+
+    /**
+     * Deletes the tag files that are regenerated (everything at the root of
+     * the bag but bagit.txt).
+     */
+    private static void deleteTagFiles(File bagDir) throws IOException {
+        for (File f : APTrustBag.getTagFiles(bagDir)) {
+            Files.delete(f.toPath());
+        }
+    }
+
+    /**
+     * Deletes a file and then any of its parent directories (below the given
+     * directory) that are left empty.
+     */
+    private static void deleteWithEmptyParents(File f, File stopAt) throws IOException {
+        Files.delete(f.toPath());
+        File parent = f.getParentFile();
+        while (!parent.equals(stopAt) && parent.list().length == 0) {
+            Files.delete(parent.toPath());
+            parent = parent.getParentFile();
+        }
+    }
+
+}
@@ -0,0 +1,417 @@
+package edu.virginia.lib.aptrust.bags;
+
+import gov.loc.repository.bagit.domain.Manifest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A persistent cache of payload file checksums, so that files that have not
+ * changed since they were last bagged need not be hashed again.  An entry is
+ * keyed by the canonical path of the file and is only used while the file's
+ * size, modification time and inode (or the platform's equivalent file key)
+ * are unchanged.  Each entry holds a checksum for any number of algorithms.
+ * <p>
+ * The cache is held in memory, bounded by a maximum number of entries (the
+ * least recently used entry is dropped whenever another would exceed it), and
+ * written to a single text file by save().  Saving takes an exclusive lock on
+ * a companion ".lock" file and merges in any entries saved by other processes
+ * since this cache was loaded, so several bagging processes may share one
+ * cache file.  When saved, entries unused for longer than the maximum age are
+ * dropped and, if the merged entries exceed the maximum, the least recently
+ * used are dropped.
+ * <p>
+ * Note that a file rewritten with identical size within the resolution of
+ * the file system's modification time (and without a new inode) would not
+ * be detected as changed.
+ */
+public class ChecksumCache {
+
+    final private static Logger LOGGER = LoggerFactory.getLogger(ChecksumCache.class);
+
+    private final File file;
+
+    private int maxEntries = 1000000;
+
+    private long maxAge = 0;
+
+    /**
+     * The entries in order of use (least recent first), guarded by its own lock.
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > maxEntries;
+        }
+    };
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    /**
+     * Creates a cache backed by the given file, loading its entries if it
+     * exists.
+     */
+    public ChecksumCache(File file) throws IOException {
+        this.file = file;
+        replaceEntries(read(file).entrySet());
+    }
+
+    /**
+     * Sets the maximum number of entries held (and saved), dropping the least
+     * recently used entries beyond it.  The default is one million.
+     */
+    public ChecksumCache maxEntries(int entries) {
+        if (entries < 1) {
+            throw new IllegalArgumentException("The cache must allow at least one entry!");
+        }
+        synchronized (this.entries) {
+            this.maxEntries = entries;
+            replaceEntries(new ArrayList<Map.Entry<String, Entry>>(this.entries.entrySet()));
+        }
+        return this;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Sets the time after which an entry that has not been used is dropped
+     * when the cache is saved.  The default, 0, keeps entries regardless of age.
+     */
+    public ChecksumCache maxAge(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("The maximum age may not be negative!");
+        }
+        this.maxAge = millis;
+        return this;
+    }
+
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * Gets the number of lookups that found a checksum for every requested
+     * algorithm.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of lookups that required the file to be hashed.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Gets the total size of the files whose checksums were found in the cache.
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Identifies the given file.  The identity should be captured before the
+     * file is read so that a change made while it is being hashed is noticed.
+     */
+    FileIdentity identify(File f) throws IOException {
+        final BasicFileAttributes a = Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+        return new FileIdentity(f.getCanonicalPath(), a.size(), a.lastModifiedTime().toMillis(),
+                a.fileKey() == null ? "-" : a.fileKey().toString());
+    }
+
+    /**
+     * Gets the cached checksums of the identified file for the algorithm of
+     * each of the given manifests (in the same order), or null unless every
+     * one is cached.
+     */
+    String[] get(FileIdentity id, List<Manifest> manifests) {
+        final Entry e;
+        synchronized (entries) {
+            e = entries.get(id.path);
+        }
+        if (e != null && e.matches(id)) {
+            final String[] checksums = new String[manifests.size()];
+            for (int i = 0; i < checksums.length; i ++) {
+                checksums[i] = e.getChecksum(manifests.get(i).getAlgorithm().getBagitName());
+                if (checksums[i] == null) {
+                    misses.incrementAndGet();
+                    return null;
+                }
+            }
+            e.lastUsed = System.currentTimeMillis();
+            hits.incrementAndGet();
+            bytesSaved.addAndGet(id.size);
+            return checksums;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Records the checksums (for the algorithm of each of the given manifests,
+     * in the same order) of the identified file.
+     */
+    void put(FileIdentity id, List<Manifest> manifests, String[] checksums) {
+        final Map<String, String> byAlgorithm = new LinkedHashMap<String, String>();
+        synchronized (entries) {
+            final Entry existing = entries.get(id.path);
+            if (existing != null && existing.matches(id)) {
+                for (int i = 0; i < existing.algorithms.length; i ++) {
+                    byAlgorithm.put(existing.algorithms[i], existing.checksums[i]);
+                }
+            }
+            for (int i = 0; i < checksums.length; i ++) {
+                byAlgorithm.put(manifests.get(i).getAlgorithm().getBagitName(), checksums[i]);
+            }
+            entries.put(id.path, new Entry(id.size, id.lastModified, id.fileKey, System.currentTimeMillis(), byAlgorithm));
+        }
+    }
+
+    /**
+     * Writes the cache to its file, merging in entries written by other
+     * processes and applying the eviction limits.
+     */
+    public void save() throws IOException {
+        final File lockFile = new File(file.getPath() + ".lock");
+        if (file.getAbsoluteFile().getParentFile() != null) {
+            file.getAbsoluteFile().getParentFile().mkdirs();
+        }
+        // file locks are held by the whole JVM, so instances within it must take turns
+        synchronized (ChecksumCache.class) {
+            final RandomAccessFile raf = new RandomAccessFile(lockFile, "rw");
+            try {
+                final FileLock lock = raf.getChannel().lock();
+                try {
+                    synchronized (entries) {
+                        final Map<String, Entry> merged = new HashMap<String, Entry>(entries);
+                        for (Map.Entry<String, Entry> saved : read(file).entrySet()) {
+                            final Entry current = merged.get(saved.getKey());
+                            if (current == null || current.lastUsed < saved.getValue().lastUsed) {
+                                merged.put(saved.getKey(), saved.getValue());
+                            }
+                        }
+                        replaceEntries(merged.entrySet());
+                        write();
+                    }
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Replaces the entries with the given ones that are no older than the
+     * maximum age, in order of use so that the least recently used of them
+     * are dropped if there are more than the maximum.
+     */
+    private void replaceEntries(Collection<Map.Entry<String, Entry>> replacements) {
+        final List<Map.Entry<String, Entry>> byAge = new ArrayList<Map.Entry<String, Entry>>(replacements);
+        Collections.sort(byAge, new Comparator<Map.Entry<String, Entry>>() {
+            @Override
+            public int compare(Map.Entry<String, Entry> a, Map.Entry<String, Entry> b) {
+                return Long.compare(a.getValue().lastUsed, b.getValue().lastUsed);
+            }
+        });
+        final long oldest = maxAge > 0 ? System.currentTimeMillis() - maxAge : Long.MIN_VALUE;
+        synchronized (entries) {
+            entries.clear();
+            for (Map.Entry<String, Entry> e : byAge) {
+                if (e.getValue().lastUsed >= oldest) {
+                    entries.put(e.getKey(), e.getValue());
+                }
+            }
+        }
+    }
+
+    private void write() throws IOException {
+        final File tempFile = new File(file.getPath() + ".tmp");
+        final FileOutputStream fos = new FileOutputStream(tempFile);
+        try {
+            final Writer w = new BufferedWriter(new OutputStreamWriter(fos, "UTF-8"));
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                w.write(e.getValue().toLine(e.getKey()));
+                w.write('\n');
+            }
+            w.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Map<String, Entry> read(File file) throws IOException {
+        final Map<String, Entry> result = new HashMap<String, Entry>();
+        if (!file.exists()) {
+            return result;
+        }
+        final BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = r.readLine()) != null) {
+                final String[] fields = line.split("\t");
+                if (fields.length < 5) {
+                    continue;
+                }
+                try {
+                    final Map<String, String> checksums = new LinkedHashMap<String, String>();
+                    for (int i = 5; i < fields.length; i ++) {
+                        final int split = fields[i].indexOf('=');
+                        if (split > 0) {
+                            checksums.put(fields[i].substring(0, split), fields[i].substring(split + 1));
+                        }
+                    }
+                    result.put(decode(fields[0]), new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                            decode(fields[3]), Long.parseLong(fields[4]), checksums));
+                } catch (IllegalArgumentException e) {
+                    LOGGER.warn("Skipping unreadable checksum cache entry: " + line);
+                }
+            }
+        } finally {
+            r.close();
+        }
+        return result;
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The attributes of a file that must be unchanged for a cached checksum
+     * to be used.
+     */
+    static class FileIdentity {
+
+        private final String path;
+
+        private final long size;
+
+        private final long lastModified;
+
+        private final String fileKey;
+
+        private FileIdentity(String path, long size, long lastModified, String fileKey) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.fileKey = fileKey;
+        }
+
+        long getSize() {
+            return size;
+        }
+    }
+
+    /**
+     * A cached file's identity and checksums, held as parallel arrays (with
+     * shared algorithm names) to keep each entry small.
+     */
+    private static class Entry {
+
+        private final long size;
+
+        private final long lastModified;
+
+        private final String fileKey;
+
+        private volatile long lastUsed;
+
+        private final String[] algorithms;
+
+        private final String[] checksums;
+
+        private Entry(long size, long lastModified, String fileKey, long lastUsed, Map<String, String> checksums) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.fileKey = fileKey;
+            this.lastUsed = lastUsed;
+            this.algorithms = new String[checksums.size()];
+            this.checksums = new String[checksums.size()];
+            int i = 0;
+            for (Map.Entry<String, String> checksum : checksums.entrySet()) {
+                this.algorithms[i] = checksum.getKey().intern();
+                this.checksums[i ++] = checksum.getValue();
+            }
+        }
+
+        private String getChecksum(String algorithm) {
+            for (int i = 0; i < algorithms.length; i ++) {
+                if (algorithms[i].equals(algorithm)) {
+                    return checksums[i];
+                }
+            }
+            return null;
+        }
+
+        private boolean matches(FileIdentity id) {
+            return size == id.size && lastModified == id.lastModified && fileKey.equals(id.fileKey);
+        }
+
+        private String toLine(String path) {
+            final StringBuilder line = new StringBuilder();
+            line.append(encode(path)).append('\t').append(size).append('\t').append(lastModified).append('\t')
+                    .append(encode(fileKey)).append('\t').append(lastUsed);
+            for (int i = 0; i < algorithms.length; i ++) {
+                line.append('\t').append(algorithms[i]).append('=').append(checksums[i]);
+            }
+            return line.toString();
+        }
+    }
+
+}
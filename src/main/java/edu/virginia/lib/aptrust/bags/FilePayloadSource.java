@@ -0,0 +1,40 @@
+package edu.virginia.lib.aptrust.bags;
+
+import gov.loc.repository.bagit.hash.SupportedAlgorithm;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A PayloadSource for a local file, with no precomputed checksums.
+ */
+public class FilePayloadSource implements PayloadSource {
+
+    private final File file;
+
+    public FilePayloadSource(final File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public InputStream openStream() throws IOException {
+        return new FileInputStream(file);
+    }
+
+    @Override
+    public long getLength() {
+        return file.length();
+    }
+
+    @Override
+    public String getChecksum(SupportedAlgorithm algorithm) {
+        return null;
+    }
+
+}
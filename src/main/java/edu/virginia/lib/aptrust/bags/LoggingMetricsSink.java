@@ -0,0 +1,33 @@
+package edu.virginia.lib.aptrust.bags;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+
+/**
+ * A MetricsSink that logs a comma separated line for each phase (bag name,
+ * phase, milliseconds, bytes, files, MB/s), for each uploaded part (bag
+ * name, "PART [n]", milliseconds, bytes, , MB/s) and for each staging strategy
+ * used (bag name, "STAGED [strategy]", , , files, ).
+ */
+public class LoggingMetricsSink implements MetricsSink {
+
+    final private static Logger LOGGER = LoggerFactory.getLogger(LoggingMetricsSink.class);
+
+    @Override
+    public void metricsRecorded(BagMetrics metrics) {
+        for (BagMetrics.PhaseMetrics m : metrics.getPhases()) {
+            LOGGER.info(metrics.getBagName() + "," + m.getPhase() + "," + m.getDurationMillis() + "," + m.getBytes() + ","
+                    + m.getFiles() + "," + String.format("%.1f", m.getMegabytesPerSecond()));
+        }
+        for (BagMetrics.PartMetrics p : metrics.getParts()) {
+            LOGGER.info(metrics.getBagName() + ",PART " + p.getPartNumber() + "," + p.getLatencyMillis() + "," + p.getBytes()
+                    + ",," + String.format("%.1f", p.getMegabytesPerSecond()));
+        }
+        for (Map.Entry<StagingStrategy, Integer> s : metrics.getStagingStrategies().entrySet()) {
+            LOGGER.info(metrics.getBagName() + ",STAGED " + s.getKey() + ",,," + s.getValue() + ",");
+        }
+    }
+
+}
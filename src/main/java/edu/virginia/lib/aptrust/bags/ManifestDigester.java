@@ -0,0 +1,78 @@
+package edu.virginia.lib.aptrust.bags;
+
+import gov.loc.repository.bagit.domain.Manifest;
+import org.apache.commons.codec.binary.Hex;
+
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds one MessageDigest for each of a list of manifests so that the
+ * checksums for every manifest may be computed from a single read of a
+ * file.  Instances are not thread safe; each thread hashing content
+ * should have its own.
+ */
+class ManifestDigester {
+
+    private final List<MessageDigest> digests;
+
+    ManifestDigester(List<Manifest> manifests) throws NoSuchAlgorithmException {
+        digests = new ArrayList<MessageDigest>();
+        for (Manifest m : manifests) {
+            digests.add(MessageDigest.getInstance(m.getAlgorithm().getMessageDigestName()));
+        }
+    }
+
+    /**
+     * Gets the digests, which should each be updated with the same content.
+     */
+    List<MessageDigest> getDigests() {
+        return digests;
+    }
+
+    /**
+     * Completes the digests and returns the hex-encoded checksums in the
+     * same order as the manifests supplied to the constructor.  The digests
+     * are reset and may be reused for the next file.
+     */
+    String[] finish() {
+        final String[] checksums = new String[digests.size()];
+        for (int i = 0; i < checksums.length; i ++) {
+            checksums[i] = String.valueOf(Hex.encodeHex(digests.get(i).digest()));
+        }
+        return checksums;
+    }
+
+    /**
+     * Gets the checksums supplied by the given source for the algorithm of
+     * each of the given manifests (in the same order, in lower case), or null
+     * unless it supplies every one.
+     */
+    static String[] getSuppliedChecksums(PayloadSource source, List<Manifest> manifests) {
+        final String[] checksums = new String[manifests.size()];
+        for (int i = 0; i < checksums.length; i ++) {
+            checksums[i] = source.getChecksum(manifests.get(i).getAlgorithm());
+            if (checksums[i] == null) {
+                return null;
+            }
+            // written in the same case as computed checksums
+            checksums[i] = checksums[i].toLowerCase();
+        }
+        return checksums;
+    }
+
+    /**
+     * Adds an entry for the given file to each manifest.
+     * @param checksums the checksums, as returned by finish(), in the same
+     *                  order as the manifests
+     */
+    static void addEntry(List<Manifest> manifests, Path file, String[] checksums) {
+        for (int i = 0; i < checksums.length; i ++) {
+            manifests.get(i).getFileToChecksumMap().put(file, checksums[i]);
+        }
+    }
+
+}
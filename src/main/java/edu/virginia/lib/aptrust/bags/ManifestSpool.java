@@ -0,0 +1,258 @@
+package edu.virginia.lib.aptrust.bags;
+
+import gov.loc.repository.bagit.hash.SupportedAlgorithm;
+import gov.loc.repository.bagit.writer.RelativePathWriter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Collects the entries of a bag's payload manifests (a path and one checksum
+ * per algorithm for each payload file) in bounded memory.  Entries are held
+ * until a run's worth have been added, at which point they are sorted and
+ * written to a temporary run file; once the payload is complete the runs are
+ * merged into one manifest file per algorithm, sorted by path.  A payload with
+ * fewer files than a run never touches the disk.  Entries may be added from
+ * any thread.
+ */
+class ManifestSpool implements Closeable {
+
+    private static final int RUN_BUFFER_SIZE = 64 * 1024;
+
+    private static final Comparator<Entry> BY_PATH = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return a.path.compareTo(b.path);
+        }
+    };
+
+    private final File runDir;
+
+    private final List<SupportedAlgorithm> algorithms;
+
+    private final int runSize;
+
+    private List<Entry> buffer = new ArrayList<Entry>();
+
+    private final List<File> runs = new ArrayList<File>();
+
+    private int size;
+
+    /**
+     * @param runDir the directory in which run files are written
+     * @param algorithms the algorithms of the manifests, in the order in which
+     *                   checksums are supplied for each entry
+     * @param runSize the number of entries held in memory before they are
+     *                written to a run file
+     */
+    ManifestSpool(File runDir, List<SupportedAlgorithm> algorithms, int runSize) {
+        this.runDir = runDir;
+        this.algorithms = algorithms;
+        this.runSize = runSize;
+    }
+
+    /**
+     * Adds an entry to every manifest.
+     * @param path the path of the file relative to the bag directory (e.g.
+     *             "data/file.txt")
+     * @param checksums the checksums, in the order of the algorithms
+     */
+    synchronized void add(String path, String[] checksums) throws IOException {
+        buffer.add(new Entry(path, checksums));
+        size ++;
+        if (buffer.size() >= runSize) {
+            spill();
+        }
+    }
+
+    /**
+     * Gets the number of entries added.
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Gets the number of run files written so far.
+     */
+    synchronized int getRunCount() {
+        return runs.size();
+    }
+
+    /**
+     * Merges every entry into a manifest file for each algorithm (named
+     * "manifest-[algorithm].txt" and formatted as the bagit library does) in
+     * the given bag directory, replacing any that exist.
+     */
+    synchronized void writeManifests(Path bagDir, Charset charset) throws IOException {
+        Collections.sort(buffer, BY_PATH);
+        final PriorityQueue<Run> queue = new PriorityQueue<Run>(runs.size() + 1, new Comparator<Run>() {
+            @Override
+            public int compare(Run a, Run b) {
+                return BY_PATH.compare(a.head, b.head);
+            }
+        });
+        final List<RunReader> readers = new ArrayList<RunReader>();
+        final List<Writer> writers = new ArrayList<Writer>();
+        try {
+            for (File run : runs) {
+                final RunReader reader = new RunReader(run);
+                readers.add(reader);
+                addRun(queue, reader);
+            }
+            addRun(queue, buffer.iterator());
+            for (SupportedAlgorithm a : algorithms) {
+                writers.add(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+                        bagDir.resolve("manifest-" + a.getBagitName() + ".txt").toFile()), charset), RUN_BUFFER_SIZE));
+            }
+            while (!queue.isEmpty()) {
+                final Run run = queue.poll();
+                final String line = RelativePathWriter.formatRelativePathString(bagDir, bagDir.resolve(run.head.path));
+                for (int i = 0; i < writers.size(); i ++) {
+                    writers.get(i).write(run.head.checksums[i] + "  " + line);
+                }
+                if (run.rest.hasNext()) {
+                    run.head = run.rest.next();
+                    queue.add(run);
+                }
+            }
+        } finally {
+            for (Writer w : writers) {
+                w.close();
+            }
+            for (RunReader r : readers) {
+                r.close();
+            }
+        }
+    }
+
+    /**
+     * Deletes the run files.
+     */
+    @Override
+    public synchronized void close() {
+        for (File run : runs) {
+            run.delete();
+        }
+        runs.clear();
+        buffer = new ArrayList<Entry>();
+    }
+
+    private void spill() throws IOException {
+        Collections.sort(buffer, BY_PATH);
+        final File run = File.createTempFile("manifest-run", ".tmp", runDir);
+        runs.add(run);
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), RUN_BUFFER_SIZE));
+        try {
+            out.writeInt(buffer.size());
+            for (Entry e : buffer) {
+                out.writeUTF(e.path);
+                for (String checksum : e.checksums) {
+                    out.writeUTF(checksum);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        buffer = new ArrayList<Entry>();
+    }
+
+    private static void addRun(PriorityQueue<Run> queue, Iterator<Entry> entries) {
+        if (entries.hasNext()) {
+            final Run run = new Run();
+            run.head = entries.next();
+            run.rest = entries;
+            queue.add(run);
+        }
+    }
+
+    private static class Entry {
+
+        private final String path;
+
+        private final String[] checksums;
+
+        private Entry(String path, String[] checksums) {
+            this.path = path;
+            this.checksums = checksums;
+        }
+    }
+
+    /**
+     * The next entry of a sorted run and the entries that follow it.
+     */
+    private static class Run {
+
+        private Entry head;
+
+        private Iterator<Entry> rest;
+    }
+
+    /**
+     * Reads back the entries of a run file in order.
+     */
+    private class RunReader implements Iterator<Entry>, Closeable {
+
+        private final DataInputStream in;
+
+        private int remaining;
+
+        private RunReader(File run) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), RUN_BUFFER_SIZE));
+            remaining = in.readInt();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        @Override
+        public Entry next() {
+            if (remaining == 0) {
+                throw new NoSuchElementException();
+            }
+            try {
+                final String path = in.readUTF();
+                final String[] checksums = new String[algorithms.size()];
+                for (int i = 0; i < checksums.length; i ++) {
+                    checksums[i] = in.readUTF();
+                }
+                remaining --;
+                return new Entry(path, checksums);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to read manifest run!", e);
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+}
@@ -0,0 +1,13 @@
+package edu.virginia.lib.aptrust.bags;
+
+/**
+ * Receives the metrics of each bag serialization or transfer as soon as it
+ * finishes (successfully or not), so that they may be logged, graphed or
+ * forwarded to a monitoring system.  Bags may be serialized and transferred
+ * concurrently, so implementations must be thread safe.
+ */
+public interface MetricsSink {
+
+    void metricsRecorded(BagMetrics metrics);
+
+}
@@ -0,0 +1,20 @@
+package edu.virginia.lib.aptrust.bags;
+
+/**
+ * Receives the size, latency and throughput of each part of a multipart upload
+ * as soon as it has been uploaded, along with the number of parts of the same
+ * upload still in flight, so that concurrency and bandwidth limits may be
+ * tuned while a transfer is under way.  Parts are uploaded concurrently, so
+ * implementations must be thread safe and should return quickly.
+ */
+public interface PartListener {
+
+    /**
+     * @param key the key of the object being uploaded
+     * @param part the part that was uploaded
+     * @param partsInFlight the number of other parts of the upload that were
+     *                      being sent when this one finished
+     */
+    void partUploaded(String key, BagMetrics.PartMetrics part, int partsInFlight);
+
+}
@@ -0,0 +1,258 @@
+package edu.virginia.lib.aptrust.bags;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A compact, immutable copy of a payload manifest.  The checksums are held as
+ * packed digest bytes and the paths (which are sorted, so neighbours share long
+ * prefixes) are front coded: each is stored as the length of the prefix it
+ * shares with the previous path followed by the remaining bytes.  A manifest
+ * of a hundred thousand files therefore takes a few megabytes rather than the
+ * tens of megabytes its text would as a String.  The entries may be iterated
+ * over without materializing the text, which is only built by toText().
+ */
+public class PayloadManifest implements Iterable<PayloadManifest.Entry> {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final String algorithm;
+
+    private final int size;
+
+    private final int digestLength;
+
+    private final byte[] digests;
+
+    private final byte[] paths;
+
+    private final String lineSeparator;
+
+    private PayloadManifest(String algorithm, int size, int digestLength, byte[] digests, byte[] paths, String lineSeparator) {
+        this.algorithm = algorithm;
+        this.size = size;
+        this.digestLength = digestLength;
+        this.digests = digests;
+        this.paths = paths;
+        this.lineSeparator = lineSeparator;
+    }
+
+    /**
+     * Reads a manifest file (lines of "[checksum]  [path]") without holding
+     * its text in memory.
+     * @param algorithm the bagit name of the manifest's algorithm
+     */
+    public static PayloadManifest read(File manifestFile, String algorithm, Charset charset) throws IOException {
+        final Reader r = new InputStreamReader(new FileInputStream(manifestFile), charset);
+        try {
+            return read(r, algorithm);
+        } finally {
+            r.close();
+        }
+    }
+
+    /**
+     * Parses the text of a manifest.
+     * @param algorithm the bagit name of the manifest's algorithm
+     */
+    public static PayloadManifest parse(String text, String algorithm) {
+        try {
+            return read(new StringReader(text), algorithm);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private static PayloadManifest read(Reader reader, String algorithm) throws IOException {
+        final BufferedReader r = new BufferedReader(reader);
+        final ByteArrayOutputStream digests = new ByteArrayOutputStream();
+        final ByteArrayOutputStream paths = new ByteArrayOutputStream();
+        String lineSeparator = System.lineSeparator();
+        int digestLength = -1;
+        int size = 0;
+        byte[] previous = new byte[0];
+        final StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = r.read()) != -1) {
+            if (c != '\n') {
+                line.append((char) c);
+                continue;
+            }
+            if (size == 0) {
+                lineSeparator = line.length() > 0 && line.charAt(line.length() - 1) == '\r' ? "\r\n" : "\n";
+            }
+            if (line.length() > 0 && line.charAt(line.length() - 1) == '\r') {
+                line.setLength(line.length() - 1);
+            }
+            final int split = line.indexOf("  ");
+            if (split < 0) {
+                throw new IOException("Invalid manifest line: " + line);
+            }
+            final byte[] digest;
+            try {
+                digest = Hex.decodeHex(line.substring(0, split).toCharArray());
+            } catch (DecoderException e) {
+                throw new IOException("Invalid checksum in manifest line: " + line, e);
+            }
+            if (digestLength == -1) {
+                digestLength = digest.length;
+            } else if (digest.length != digestLength) {
+                throw new IOException("Inconsistent checksum length in manifest line: " + line);
+            }
+            digests.write(digest, 0, digest.length);
+            final byte[] path = line.substring(split + 2).getBytes(UTF_8);
+            int shared = 0;
+            while (shared < path.length && shared < previous.length && path[shared] == previous[shared]) {
+                shared ++;
+            }
+            writeVarInt(paths, shared);
+            writeVarInt(paths, path.length - shared);
+            paths.write(path, shared, path.length - shared);
+            previous = path;
+            size ++;
+            line.setLength(0);
+        }
+        if (line.length() > 0) {
+            throw new IOException("Manifest does not end with a line separator!");
+        }
+        return new PayloadManifest(algorithm, size, Math.max(digestLength, 0), digests.toByteArray(), paths.toByteArray(),
+                lineSeparator);
+    }
+
+    /**
+     * Gets the bagit name of the algorithm of this manifest (e.g. "sha256").
+     */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Gets the number of entries in the manifest.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Iterates over the entries in the order they appear in the manifest,
+     * decoding each only as it is reached.
+     */
+    @Override
+    public Iterator<Entry> iterator() {
+        return new Iterator<Entry>() {
+
+            private int index = 0;
+
+            private int offset = 0;
+
+            private byte[] path = new byte[0];
+
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            @Override
+            public Entry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final int[] position = new int[] { offset };
+                final int shared = readVarInt(paths, position);
+                final int remaining = readVarInt(paths, position);
+                final byte[] next = Arrays.copyOf(path, shared + remaining);
+                System.arraycopy(paths, position[0], next, shared, remaining);
+                offset = position[0] + remaining;
+                path = next;
+                final Entry e = new Entry(new String(path, UTF_8),
+                        String.valueOf(Hex.encodeHex(Arrays.copyOfRange(digests, index * digestLength, (index + 1) * digestLength))));
+                index ++;
+                return e;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Builds the text of the manifest, as it was written in the bag.
+     */
+    public String toText() {
+        final StringBuilder text = new StringBuilder();
+        for (Entry e : this) {
+            text.append(e.getChecksum()).append("  ").append(e.getPath()).append(lineSeparator);
+        }
+        return text.toString();
+    }
+
+    @Override
+    public String toString() {
+        return toText();
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(byte[] bytes, int[] position) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = bytes[position[0] ++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * A line of the manifest.
+     */
+    public static class Entry {
+
+        private final String path;
+
+        private final String checksum;
+
+        private Entry(String path, String checksum) {
+            this.path = path;
+            this.checksum = checksum;
+        }
+
+        /**
+         * Gets the path, relative to the bag directory (e.g. "data/file.txt").
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Gets the hex-encoded checksum.
+         */
+        public String getChecksum() {
+            return checksum;
+        }
+    }
+
+}
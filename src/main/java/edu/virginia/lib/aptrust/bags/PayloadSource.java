@@ -0,0 +1,39 @@
+package edu.virginia.lib.aptrust.bags;
+
+import gov.loc.repository.bagit.hash.SupportedAlgorithm;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A source of the content of a payload file that need not be a local file,
+ * for instance a datastream fetched from a repository.  Its content is
+ * streamed directly into the tar (or bag directory) being written, so no
+ * temporary copy is needed when its length is known in advance.  Content
+ * that is available as a channel may be supplied using
+ * java.nio.channels.Channels.newInputStream().
+ */
+public interface PayloadSource {
+
+    /**
+     * Opens a stream of the content.  This is called once each time the bag
+     * containing it is serialized; the stream is closed by the caller.
+     */
+    InputStream openStream() throws IOException;
+
+    /**
+     * Gets the length of the content, or -1 if it isn't known in advance (in
+     * which case the content is spooled to a temporary file when a tar is
+     * written, since a tar entry's header includes its length).
+     */
+    long getLength();
+
+    /**
+     * Gets a hex-encoded checksum of the content that was computed in advance,
+     * or null if none is available for the given algorithm.  When a checksum
+     * is available for every algorithm of the bag, the content isn't hashed and
+     * the supplied checksums are written to the manifests as they are.
+     */
+    String getChecksum(SupportedAlgorithm algorithm);
+
+}
@@ -0,0 +1,410 @@
+package edu.virginia.lib.aptrust.bags;
+
+import edu.virginia.lib.aptrust.bags.util.OutputDrainerThread;
+import edu.virginia.lib.aptrust.bags.util.StreamUtils;
+import gov.loc.repository.bagit.domain.Manifest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Places payload files into the data directory of a bag that is being
+ * serialized as a directory, computing the digest of each file from the
+ * same read that stages it (one digest per manifest, all fed from the same
+ * buffer).  Files are staged by a bounded pool of worker
+ * threads so that many files may be hashed at once; the resulting manifest
+ * entries are independent of the order in which the workers finish.  When a
+ * checksum cache is supplied, files whose checksums are cached are linked
+ * without being read at all (or copied without being hashed).
+ * <p>
+ * How files are placed is decided for each pair of source and destination
+ * file stores and remembered: files on a different store than the bag are
+ * copied without attempting a link, while for a store shared with the bag a
+ * probe file (a link or clone of the first payload file, made beside the
+ * destination and then deleted) determines whether files are hard linked,
+ * cloned or copied.  A store pair is probed again once a link or clone fails
+ * for it, and every decision may be forgotten with clearStrategies().
+ */
+class PayloadStager {
+
+    final private static Logger LOGGER = LoggerFactory.getLogger(PayloadStager.class);
+
+    /**
+     * Files smaller than this are copied rather than cloned.  Each clone forks
+     * and waits for a "cp" process, which takes a few milliseconds (recorded,
+     * with the hard links, as the LINK phase), while a file that isn't in the
+     * checksum cache must be read to be hashed whether or not it is cloned, so
+     * cloning only pays for itself by saving the write of a large file.
+     */
+    private static final long CLONE_THRESHOLD = 16 * 1024 * 1024;
+
+    /**
+     * The number of source directories whose file stores are remembered.
+     */
+    private static final int SOURCE_STORE_CACHE_SIZE = 256;
+
+    /**
+     * The strategy chosen for each pair of source and destination file stores.
+     */
+    private static final ConcurrentMap<List<FileStore>, StagingStrategy> STRATEGIES =
+            new ConcurrentHashMap<List<FileStore>, StagingStrategy>();
+
+    private final APTrustBag bag;
+
+    private final File dataDir;
+
+    private final int parallelism;
+
+    private final ChecksumCache checksumCache;
+
+    private final ManifestSpool spool;
+
+    private final BagMetrics metrics;
+
+    private final ProgressTracker progress;
+
+    /**
+     * The file store of each of the directories from which payload files were
+     * most recently staged (a payload is usually supplied a directory at a
+     * time, so a few are enough however many directories there are).
+     */
+    private final Map<Path, FileStore> sourceStores = Collections.synchronizedMap(new LinkedHashMap<Path, FileStore>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, FileStore> eldest) {
+            return size() > SOURCE_STORE_CACHE_SIZE;
+        }
+    });
+
+    private volatile FileStore destinationStore;
+
+    private final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(StreamUtils.BUFFER_SIZE);
+        }
+    };
+
+    /**
+     * Forgets the strategy chosen for every pair of file stores, so that each
+     * is probed again (for instance, after a file system is remounted).
+     */
+    static void clearStrategies() {
+        STRATEGIES.clear();
+    }
+
+    /**
+     * @param bag the bag whose payload is being staged (and which will be
+     *            notified as each payload file is no longer needed), or null
+     *            if no notification is needed
+     * @param dataDir the data directory of the bag
+     * @param parallelism the number of files to stage and hash at once
+     * @param checksumCache a cache of previously computed checksums, or null
+     * @param spool the spool to which manifest entries are added, or null if
+     *              they should be added to the manifests themselves
+     * @param metrics the metrics into which linking, hashing and copying are recorded
+     * @param progress the progress to which staged bytes are added, or null
+     */
+    PayloadStager(APTrustBag bag, File dataDir, int parallelism, ChecksumCache checksumCache, ManifestSpool spool,
+                  BagMetrics metrics, ProgressTracker progress) {
+        this.bag = bag;
+        this.dataDir = dataDir;
+        this.parallelism = parallelism;
+        this.checksumCache = checksumCache;
+        this.spool = spool;
+        this.metrics = metrics;
+        this.progress = progress;
+    }
+
+    /**
+     * Stages every payload file, adding an entry for each to every one of the
+     * given manifests (or to the spool).  The payload is iterated over once and
+     * only a few files more than the parallelism are in flight at a time.
+     * Payload files are freed (on the calling thread) in the order they were
+     * supplied once they have been staged.
+     * @return the total size of the payload
+     */
+    long stage(final Iterable<PendingPayloadFile> payload, final List<Manifest> manifests) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            long payloadSize = 0;
+            final LinkedList<PendingPayloadFile> inFlightFiles = new LinkedList<PendingPayloadFile>();
+            final LinkedList<Future<StagedFile>> inFlight = new LinkedList<Future<StagedFile>>();
+            for (final PendingPayloadFile payloadFile : payload) {
+                if (inFlight.size() >= parallelism * 2) {
+                    payloadSize += complete(inFlightFiles.removeFirst(), inFlight.removeFirst(), manifests);
+                }
+                inFlightFiles.add(payloadFile);
+                inFlight.add(executor.submit(new Callable<StagedFile>() {
+                    @Override
+                    public StagedFile call() throws Exception {
+                        final ChecksumCache.FileIdentity id = checksumCache == null || payloadFile.getFile() == null
+                                ? null : checksumCache.identify(payloadFile.getFile());
+                        final String[] cached = id == null
+                                ? ManifestDigester.getSuppliedChecksums(payloadFile.getSource(), manifests)
+                                : checksumCache.get(id, manifests);
+                        final ManifestDigester digester = cached == null ? new ManifestDigester(manifests) : null;
+                        final Path destination = new File(dataDir, payloadFile.getPathWithinPayload()).toPath();
+                        final long size = stagePayloadFile(payloadFile, destination, digester);
+                        if (cached != null) {
+                            return new StagedFile(destination, size, cached);
+                        }
+                        final String[] checksums = digester.finish();
+                        if (id != null) {
+                            checksumCache.put(id, manifests, checksums);
+                        }
+                        return new StagedFile(destination, size, checksums);
+                    }
+                }));
+            }
+            while (!inFlight.isEmpty()) {
+                payloadSize += complete(inFlightFiles.removeFirst(), inFlight.removeFirst(), manifests);
+            }
+            return payloadSize;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private long complete(PendingPayloadFile payloadFile, Future<StagedFile> future, List<Manifest> manifests) throws Exception {
+        final StagedFile staged;
+        try {
+            staged = future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+        if (spool != null) {
+            spool.add("data/" + payloadFile.getPathWithinPayload(), staged.checksums);
+        } else {
+            ManifestDigester.addEntry(manifests, staged.path, staged.checksums);
+        }
+        if (bag != null) {
+            bag.freePayloadFile(payloadFile);
+        }
+        return staged.size;
+    }
+
+    /**
+     * Places the payload file at the given destination within the bag directory,
+     * updating the digests with its content.  A hard link (or clone) is preferred,
+     * in which case the file is read once to compute the digests.  When the file
+     * is not linked it is copied through file channels and the digests are computed from
+     * the same read as the copy (or, when there's nothing to compute, the copy is
+     * left to the operating system).  Content that isn't in a local file is copied
+     * from its source.
+     * @param digester the digests to update, or null if the checksums are
+     *                 already known (in which case a linked file isn't read)
+     * @return the size of the payload file
+     */
+    private long stagePayloadFile(PendingPayloadFile payloadFile, Path destination, ManifestDigester digester) throws IOException {
+        Files.createDirectories(destination.getParent());
+        long start = System.nanoTime();
+        final StagingStrategy strategy = payloadFile.getFile() == null
+                ? StagingStrategy.COPY : place(payloadFile.getFile().toPath(), destination);
+        metrics.recordStaging(strategy);
+        final boolean linked = strategy != StagingStrategy.COPY;
+        if (linked) {
+            metrics.record(BagMetrics.Phase.LINK, System.nanoTime() - start, 0, 1);
+            start = System.nanoTime();
+        }
+        final String path = payloadFile.getPathWithinPayload();
+        if (linked && digester == null) {
+            final long size = Files.size(destination);
+            if (progress != null) {
+                progress.begin(BagMetrics.Phase.LINK, path);
+                progress.add(size);
+            }
+            return size;
+        }
+        if (progress != null) {
+            progress.begin(linked ? BagMetrics.Phase.HASH : BagMetrics.Phase.COPY, path);
+        }
+        final List<MessageDigest> digests = digester == null ? Collections.<MessageDigest>emptyList() : digester.getDigests();
+        final long size;
+        if (payloadFile.getFile() == null) {
+            final InputStream in = payloadFile.getSource().openStream();
+            try {
+                final OutputStream out = Files.newOutputStream(destination, StandardOpenOption.CREATE_NEW);
+                try {
+                    size = StreamUtils.copy(in, out, buffers.get().array(), digests, progress);
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+        } else {
+            final FileChannel in = FileChannel.open(payloadFile.getFile().toPath(), StandardOpenOption.READ);
+            try {
+                if (linked) {
+                    size = StreamUtils.copy(in, null, buffers.get(), digests, progress);
+                } else {
+                    final FileChannel out = FileChannel.open(destination, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                    try {
+                        size = StreamUtils.copy(in, out, buffers.get(), digests, progress);
+                    } finally {
+                        out.close();
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        }
+        metrics.record(linked ? BagMetrics.Phase.HASH : BagMetrics.Phase.COPY, System.nanoTime() - start, size, 1);
+        return size;
+    }
+
+    /**
+     * Links or clones the file to the destination if the strategy for their
+     * file stores allows (and, for a clone, the file is large enough), probing
+     * the stores if no strategy has been chosen yet.  If the link or clone
+     * fails, the strategy is forgotten so that the stores are probed again.
+     * @return the strategy by which the file was placed, or COPY if it wasn't
+     */
+    private StagingStrategy place(Path source, Path destination) throws IOException {
+        final List<FileStore> stores = Arrays.asList(getSourceStore(source), getDestinationStore(destination));
+        StagingStrategy strategy = STRATEGIES.get(stores);
+        if (strategy == null) {
+            strategy = probe(stores, source, destination.getParent());
+        }
+        if (strategy == StagingStrategy.COPY
+                || (strategy == StagingStrategy.CLONE && Files.size(source) < CLONE_THRESHOLD)) {
+            return StagingStrategy.COPY;
+        } else if (strategy == StagingStrategy.HARD_LINK ? link(source, destination) : clone(source, destination)) {
+            return strategy;
+        }
+        if (STRATEGIES.remove(stores, strategy)) {
+            LOGGER.info("Unable to stage " + source + " by " + strategy + "; " + stores.get(0) + " will be probed again.");
+        }
+        return StagingStrategy.COPY;
+    }
+
+    /**
+     * Chooses the strategy for a pair of file stores by linking (or failing
+     * that, cloning) the source file to a probe file in the given destination
+     * directory, which is then deleted.
+     */
+    private StagingStrategy probe(List<FileStore> stores, Path source, Path dir) throws IOException {
+        StagingStrategy chosen = StagingStrategy.COPY;
+        if (stores.get(0).equals(stores.get(1))) {
+            final Path probe = dir.resolve(".probe-" + UUID.randomUUID().toString());
+            try {
+                if (link(source, probe)) {
+                    chosen = StagingStrategy.HARD_LINK;
+                } else if (clone(source, probe)) {
+                    chosen = StagingStrategy.CLONE;
+                }
+            } finally {
+                Files.deleteIfExists(probe);
+            }
+        }
+        final StagingStrategy previous = STRATEGIES.putIfAbsent(stores, chosen);
+        if (previous != null) {
+            return previous;
+        }
+        LOGGER.info("Staging payload files from " + stores.get(0) + " into " + stores.get(1) + " by " + chosen + ".");
+        return chosen;
+    }
+
+    private FileStore getSourceStore(Path source) throws IOException {
+        final Path dir = source.toAbsolutePath().getParent();
+        FileStore store = sourceStores.get(dir);
+        if (store == null) {
+            store = Files.getFileStore(source);
+            sourceStores.put(dir, store);
+        }
+        return store;
+    }
+
+    private FileStore getDestinationStore(Path destination) throws IOException {
+        if (destinationStore == null) {
+            destinationStore = Files.getFileStore(destination.getParent());
+        }
+        return destinationStore;
+    }
+
+    private static boolean link(Path source, Path destination) {
+        try {
+            Files.createLink(destination, source);
+            return true;
+        } catch (UnsupportedOperationException e) {
+            LOGGER.debug("Unable to hard link " + source + ": " + e.getMessage());
+            return false;
+        } catch (IOException e) {
+            LOGGER.debug("Unable to hard link " + source + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Makes a copy-on-write clone of the file, which Java has no API for, using
+     * "cp --reflink=always" (which fails rather than copying where cloning isn't
+     * supported).  This runs a process per file, so it is only used for files
+     * of at least CLONE_THRESHOLD bytes.
+     */
+    private static boolean clone(Path source, Path destination) throws IOException {
+        final Process p;
+        try {
+            p = new ProcessBuilder("cp", "--reflink=always", source.toString(), destination.toString())
+                    .redirectErrorStream(true).start();
+        } catch (IOException e) {
+            LOGGER.debug("Unable to clone " + source + ": " + e.getMessage());
+            return false;
+        }
+        new OutputDrainerThread(p.getInputStream()).run();
+        try {
+            if (p.waitFor() == 0) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            p.destroy();
+            throw new InterruptedIOException("Interrupted while cloning " + source + "!");
+        }
+        Files.deleteIfExists(destination);
+        return false;
+    }
+
+    private static class StagedFile {
+
+        private final Path path;
+
+        private final long size;
+
+        private final String[] checksums;
+
+        private StagedFile(Path path, long size, String[] checksums) {
+            this.path = path;
+            this.size = size;
+            this.checksums = checksums;
+        }
+    }
+
+}
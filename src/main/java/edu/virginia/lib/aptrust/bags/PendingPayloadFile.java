@@ -8,22 +8,46 @@ public class PendingPayloadFile {
 
     private File file;
 
+    private PayloadSource source;
+
     public PendingPayloadFile(final File file) {
         this.file = file;
         this.path = file.getName();
+        this.source = new FilePayloadSource(file);
     }
 
     public PendingPayloadFile(final File file, final String path) {
         this.file = file;
         this.path = path;
+        this.source = new FilePayloadSource(file);
+    }
+
+    /**
+     * Creates a payload file whose content is read from the given source
+     * rather than from a local file.
+     */
+    public PendingPayloadFile(final PayloadSource source, final String path) {
+        this.source = source;
+        this.path = path;
+        if (source instanceof FilePayloadSource) {
+            this.file = ((FilePayloadSource) source).getFile();
+        }
     }
 
     public String getPathWithinPayload() {
         return path;
     }
 
+    /**
+     * Gets the local file containing the content, or null if the content is
+     * only available from the source.
+     */
     public File getFile() {
         return file;
     }
 
+    public PayloadSource getSource() {
+        return source;
+    }
+
 }
@@ -0,0 +1,109 @@
+package edu.virginia.lib.aptrust.bags;
+
+/**
+ * A snapshot of the progress of a bag that is being serialized or transferred.
+ */
+public class Progress {
+
+    private final String bagName;
+
+    private final BagMetrics.Phase phase;
+
+    private final String currentFile;
+
+    private final long bytesProcessed;
+
+    private final long totalBytes;
+
+    private final double bytesPerSecond;
+
+    private final long elapsedMillis;
+
+    private final boolean finished;
+
+    Progress(String bagName, BagMetrics.Phase phase, String currentFile, long bytesProcessed, long totalBytes,
+             double bytesPerSecond, long elapsedMillis, boolean finished) {
+        this.bagName = bagName;
+        this.phase = phase;
+        this.currentFile = currentFile;
+        this.bytesProcessed = bytesProcessed;
+        this.totalBytes = totalBytes;
+        this.bytesPerSecond = bytesPerSecond;
+        this.elapsedMillis = elapsedMillis;
+        this.finished = finished;
+    }
+
+    public String getBagName() {
+        return bagName;
+    }
+
+    /**
+     * Gets the phase of the work in progress, or null if none has begun.
+     */
+    public BagMetrics.Phase getPhase() {
+        return phase;
+    }
+
+    /**
+     * Gets the path (within the bag) of the file most recently begun or, for a
+     * transfer, the most recently begun part (e.g. "part 3"), or null if none
+     * has begun.
+     */
+    public String getCurrentFile() {
+        return currentFile;
+    }
+
+    public long getBytesProcessed() {
+        return bytesProcessed;
+    }
+
+    /**
+     * Gets the total number of bytes to be processed, or -1 if it isn't known
+     * (for instance, when the length of some payload content isn't known in
+     * advance).
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Gets the recent throughput: a moving average of the rate measured over
+     * each reporting interval.
+     */
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * Gets the estimated time until the work is done at the recent throughput,
+     * or -1 if it can't be estimated.
+     */
+    public long getEstimatedMillisRemaining() {
+        if (finished) {
+            return 0;
+        }
+        if (totalBytes < 0 || bytesPerSecond <= 0) {
+            return -1;
+        }
+        return (long) (Math.max(0, totalBytes - bytesProcessed) / bytesPerSecond * 1000);
+    }
+
+    /**
+     * Returns true if this is the final report for the work.
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    @Override
+    public String toString() {
+        return bagName + " " + phase + " " + (currentFile == null ? "" : currentFile + " ") + bytesProcessed
+                + (totalBytes < 0 ? "" : "/" + totalBytes) + " bytes "
+                + String.format("%.1f", bytesPerSecond / (1024 * 1024)) + " MB/s"
+                + (getEstimatedMillisRemaining() < 0 ? "" : " ETA " + getEstimatedMillisRemaining() / 1000 + "s");
+    }
+}
@@ -0,0 +1,14 @@
+package edu.virginia.lib.aptrust.bags;
+
+/**
+ * Receives periodic reports of the progress of a bag that is being serialized
+ * or transferred.  Reports are throttled (to one per configured interval, plus
+ * a final one when the work is done) so a listener may be left in place for
+ * every bag.  Calls are made from whichever thread is doing the work, but are
+ * never made concurrently for the same bag; they should return quickly.
+ */
+public interface ProgressListener {
+
+    void progress(Progress progress);
+
+}
@@ -0,0 +1,105 @@
+package edu.virginia.lib.aptrust.bags;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accumulates the progress of one serialization or transfer and reports it to
+ * a ProgressListener at most once per interval.  Progress is added in chunks
+ * (once per buffer copied or per part uploaded), and adding costs an atomic
+ * add and a clock read, so tracking may be left on for every bag.  The
+ * throughput reported is an exponential moving average of the rate measured
+ * over each interval, which follows changes in speed without jumping with
+ * every report.  Progress may be added from several threads at once.
+ */
+public class ProgressTracker {
+
+    /**
+     * The weight of the most recent interval in the moving average.
+     */
+    private static final double SMOOTHING = 0.3;
+
+    private final String bagName;
+
+    private final ProgressListener listener;
+
+    private final long intervalNanos;
+
+    private final long totalBytes;
+
+    private final long startTime = System.nanoTime();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final AtomicLong nextReport;
+
+    private volatile BagMetrics.Phase phase;
+
+    private volatile String currentFile;
+
+    private long lastReportTime = startTime;
+
+    private long lastReportBytes;
+
+    private double bytesPerSecond = -1;
+
+    private boolean finished;
+
+    /**
+     * @param totalBytes the number of bytes that will be processed, or -1 if
+     *                   it isn't known
+     */
+    public ProgressTracker(final String bagName, final ProgressListener listener, final long intervalMillis,
+                           final long totalBytes) {
+        this.bagName = bagName;
+        this.listener = listener;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.totalBytes = totalBytes;
+        this.nextReport = new AtomicLong(startTime + intervalNanos);
+    }
+
+    /**
+     * Notes the file (or part) that is being begun and the phase it is in.
+     */
+    public void begin(final BagMetrics.Phase phase, final String file) {
+        this.phase = phase;
+        this.currentFile = file;
+    }
+
+    /**
+     * Adds processed bytes, reporting progress if the interval has passed.  A
+     * negative count withdraws bytes (for instance, from a failed attempt).
+     */
+    public void add(final long count) {
+        bytes.addAndGet(count);
+        final long now = System.nanoTime();
+        final long next = nextReport.get();
+        // only the thread that advances the deadline reports
+        if (now >= next && nextReport.compareAndSet(next, now + intervalNanos)) {
+            report(now, false);
+        }
+    }
+
+    /**
+     * Makes the final report.  Subsequent calls do nothing.
+     */
+    public void finish() {
+        report(System.nanoTime(), true);
+    }
+
+    private synchronized void report(final long now, final boolean last) {
+        if (finished) {
+            return;
+        }
+        finished = last;
+        final long processed = bytes.get();
+        if (now > lastReportTime) {
+            final double rate = (processed - lastReportBytes) * 1000000000.0 / (now - lastReportTime);
+            bytesPerSecond = bytesPerSecond < 0 ? rate : SMOOTHING * rate + (1 - SMOOTHING) * bytesPerSecond;
+        }
+        lastReportTime = now;
+        lastReportBytes = processed;
+        listener.progress(new Progress(bagName, phase, currentFile, processed, totalBytes, Math.max(bytesPerSecond, 0),
+                TimeUnit.NANOSECONDS.toMillis(now - startTime), last));
+    }
+}
@@ -0,0 +1,92 @@
+package edu.virginia.lib.aptrust.bags;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of restoring a serialized bag with a BagRestorer: the bag
+ * directory that was written, any problems found and the throughput of the
+ * restore.
+ */
+public class RestoreSummary {
+
+    private final File bagDir;
+
+    private final List<String> errors;
+
+    private final List<String> mismatches;
+
+    private final int payloadFileCount;
+
+    private final long payloadSize;
+
+    private final long elapsedNanos;
+
+    public RestoreSummary(File bagDir, List<String> errors, List<String> mismatches, int payloadFileCount,
+                          long payloadSize, long elapsedNanos) {
+        this.bagDir = bagDir;
+        this.errors = Collections.unmodifiableList(new ArrayList<String>(errors));
+        this.mismatches = Collections.unmodifiableList(new ArrayList<String>(mismatches));
+        this.payloadFileCount = payloadFileCount;
+        this.payloadSize = payloadSize;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Gets the directory into which the bag was restored.
+     */
+    public File getBagDir() {
+        return bagDir;
+    }
+
+    /**
+     * True if every payload file was restored and matched the manifests.
+     */
+    public boolean isValid() {
+        return errors.isEmpty();
+    }
+
+    /**
+     * Gets a description of each problem found, including the mismatches.
+     */
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    /**
+     * Gets the paths (relative to the bag directory) of the payload files
+     * whose content didn't match a manifest.
+     */
+    public List<String> getMismatches() {
+        return mismatches;
+    }
+
+    public int getPayloadFileCount() {
+        return payloadFileCount;
+    }
+
+    public long getPayloadSize() {
+        return payloadSize;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Gets the rate at which payload bytes were restored.
+     */
+    public double getBytesPerSecond() {
+        return elapsedNanos == 0 ? 0 : payloadSize * 1000000000d / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return bagDir.getName() + (isValid() ? " restored" : " restored with " + errors.size() + " error(s)") + " ("
+                + payloadFileCount + " files, " + payloadSize + " bytes, "
+                + String.format("%.1f", getBytesPerSecond() / (1024 * 1024)) + " MB/s)";
+    }
+
+}
@@ -0,0 +1,230 @@
+package edu.virginia.lib.aptrust.bags;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+import java.util.Arrays;
+
+/**
+ * An MD5 digest (RFC 1321) whose intermediate state may be saved as a string
+ * and restored later, which MessageDigest doesn't allow.  A TarIndex records
+ * the state of the MD5 of a tar where its tag files begin, so that entries may
+ * be appended in their place and the MD5 of the updated tar computed without
+ * reading the entries before them again.
+ */
+final class ResumableMd5 {
+
+    private final int[] state = { 0x67452301, 0xefcdab89, 0x98badcfe, 0x10325476 };
+
+    private final byte[] block = new byte[64];
+
+    private long count;
+
+    public void update(int b) {
+        block[(int) (count & 63)] = (byte) b;
+        count ++;
+        if ((count & 63) == 0) {
+            transform(block, 0);
+        }
+    }
+
+    public void update(byte[] b, int off, int len) {
+        int buffered = (int) (count & 63);
+        count += len;
+        if (buffered > 0) {
+            final int n = Math.min(len, 64 - buffered);
+            System.arraycopy(b, off, block, buffered, n);
+            off += n;
+            len -= n;
+            if (buffered + n < 64) {
+                return;
+            }
+            transform(block, 0);
+        }
+        for (; len >= 64; off += 64, len -= 64) {
+            transform(b, off);
+        }
+        System.arraycopy(b, off, block, 0, len);
+    }
+
+    /**
+     * Gets the number of bytes the digest has been updated with.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Gets the MD5 of what the digest has been updated with, leaving it
+     * unchanged so that it may be updated further.
+     */
+    public byte[] digest() {
+        final ResumableMd5 copy = restore(save());
+        final long bits = count << 3;
+        copy.update(0x80);
+        while ((copy.count & 63) != 56) {
+            copy.update(0);
+        }
+        for (int i = 0; i < 8; i ++) {
+            copy.update((int) (bits >>> (8 * i)));
+        }
+        final byte[] md5 = new byte[16];
+        for (int i = 0; i < 16; i ++) {
+            md5[i] = (byte) (copy.state[i / 4] >>> (8 * (i % 4)));
+        }
+        return md5;
+    }
+
+    /**
+     * Saves the state of the digest as a string (of hex digits and colons)
+     * from which restore() creates an equivalent digest.
+     */
+    public String save() {
+        final StringBuilder sb = new StringBuilder();
+        for (int s : state) {
+            sb.append(String.format("%08x", s)).append(':');
+        }
+        return sb.append(count).append(':')
+                .append(Hex.encodeHex(Arrays.copyOf(block, (int) (count & 63)))).toString();
+    }
+
+    /**
+     * Restores a digest from its saved state.
+     * @throws IllegalArgumentException if the state is malformed
+     */
+    public static ResumableMd5 restore(String saved) {
+        final String[] fields = saved.split(":", -1);
+        if (fields.length != 6) {
+            throw new IllegalArgumentException("Invalid MD5 state: " + saved);
+        }
+        try {
+            final ResumableMd5 md5 = new ResumableMd5();
+            for (int i = 0; i < 4; i ++) {
+                md5.state[i] = (int) Long.parseLong(fields[i], 16);
+            }
+            md5.count = Long.parseLong(fields[4]);
+            final byte[] buffered = Hex.decodeHex(fields[5].toCharArray());
+            if (md5.count < 0 || buffered.length != (md5.count & 63)) {
+                throw new IllegalArgumentException("Invalid MD5 state: " + saved);
+            }
+            System.arraycopy(buffered, 0, md5.block, 0, buffered.length);
+            return md5;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid MD5 state: " + saved, e);
+        } catch (DecoderException e) {
+            throw new IllegalArgumentException("Invalid MD5 state: " + saved, e);
+        }
+    }
+
+    private void transform(byte[] buf, int off) {
+        final int x0 = (buf[off + 0] & 0xff) | (buf[off + 1] & 0xff) << 8 | (buf[off + 2] & 0xff) << 16 | buf[off + 3] << 24;
+        final int x1 = (buf[off + 4] & 0xff) | (buf[off + 5] & 0xff) << 8 | (buf[off + 6] & 0xff) << 16 | buf[off + 7] << 24;
+        final int x2 = (buf[off + 8] & 0xff) | (buf[off + 9] & 0xff) << 8 | (buf[off + 10] & 0xff) << 16 | buf[off + 11] << 24;
+        final int x3 = (buf[off + 12] & 0xff) | (buf[off + 13] & 0xff) << 8 | (buf[off + 14] & 0xff) << 16 | buf[off + 15] << 24;
+        final int x4 = (buf[off + 16] & 0xff) | (buf[off + 17] & 0xff) << 8 | (buf[off + 18] & 0xff) << 16 | buf[off + 19] << 24;
+        final int x5 = (buf[off + 20] & 0xff) | (buf[off + 21] & 0xff) << 8 | (buf[off + 22] & 0xff) << 16 | buf[off + 23] << 24;
+        final int x6 = (buf[off + 24] & 0xff) | (buf[off + 25] & 0xff) << 8 | (buf[off + 26] & 0xff) << 16 | buf[off + 27] << 24;
+        final int x7 = (buf[off + 28] & 0xff) | (buf[off + 29] & 0xff) << 8 | (buf[off + 30] & 0xff) << 16 | buf[off + 31] << 24;
+        final int x8 = (buf[off + 32] & 0xff) | (buf[off + 33] & 0xff) << 8 | (buf[off + 34] & 0xff) << 16 | buf[off + 35] << 24;
+        final int x9 = (buf[off + 36] & 0xff) | (buf[off + 37] & 0xff) << 8 | (buf[off + 38] & 0xff) << 16 | buf[off + 39] << 24;
+        final int x10 = (buf[off + 40] & 0xff) | (buf[off + 41] & 0xff) << 8 | (buf[off + 42] & 0xff) << 16 | buf[off + 43] << 24;
+        final int x11 = (buf[off + 44] & 0xff) | (buf[off + 45] & 0xff) << 8 | (buf[off + 46] & 0xff) << 16 | buf[off + 47] << 24;
+        final int x12 = (buf[off + 48] & 0xff) | (buf[off + 49] & 0xff) << 8 | (buf[off + 50] & 0xff) << 16 | buf[off + 51] << 24;
+        final int x13 = (buf[off + 52] & 0xff) | (buf[off + 53] & 0xff) << 8 | (buf[off + 54] & 0xff) << 16 | buf[off + 55] << 24;
+        final int x14 = (buf[off + 56] & 0xff) | (buf[off + 57] & 0xff) << 8 | (buf[off + 58] & 0xff) << 16 | buf[off + 59] << 24;
+        final int x15 = (buf[off + 60] & 0xff) | (buf[off + 61] & 0xff) << 8 | (buf[off + 62] & 0xff) << 16 | buf[off + 63] << 24;
+        int a = state[0];
+        int b = state[1];
+        int c = state[2];
+        int d = state[3];
+
+        a = ff(a, b, c, d, x0, 7, 0xd76aa478);
+        d = ff(d, a, b, c, x1, 12, 0xe8c7b756);
+        c = ff(c, d, a, b, x2, 17, 0x242070db);
+        b = ff(b, c, d, a, x3, 22, 0xc1bdceee);
+        a = ff(a, b, c, d, x4, 7, 0xf57c0faf);
+        d = ff(d, a, b, c, x5, 12, 0x4787c62a);
+        c = ff(c, d, a, b, x6, 17, 0xa8304613);
+        b = ff(b, c, d, a, x7, 22, 0xfd469501);
+        a = ff(a, b, c, d, x8, 7, 0x698098d8);
+        d = ff(d, a, b, c, x9, 12, 0x8b44f7af);
+        c = ff(c, d, a, b, x10, 17, 0xffff5bb1);
+        b = ff(b, c, d, a, x11, 22, 0x895cd7be);
+        a = ff(a, b, c, d, x12, 7, 0x6b901122);
+        d = ff(d, a, b, c, x13, 12, 0xfd987193);
+        c = ff(c, d, a, b, x14, 17, 0xa679438e);
+        b = ff(b, c, d, a, x15, 22, 0x49b40821);
+
+        a = gg(a, b, c, d, x1, 5, 0xf61e2562);
+        d = gg(d, a, b, c, x6, 9, 0xc040b340);
+        c = gg(c, d, a, b, x11, 14, 0x265e5a51);
+        b = gg(b, c, d, a, x0, 20, 0xe9b6c7aa);
+        a = gg(a, b, c, d, x5, 5, 0xd62f105d);
+        d = gg(d, a, b, c, x10, 9, 0x02441453);
+        c = gg(c, d, a, b, x15, 14, 0xd8a1e681);
+        b = gg(b, c, d, a, x4, 20, 0xe7d3fbc8);
+        a = gg(a, b, c, d, x9, 5, 0x21e1cde6);
+        d = gg(d, a, b, c, x14, 9, 0xc33707d6);
+        c = gg(c, d, a, b, x3, 14, 0xf4d50d87);
+        b = gg(b, c, d, a, x8, 20, 0x455a14ed);
+        a = gg(a, b, c, d, x13, 5, 0xa9e3e905);
+        d = gg(d, a, b, c, x2, 9, 0xfcefa3f8);
+        c = gg(c, d, a, b, x7, 14, 0x676f02d9);
+        b = gg(b, c, d, a, x12, 20, 0x8d2a4c8a);
+
+        a = hh(a, b, c, d, x5, 4, 0xfffa3942);
+        d = hh(d, a, b, c, x8, 11, 0x8771f681);
+        c = hh(c, d, a, b, x11, 16, 0x6d9d6122);
+        b = hh(b, c, d, a, x14, 23, 0xfde5380c);
+        a = hh(a, b, c, d, x1, 4, 0xa4beea44);
+        d = hh(d, a, b, c, x4, 11, 0x4bdecfa9);
+        c = hh(c, d, a, b, x7, 16, 0xf6bb4b60);
+        b = hh(b, c, d, a, x10, 23, 0xbebfbc70);
+        a = hh(a, b, c, d, x13, 4, 0x289b7ec6);
+        d = hh(d, a, b, c, x0, 11, 0xeaa127fa);
+        c = hh(c, d, a, b, x3, 16, 0xd4ef3085);
+        b = hh(b, c, d, a, x6, 23, 0x04881d05);
+        a = hh(a, b, c, d, x9, 4, 0xd9d4d039);
+        d = hh(d, a, b, c, x12, 11, 0xe6db99e5);
+        c = hh(c, d, a, b, x15, 16, 0x1fa27cf8);
+        b = hh(b, c, d, a, x2, 23, 0xc4ac5665);
+
+        a = ii(a, b, c, d, x0, 6, 0xf4292244);
+        d = ii(d, a, b, c, x7, 10, 0x432aff97);
+        c = ii(c, d, a, b, x14, 15, 0xab9423a7);
+        b = ii(b, c, d, a, x5, 21, 0xfc93a039);
+        a = ii(a, b, c, d, x12, 6, 0x655b59c3);
+        d = ii(d, a, b, c, x3, 10, 0x8f0ccc92);
+        c = ii(c, d, a, b, x10, 15, 0xffeff47d);
+        b = ii(b, c, d, a, x1, 21, 0x85845dd1);
+        a = ii(a, b, c, d, x8, 6, 0x6fa87e4f);
+        d = ii(d, a, b, c, x15, 10, 0xfe2ce6e0);
+        c = ii(c, d, a, b, x6, 15, 0xa3014314);
+        b = ii(b, c, d, a, x13, 21, 0x4e0811a1);
+        a = ii(a, b, c, d, x4, 6, 0xf7537e82);
+        d = ii(d, a, b, c, x11, 10, 0xbd3af235);
+        c = ii(c, d, a, b, x2, 15, 0x2ad7d2bb);
+        b = ii(b, c, d, a, x9, 21, 0xeb86d391);
+
+        state[0] += a;
+        state[1] += b;
+        state[2] += c;
+        state[3] += d;
+    }
+
+    private static int ff(int a, int b, int c, int d, int x, int s, int t) {
+        return Integer.rotateLeft(a + ((b & c) | (~b & d)) + x + t, s) + b;
+    }
+
+    private static int gg(int a, int b, int c, int d, int x, int s, int t) {
+        return Integer.rotateLeft(a + ((b & d) | (c & ~d)) + x + t, s) + b;
+    }
+
+    private static int hh(int a, int b, int c, int d, int x, int s, int t) {
+        return Integer.rotateLeft(a + (b ^ c ^ d) + x + t, s) + b;
+    }
+
+    private static int ii(int a, int b, int c, int d, int x, int s, int t) {
+        return Integer.rotateLeft(a + (c ^ (b | ~d)) + x + t, s) + b;
+    }
+}
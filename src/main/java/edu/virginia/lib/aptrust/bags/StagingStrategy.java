@@ -0,0 +1,24 @@
+package edu.virginia.lib.aptrust.bags;
+
+/**
+ * The ways a payload file may be placed into the data directory of a bag that
+ * is serialized as a directory.  The strategy is chosen once for each pair of
+ * source and destination file stores: the first that works for the first file
+ * staged between them is used for every later file.
+ */
+public enum StagingStrategy {
+    /**
+     * Hard linking the file, which requires the source and destination to be
+     * on the same file store.
+     */
+    HARD_LINK,
+    /**
+     * Cloning the file with a copy-on-write (reflink) copy, for file stores
+     * that support it but on which the file can't be linked.
+     */
+    CLONE,
+    /**
+     * Copying the content through file channels.
+     */
+    COPY
+}
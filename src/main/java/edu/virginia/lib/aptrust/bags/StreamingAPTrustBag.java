@@ -0,0 +1,38 @@
+package edu.virginia.lib.aptrust.bags;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An APTrustBag whose payload is supplied lazily (for instance, by walking a
+ * directory tree) rather than as a list, so that only the files being staged
+ * or tarred at any moment are held in memory.  The total length of such a
+ * payload isn't known, so progress reports for it have no estimated time
+ * remaining.
+ */
+public abstract class StreamingAPTrustBag extends APTrustBag {
+
+    public StreamingAPTrustBag(final String institutionId, final BagInfo bagInfo, final APTrustInfo aptrustInfo) {
+        super(institutionId, bagInfo, aptrustInfo);
+    }
+
+    /**
+     * Gets the payload, which is iterated over once each time the bag is
+     * serialized.
+     */
+    @Override
+    protected abstract Iterable<PendingPayloadFile> getPayload() throws Exception;
+
+    /**
+     * Gets the payload files by iterating over the whole payload, which holds
+     * every one of them in memory; serialization never calls this.
+     */
+    @Override
+    protected final List<PendingPayloadFile> getPayloadFiles() throws Exception {
+        final List<PendingPayloadFile> files = new ArrayList<PendingPayloadFile>();
+        for (PendingPayloadFile f : getPayload()) {
+            files.add(f);
+        }
+        return files;
+    }
+}
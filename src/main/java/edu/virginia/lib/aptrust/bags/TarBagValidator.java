@@ -0,0 +1,531 @@
+package edu.virginia.lib.aptrust.bags;
+
+import edu.virginia.lib.aptrust.bags.util.StreamUtils;
+import gov.loc.repository.bagit.exceptions.UnsupportedAlgorithmException;
+import gov.loc.repository.bagit.hash.StandardBagitAlgorithmNameToSupportedAlgorithmMapping;
+import gov.loc.repository.bagit.hash.StandardSupportedAlgorithms;
+import gov.loc.repository.bagit.hash.SupportedAlgorithm;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Validates serialized (tar) bags without extracting them.  Each tar is read
+ * once as a stream: payload entries are hashed as they pass and tag files are
+ * hashed and parsed, so nothing but the manifests and the digests of payload
+ * files that precede them is held in memory.  The manifests may appear
+ * anywhere in the tar; payload entries read before any manifest are hashed
+ * with each of the expected algorithms and their digests kept until the
+ * manifests are reached, while those read afterward are checked immediately.
+ * Only when a manifest names an algorithm that wasn't computed is the tar read
+ * a second time.
+ * <p>
+ * Beyond the manifests and tag manifests, the validator checks that every
+ * entry lies within a single bag directory named for the tar, that bagit.txt
+ * and bag-info.txt (with the required tags) are present and that
+ * aptrust-info.txt has a Title and a valid Access value.
+ * <pre>
+ *   List&lt;ValidationResult&gt; results = new TarBagValidator().threads(4).validateAll(tars);
+ * </pre>
+ */
+public class TarBagValidator {
+
+    final private static Logger LOGGER = LoggerFactory.getLogger(TarBagValidator.class);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String DATA = "data/";
+
+    private static final StandardBagitAlgorithmNameToSupportedAlgorithmMapping ALGORITHM_NAMES =
+            new StandardBagitAlgorithmNameToSupportedAlgorithmMapping();
+
+    private Set<SupportedAlgorithm> algorithms = Collections.<SupportedAlgorithm>singleton(StandardSupportedAlgorithms.SHA256);
+
+    private Set<String> requiredBagInfoTags = Collections.unmodifiableSet(
+            new LinkedHashSet<String>(Arrays.asList("Source-Organization", "Bagging-Date", "Bag-Count")));
+
+    private int threads = 1;
+
+    /**
+     * Sets the algorithms with which payload entries are hashed before the
+     * payload manifests have been read.  A bag whose manifests use other
+     * algorithms and that is read from a stream rather than a file is reported
+     * as invalid.  The default is SHA-256 alone, the algorithm of the manifests
+     * this library writes.
+     */
+    public TarBagValidator algorithms(SupportedAlgorithm ... algorithms) {
+        if (algorithms.length == 0) {
+            throw new IllegalArgumentException("At least one algorithm must be specified!");
+        }
+        this.algorithms = Collections.unmodifiableSet(new LinkedHashSet<SupportedAlgorithm>(Arrays.asList(algorithms)));
+        return this;
+    }
+
+    public Set<SupportedAlgorithm> getAlgorithms() {
+        return algorithms;
+    }
+
+    /**
+     * Sets the tags that must have a value in bag-info.txt.  The default is
+     * the tags APTrust requires values for: Source-Organization (which is
+     * only written when it is configured), Bagging-Date and Bag-Count.
+     */
+    public TarBagValidator requiredBagInfoTags(String ... tags) {
+        this.requiredBagInfoTags = Collections.unmodifiableSet(new LinkedHashSet<String>(Arrays.asList(tags)));
+        return this;
+    }
+
+    public Set<String> getRequiredBagInfoTags() {
+        return requiredBagInfoTags;
+    }
+
+    /**
+     * Sets the number of tars validateAll() reads at once.  The default is 1.
+     */
+    public TarBagValidator threads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is required!");
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Validates a tar file, whose name (less ".tar") must be the name of the
+     * bag within it.
+     */
+    public ValidationResult validate(final File tarFile) throws IOException {
+        final String bagName = tarFile.getName().endsWith(".tar")
+                ? tarFile.getName().substring(0, tarFile.getName().length() - 4) : tarFile.getName();
+        final Validation v = new Validation(bagName);
+        InputStream in = new FileInputStream(tarFile);
+        try {
+            v.read(in);
+        } finally {
+            in.close();
+        }
+        final Set<SupportedAlgorithm> missing = v.getUncomputedAlgorithms();
+        if (!missing.isEmpty()) {
+            LOGGER.debug("Rereading " + tarFile + " to compute " + missing + " digests.");
+            in = new FileInputStream(tarFile);
+            try {
+                v.reread(in, missing);
+            } finally {
+                in.close();
+            }
+        }
+        return v.finish();
+    }
+
+    /**
+     * Validates a tar read from a stream, which is not closed.
+     * @param bagName the expected name of the bag within the tar
+     */
+    public ValidationResult validate(final InputStream tar, final String bagName) throws IOException {
+        final Validation v = new Validation(bagName);
+        v.read(tar);
+        for (SupportedAlgorithm a : v.getUncomputedAlgorithms()) {
+            v.errors.add("Unable to verify manifest-" + a.getBagitName() + ".txt without reading the tar again!");
+        }
+        return v.finish();
+    }
+
+    /**
+     * Validates each of the tar files, reading as many at once as there are
+     * threads.  A tar that can't be read is reported as invalid.
+     * @return the results, in the order of the files
+     */
+    public List<ValidationResult> validateAll(final List<File> tarFiles) throws InterruptedException {
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, tarFiles.size())));
+        try {
+            final List<Future<ValidationResult>> futures = new ArrayList<Future<ValidationResult>>();
+            for (final File tarFile : tarFiles) {
+                futures.add(executor.submit(new Callable<ValidationResult>() {
+                    @Override
+                    public ValidationResult call() throws Exception {
+                        return validate(tarFile);
+                    }
+                }));
+            }
+            final List<ValidationResult> results = new ArrayList<ValidationResult>();
+            for (int i = 0; i < futures.size(); i ++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    LOGGER.warn("Unable to read " + tarFiles.get(i) + "!", e.getCause());
+                    results.add(new ValidationResult(tarFiles.get(i).getName(),
+                            Collections.singletonList("Unable to read tar: " + e.getCause()), 0, 0));
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static List<MessageDigest> createDigests(Iterable<SupportedAlgorithm> algorithms) {
+        final List<MessageDigest> digests = new ArrayList<MessageDigest>();
+        for (SupportedAlgorithm a : algorithms) {
+            try {
+                digests.add(MessageDigest.getInstance(a.getMessageDigestName()));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return digests;
+    }
+
+    /**
+     * The state of the validation of one tar.
+     */
+    private class Validation {
+
+        private final String expectedBagName;
+
+        private final List<String> errors = new ArrayList<String>();
+
+        private final byte[] buffer = new byte[StreamUtils.BUFFER_SIZE];
+
+        private String bagName;
+
+        private boolean bagitTxtFound;
+
+        private Map<String, String> bagInfo;
+
+        private Map<String, String> aptrustInfo;
+
+        /**
+         * The payload manifests read so far; entries are removed as they are
+         * checked, so that those left at the end are missing from the tar.
+         */
+        private final Map<SupportedAlgorithm, Map<String, String>> manifests =
+                new LinkedHashMap<SupportedAlgorithm, Map<String, String>>();
+
+        private final Map<SupportedAlgorithm, Map<String, String>> tagManifests =
+                new LinkedHashMap<SupportedAlgorithm, Map<String, String>>();
+
+        /**
+         * The digests of each tag file, by path and algorithm.
+         */
+        private final Map<String, Map<SupportedAlgorithm, String>> tagDigests =
+                new HashMap<String, Map<SupportedAlgorithm, String>>();
+
+        /**
+         * The digests of the payload files read before any manifest, by path,
+         * in the order of the validator's algorithms.
+         */
+        private final Map<String, byte[][]> pending = new LinkedHashMap<String, byte[][]>();
+
+        /**
+         * The algorithms with which every payload entry so far was hashed.
+         */
+        private final Set<SupportedAlgorithm> computed = new LinkedHashSet<SupportedAlgorithm>(algorithms);
+
+        private int payloadFileCount;
+
+        private long payloadSize;
+
+        private Validation(String expectedBagName) {
+            this.expectedBagName = expectedBagName;
+        }
+
+        private void read(InputStream in) throws IOException {
+            final TarArchiveInputStream tar = openTar(in);
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextTarEntry()) != null) {
+                final String path = getPathWithinBag(entry.getName());
+                if (path == null || entry.isDirectory()) {
+                    continue;
+                }
+                if (path.startsWith(DATA)) {
+                    readPayloadFile(path, tar);
+                } else if (path.startsWith("tagmanifest-")) {
+                    final SupportedAlgorithm a = getAlgorithm(path, "tagmanifest-");
+                    if (a != null) {
+                        tagManifests.put(a, parseManifest(path, tar));
+                    }
+                } else {
+                    readTagFile(path, tar);
+                }
+            }
+        }
+
+        /**
+         * Hashes each payload entry with the given algorithms, checking them
+         * against the corresponding manifests.
+         */
+        private void reread(InputStream in, Set<SupportedAlgorithm> missing) throws IOException {
+            final TarArchiveInputStream tar = openTar(in);
+            final List<SupportedAlgorithm> order = new ArrayList<SupportedAlgorithm>(missing);
+            final List<MessageDigest> digests = createDigests(order);
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextTarEntry()) != null) {
+                if (entry.isDirectory() || !entry.getName().startsWith(bagName + "/" + DATA)) {
+                    continue;
+                }
+                final String path = entry.getName().substring(bagName.length() + 1);
+                for (MessageDigest d : digests) {
+                    d.reset();
+                }
+                StreamUtils.copy(tar, null, buffer, digests);
+                for (int i = 0; i < order.size(); i ++) {
+                    check(path, order.get(i), digests.get(i).digest());
+                }
+            }
+            computed.addAll(missing);
+        }
+
+        /**
+         * Gets the algorithms of the manifests with which not every payload
+         * file has been hashed.
+         */
+        private Set<SupportedAlgorithm> getUncomputedAlgorithms() {
+            final Set<SupportedAlgorithm> missing = new LinkedHashSet<SupportedAlgorithm>(manifests.keySet());
+            missing.removeAll(computed);
+            return missing;
+        }
+
+        private ValidationResult finish() {
+            if (bagName == null) {
+                errors.add("The tar contains no bag!");
+                return new ValidationResult(expectedBagName, errors, 0, 0);
+            }
+            if (manifests.isEmpty()) {
+                errors.add("No payload manifest was found!");
+            }
+            final List<SupportedAlgorithm> order = new ArrayList<SupportedAlgorithm>(algorithms);
+            for (Map.Entry<String, byte[][]> p : pending.entrySet()) {
+                for (int i = 0; i < order.size(); i ++) {
+                    if (manifests.containsKey(order.get(i))) {
+                        check(p.getKey(), order.get(i), p.getValue()[i]);
+                    }
+                }
+            }
+            for (Map.Entry<SupportedAlgorithm, Map<String, String>> m : manifests.entrySet()) {
+                if (computed.contains(m.getKey())) {
+                    for (String path : m.getValue().keySet()) {
+                        errors.add(path + " is listed in manifest-" + m.getKey().getBagitName() + ".txt but is not in the tar!");
+                    }
+                }
+            }
+            for (Map.Entry<SupportedAlgorithm, Map<String, String>> m : tagManifests.entrySet()) {
+                for (Map.Entry<String, String> e : m.getValue().entrySet()) {
+                    final Map<SupportedAlgorithm, String> digests = tagDigests.get(e.getKey());
+                    if (digests == null) {
+                        errors.add(e.getKey() + " is listed in tagmanifest-" + m.getKey().getBagitName()
+                                + ".txt but is not in the tar!");
+                    } else if (!e.getValue().equals(digests.get(m.getKey()))) {
+                        errors.add(m.getKey().getBagitName() + " checksum mismatch for " + e.getKey() + "!");
+                    }
+                }
+            }
+            checkRequiredTags();
+            return new ValidationResult(bagName, errors, payloadFileCount, payloadSize);
+        }
+
+        private TarArchiveInputStream openTar(InputStream in) {
+            return new TarArchiveInputStream(new BufferedInputStream(in, StreamUtils.BUFFER_SIZE), "UTF-8");
+        }
+
+        /**
+         * Gets the path of an entry relative to the bag directory, recording an
+         * error if it isn't within the bag directory.
+         * @return the path, or null if the entry is the bag directory or is
+         *         outside of it
+         */
+        private String getPathWithinBag(String name) {
+            final int slash = name.indexOf('/');
+            final String root = slash < 0 ? name : name.substring(0, slash);
+            if (bagName == null) {
+                bagName = root;
+                if (expectedBagName != null && !expectedBagName.equals(root)) {
+                    errors.add("The bag directory " + root + " does not match the tar name " + expectedBagName + "!");
+                }
+            } else if (!bagName.equals(root)) {
+                errors.add(name + " is outside of the bag directory!");
+                return null;
+            }
+            return slash < 0 || slash == name.length() - 1 ? null : name.substring(slash + 1);
+        }
+
+        private void readPayloadFile(String path, InputStream in) throws IOException {
+            // hash with the algorithms of the manifests already read, or with
+            // the expected algorithms if there are none yet
+            final List<SupportedAlgorithm> order = new ArrayList<SupportedAlgorithm>(
+                    manifests.isEmpty() ? algorithms : manifests.keySet());
+            final List<MessageDigest> digests = createDigests(order);
+            payloadSize += StreamUtils.copy(in, null, buffer, digests);
+            payloadFileCount ++;
+            computed.retainAll(order);
+            if (manifests.isEmpty()) {
+                final byte[][] values = new byte[digests.size()][];
+                for (int i = 0; i < digests.size(); i ++) {
+                    values[i] = digests.get(i).digest();
+                }
+                pending.put(path, values);
+            } else {
+                for (int i = 0; i < order.size(); i ++) {
+                    check(path, order.get(i), digests.get(i).digest());
+                }
+            }
+        }
+
+        private void check(String path, SupportedAlgorithm a, byte[] digest) {
+            final String expected = manifests.get(a).remove(path);
+            if (expected == null) {
+                errors.add(path + " is not listed in manifest-" + a.getBagitName() + ".txt!");
+            } else if (!expected.equals(String.valueOf(Hex.encodeHex(digest)))) {
+                errors.add(a.getBagitName() + " checksum mismatch for " + path + "!");
+            }
+        }
+
+        /**
+         * Hashes a tag file with every standard algorithm, parsing it if it's
+         * a payload manifest or one of the tag files whose tags are checked.
+         */
+        private void readTagFile(String path, InputStream in) throws IOException {
+            final List<SupportedAlgorithm> order = Arrays.<SupportedAlgorithm>asList(StandardSupportedAlgorithms.values());
+            final List<MessageDigest> digests = createDigests(order);
+            InputStream digested = in;
+            for (MessageDigest d : digests) {
+                digested = new DigestInputStream(digested, d);
+            }
+            if (path.equals("bagit.txt")) {
+                bagitTxtFound = true;
+                if (!readTags(digested).containsKey("BagIt-Version")) {
+                    errors.add("bagit.txt has no BagIt-Version!");
+                }
+            } else if (path.equals("bag-info.txt")) {
+                bagInfo = readTags(digested);
+            } else if (path.equals("aptrust-info.txt")) {
+                aptrustInfo = readTags(digested);
+            } else if (path.startsWith("manifest-")) {
+                final SupportedAlgorithm a = getAlgorithm(path, "manifest-");
+                if (a != null) {
+                    manifests.put(a, parseManifest(path, digested));
+                }
+            }
+            StreamUtils.copy(digested, null, buffer, Collections.<MessageDigest>emptyList());
+            final Map<SupportedAlgorithm, String> values = new HashMap<SupportedAlgorithm, String>();
+            for (int i = 0; i < order.size(); i ++) {
+                values.put(order.get(i), String.valueOf(Hex.encodeHex(digests.get(i).digest())));
+            }
+            tagDigests.put(path, values);
+        }
+
+        private SupportedAlgorithm getAlgorithm(String path, String prefix) {
+            final String name = path.substring(prefix.length(), path.length() - ".txt".length());
+            try {
+                return ALGORITHM_NAMES.getSupportedAlgorithm(name);
+            } catch (UnsupportedAlgorithmException e) {
+                errors.add(path + " uses an unsupported algorithm!");
+                return null;
+            }
+        }
+
+        /**
+         * Reads the lines of a manifest ("[checksum]  [path]") into a map from
+         * path to checksum, leaving the stream at its end.
+         */
+        private Map<String, String> parseManifest(String path, InputStream in) throws IOException {
+            final Map<String, String> entries = new HashMap<String, String>();
+            final BufferedReader r = new BufferedReader(new InputStreamReader(in, UTF_8));
+            String line;
+            while ((line = r.readLine()) != null) {
+                final String[] parts = line.split("\\s+", 2);
+                if (parts.length != 2 || parts[1].trim().isEmpty()) {
+                    errors.add("Invalid line in " + path + ": " + line);
+                } else {
+                    entries.put(parts[1].trim(), parts[0].toLowerCase());
+                }
+            }
+            return entries;
+        }
+
+        /**
+         * Reads the "[tag]: [value]" lines of a tag file, joining continuation
+         * lines to the value they continue.
+         */
+        private Map<String, String> readTags(InputStream in) throws IOException {
+            final Map<String, String> tags = new LinkedHashMap<String, String>();
+            String lastTag = null;
+            for (String line : IOUtils.readLines(in, UTF_8)) {
+                if (lastTag != null && !line.isEmpty() && Character.isWhitespace(line.charAt(0))) {
+                    tags.put(lastTag, tags.get(lastTag) + " " + line.trim());
+                    continue;
+                }
+                final int colon = line.indexOf(':');
+                if (colon > 0) {
+                    lastTag = line.substring(0, colon).trim();
+                    tags.put(lastTag, line.substring(colon + 1).trim());
+                }
+            }
+            return tags;
+        }
+
+        private void checkRequiredTags() {
+            if (!bagitTxtFound) {
+                errors.add("bagit.txt is missing!");
+            }
+            if (bagInfo == null) {
+                errors.add("bag-info.txt is missing!");
+            } else {
+                for (String tag : requiredBagInfoTags) {
+                    if (isBlank(bagInfo.get(tag))) {
+                        errors.add("bag-info.txt has no " + tag + "!");
+                    }
+                }
+            }
+            if (aptrustInfo == null) {
+                errors.add("aptrust-info.txt is missing!");
+            } else {
+                if (isBlank(aptrustInfo.get("Title"))) {
+                    errors.add("aptrust-info.txt has no Title!");
+                }
+                final String access = aptrustInfo.get("Access");
+                if (!APTrustInfo.CONSORTIA.equalsIgnoreCase(access) && !APTrustInfo.RESTRICTED.equalsIgnoreCase(access)
+                        && !APTrustInfo.INSTITUTION.equalsIgnoreCase(access)) {
+                    errors.add("aptrust-info.txt has an invalid Access value: " + access);
+                }
+            }
+        }
+
+        private boolean isBlank(String value) {
+            return value == null || value.trim().isEmpty();
+        }
+    }
+
+}
@@ -0,0 +1,339 @@
+package edu.virginia.lib.aptrust.bags;
+
+import edu.virginia.lib.aptrust.bags.util.StreamUtils;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.input.BoundedInputStream;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * An index of the file entries of a serialized (tar) bag, written as a sidecar
+ * file beside the tar while it is serialized, so that a single entry may be
+ * read or verified by seeking directly to it rather than by reading the whole
+ * tar.  Each line of the index describes one entry, in the order they appear
+ * in the tar:
+ * <pre>
+ *   [header offset]\t[data offset]\t[length]\t[sha256]\t[path within the bag]
+ * </pre>
+ * The header offset is where the entry's header (or extended header) begins
+ * and the data offset is where its content begins.  Percent signs, carriage
+ * returns and line feeds in paths are percent-encoded.  Before the lines for
+ * the tag files, the index of a tar written by APTrustBag has a line
+ * <pre>
+ *   #md5\t[offset]\t[state]
+ * </pre>
+ * with the saved state of a ResumableMd5 of the tar's first [offset] bytes, so
+ * that BagUpdate can append payload files in place of the tag files without
+ * reading the rest of the tar to compute its new MD5.  The index is scanned
+ * rather than loaded, so looking up entries takes time proportional to the
+ * number of entries but memory proportional only to the number sought.
+ */
+public class TarIndex {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String MD5_PREFIX = "#md5\t";
+
+    private final File tarFile;
+
+    private final File indexFile;
+
+    /**
+     * @param tarFile the serialized bag
+     * @param indexFile the index written when it was serialized
+     */
+    public TarIndex(File tarFile, File indexFile) {
+        this.tarFile = tarFile;
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * Gets the name of the index file for the given tar file, which is the
+     * name of the tar with ".index" appended.
+     */
+    public static File getIndexFile(File tarFile) {
+        return new File(tarFile.getPath() + ".index");
+    }
+
+    public File getTarFile() {
+        return tarFile;
+    }
+
+    public File getIndexFile() {
+        return indexFile;
+    }
+
+    /**
+     * Finds the entry with the given path.
+     * @param path the path within the bag (e.g. "data/file.txt")
+     * @return the entry, or null if there is none
+     */
+    public Entry find(String path) throws IOException {
+        final List<Entry> found = find(Collections.singleton(path));
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    /**
+     * Finds the entries with the given paths, in the order they appear in the
+     * tar.  Paths that aren't in the index are ignored.
+     */
+    public List<Entry> find(Collection<String> paths) throws IOException {
+        final Set<String> sought = new HashSet<String>(paths);
+        final List<Entry> found = new ArrayList<Entry>();
+        final BufferedReader r = openIndex();
+        try {
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (!isEntryLine(line)) {
+                    continue;
+                }
+                final Entry e = parseLine(line);
+                if (sought.contains(e.getPath())) {
+                    found.add(e);
+                }
+            }
+        } finally {
+            r.close();
+        }
+        return found;
+    }
+
+    /**
+     * Opens a stream over the content of an entry, starting at its data
+     * offset within the tar.
+     */
+    public InputStream open(Entry entry) throws IOException {
+        final FileChannel channel = FileChannel.open(tarFile.toPath(), StandardOpenOption.READ);
+        channel.position(entry.getDataOffset());
+        return new BoundedInputStream(Channels.newInputStream(channel), entry.getLength());
+    }
+
+    /**
+     * Verifies the content of the entries with the given paths against the
+     * SHA-256 checksums in the index.  Paths that aren't in the index are
+     * reported as errors.
+     */
+    public ValidationResult verify(Collection<String> paths) throws IOException {
+        final List<Entry> entries = find(paths);
+        final List<String> errors = new ArrayList<String>();
+        final Set<String> missing = new HashSet<String>(paths);
+        for (Entry e : entries) {
+            missing.remove(e.getPath());
+        }
+        for (String path : missing) {
+            errors.add(path + " is not in the index!");
+        }
+        return verify(entries, errors);
+    }
+
+    /**
+     * Verifies a random sample of the payload entries against the SHA-256
+     * checksums in the index.  The index is read once, keeping only the sample.
+     * @param count the number of entries to verify (every payload entry is
+     *              verified if there are fewer)
+     */
+    public ValidationResult verifySample(int count, Random random) throws IOException {
+        final List<Entry> sample = new ArrayList<Entry>();
+        int seen = 0;
+        final BufferedReader r = openIndex();
+        try {
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (!isEntryLine(line)) {
+                    continue;
+                }
+                final Entry e = parseLine(line);
+                if (!e.getPath().startsWith("data/")) {
+                    continue;
+                }
+                // reservoir sampling, so that every entry is equally likely to be chosen
+                seen ++;
+                if (sample.size() < count) {
+                    sample.add(e);
+                } else {
+                    final int i = random.nextInt(seen);
+                    if (i < count) {
+                        sample.set(i, e);
+                    }
+                }
+            }
+        } finally {
+            r.close();
+        }
+        return verify(sample, new ArrayList<String>());
+    }
+
+    private ValidationResult verify(List<Entry> entries, List<String> errors) throws IOException {
+        final MessageDigest sha256 = newSha256();
+        final byte[] buffer = new byte[StreamUtils.BUFFER_SIZE];
+        long bytes = 0;
+        for (Entry e : entries) {
+            sha256.reset();
+            final InputStream in = open(e);
+            final long read;
+            try {
+                read = StreamUtils.copy(in, null, buffer, Collections.singletonList(sha256));
+            } finally {
+                in.close();
+            }
+            bytes += read;
+            if (read != e.getLength()) {
+                errors.add(e.getPath() + " is truncated (" + read + " of " + e.getLength() + " bytes)!");
+            } else if (!e.getChecksum().equals(String.valueOf(Hex.encodeHex(sha256.digest())))) {
+                errors.add("sha256 checksum mismatch for " + e.getPath() + "!");
+            }
+        }
+        final String name = tarFile.getName();
+        return new ValidationResult(name.endsWith(".tar") ? name.substring(0, name.length() - 4) : name, errors,
+                entries.size(), bytes);
+    }
+
+    /**
+     * Opens a reader over the lines of the index, which parseLine() parses.
+     */
+    BufferedReader openIndex() throws IOException {
+        return new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), UTF_8));
+    }
+
+    /**
+     * Formats the line of the index (including the line feed) for an entry.
+     */
+    static String formatLine(String path, long headerOffset, long dataOffset, long length, String checksum) {
+        return headerOffset + "\t" + dataOffset + "\t" + length + "\t" + checksum + "\t"
+                + path.replace("%", "%25").replace("\r", "%0D").replace("\n", "%0A") + "\n";
+    }
+
+    /**
+     * Formats the line of the index (including the line feed) that records
+     * the state of the MD5 of the tar's first offset bytes.
+     */
+    static String formatMd5Line(long offset, String state) {
+        return MD5_PREFIX + offset + "\t" + state + "\n";
+    }
+
+    /**
+     * True if the line describes an entry (rather than recording the state of
+     * the tar's MD5).
+     */
+    static boolean isEntryLine(String line) {
+        return !line.startsWith("#");
+    }
+
+    /**
+     * Parses a line formatted by formatMd5Line().
+     * @return the MD5 the line records if it is of the tar's first offset
+     * bytes, or null if it isn't an MD5 line, is of another offset or is
+     * malformed
+     */
+    static ResumableMd5 parseMd5Line(String line, long offset) {
+        if (!line.startsWith(MD5_PREFIX)) {
+            return null;
+        }
+        final String[] fields = line.substring(MD5_PREFIX.length()).split("\t");
+        try {
+            if (fields.length != 2 || Long.parseLong(fields[0]) != offset) {
+                return null;
+            }
+            final ResumableMd5 md5 = ResumableMd5.restore(fields[1]);
+            return md5.getCount() == offset ? md5 : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    static Entry parseLine(String line) throws IOException {
+        final String[] fields = line.split("\t", 5);
+        if (fields.length != 5) {
+            throw new IOException("Invalid index line: " + line);
+        }
+        try {
+            return new Entry(fields[4].replace("%0A", "\n").replace("%0D", "\r").replace("%25", "%"),
+                    Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid index line: " + line, e);
+        }
+    }
+
+    static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A file entry of the tar.
+     */
+    public static class Entry {
+
+        private final String path;
+
+        private final long headerOffset;
+
+        private final long dataOffset;
+
+        private final long length;
+
+        private final String checksum;
+
+        private Entry(String path, long headerOffset, long dataOffset, long length, String checksum) {
+            this.path = path;
+            this.headerOffset = headerOffset;
+            this.dataOffset = dataOffset;
+            this.length = length;
+            this.checksum = checksum;
+        }
+
+        /**
+         * Gets the path, relative to the bag directory (e.g. "data/file.txt").
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Gets the offset within the tar of the entry's header.
+         */
+        public long getHeaderOffset() {
+            return headerOffset;
+        }
+
+        /**
+         * Gets the offset within the tar of the entry's content.
+         */
+        public long getDataOffset() {
+            return dataOffset;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * Gets the hex-encoded SHA-256 checksum of the content.
+         */
+        public String getChecksum() {
+            return checksum;
+        }
+    }
+
+}
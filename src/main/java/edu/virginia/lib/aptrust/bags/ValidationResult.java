@@ -0,0 +1,54 @@
+package edu.virginia.lib.aptrust.bags;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of validating a serialized bag.
+ */
+public class ValidationResult {
+
+    private final String bagName;
+
+    private final List<String> errors;
+
+    private final int payloadFileCount;
+
+    private final long payloadSize;
+
+    public ValidationResult(String bagName, List<String> errors, int payloadFileCount, long payloadSize) {
+        this.bagName = bagName;
+        this.errors = Collections.unmodifiableList(errors);
+        this.payloadFileCount = payloadFileCount;
+        this.payloadSize = payloadSize;
+    }
+
+    public String getBagName() {
+        return bagName;
+    }
+
+    public boolean isValid() {
+        return errors.isEmpty();
+    }
+
+    /**
+     * Gets a description of each problem found, or an empty list if the bag is
+     * valid.
+     */
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    public int getPayloadFileCount() {
+        return payloadFileCount;
+    }
+
+    public long getPayloadSize() {
+        return payloadSize;
+    }
+
+    @Override
+    public String toString() {
+        return bagName + (isValid() ? " is valid" : " is invalid: " + errors);
+    }
+}
@@ -1,7 +0,0 @@
-package edu.virginia.lib.aptrust.bags.util;
-
-/**
- * Created by md5wz on 4/19/17.
- */
-public class BagModificationTest {
-}
@@ -0,0 +1,261 @@
+package edu.virginia.lib.aptrust.bags.util;
+
+import edu.virginia.lib.aptrust.bags.APTrustBag;
+import edu.virginia.lib.aptrust.bags.BagSummary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Serializes and transfers a sequence of bags with the two steps running as
+ * separate stages, each with its own number of worker threads, so that one
+ * bag may be hashed and written to disk while others are being uploaded.
+ * The number of bags between the stages is bounded, so a slow transfer stage
+ * holds back serialization rather than filling the working directory with
+ * tar files.
+ * <pre>
+ *   BagPipeline pipeline = new BagPipeline(submitter, workingDir).serializers(2).transfers(4);
+ *   for (BagPipeline.Result r : pipeline.run(bags.iterator(), null)) {
+ *       ...
+ *   }
+ * </pre>
+ */
+public class BagPipeline {
+
+    final private static Logger LOGGER = LoggerFactory.getLogger(BagPipeline.class);
+
+    /**
+     * Receives the result for each bag as soon as it has been transferred (or
+     * has failed).  Calls are made from the pipeline's worker threads, but
+     * never concurrently.
+     */
+    public interface Listener {
+        void bagCompleted(Result result);
+    }
+
+    private final BagSubmitter submitter;
+
+    private final File workingDir;
+
+    private int serializers = 1;
+
+    private int transfers = 1;
+
+    private int queueSize = 1;
+
+    private boolean overwrite = false;
+
+    private boolean deleteTransferredBags = false;
+
+    /**
+     * @param submitter the submitter to which serialized bags are transferred
+     * @param workingDir the directory in which bags are serialized as tar files
+     */
+    public BagPipeline(BagSubmitter submitter, File workingDir) {
+        this.submitter = submitter;
+        this.workingDir = workingDir;
+    }
+
+    /**
+     * Sets the number of bags that may be serialized at once.  The default is 1.
+     */
+    public BagPipeline serializers(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one serializer is required!");
+        }
+        this.serializers = threads;
+        return this;
+    }
+
+    public int getSerializers() {
+        return serializers;
+    }
+
+    /**
+     * Sets the number of bags that may be transferred at once.  The default is 1.
+     */
+    public BagPipeline transfers(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one transfer is required!");
+        }
+        this.transfers = threads;
+        return this;
+    }
+
+    public int getTransfers() {
+        return transfers;
+    }
+
+    /**
+     * Sets the number of serialized bags that may wait for a transfer to
+     * become available before serialization of further bags is held back.
+     * The default is 1.
+     */
+    public BagPipeline queueSize(int bags) {
+        if (bags < 0) {
+            throw new IllegalArgumentException("Queue size may not be negative!");
+        }
+        this.queueSize = bags;
+        return this;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * Sets whether bags already in the bucket are replaced.  The default is false.
+     */
+    public BagPipeline overwrite(boolean overwrite) {
+        this.overwrite = overwrite;
+        return this;
+    }
+
+    public boolean getOverwrite() {
+        return overwrite;
+    }
+
+    /**
+     * Sets whether each tar file is deleted once it has been successfully
+     * transferred.  The default is false.
+     */
+    public BagPipeline deleteTransferredBags(boolean delete) {
+        this.deleteTransferredBags = delete;
+        return this;
+    }
+
+    public boolean getDeleteTransferredBags() {
+        return deleteTransferredBags;
+    }
+
+    /**
+     * Serializes and transfers each of the given bags, returning once every
+     * bag has been handled.  Bags are taken from the iterator only as there is
+     * room for them in the pipeline, so it may produce them lazily.
+     * @param listener notified as each bag completes, may be null
+     * @return the results, in the order the bags were supplied
+     */
+    public List<Result> run(Iterator<? extends APTrustBag> bags, final Listener listener) throws InterruptedException {
+        final int capacity = serializers + queueSize + transfers;
+        final Semaphore permits = new Semaphore(capacity);
+        final List<Result> results = Collections.synchronizedList(new ArrayList<Result>());
+        final ExecutorService serializeExecutor = Executors.newFixedThreadPool(serializers);
+        final ExecutorService transferExecutor = Executors.newFixedThreadPool(transfers);
+        try {
+            while (bags.hasNext()) {
+                final Result result = new Result(bags.next());
+                results.add(result);
+                permits.acquire();
+                serializeExecutor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            result.bagSummary = result.bag.serializeAPTrustBag(workingDir, true);
+                        } catch (Throwable t) {
+                            LOGGER.error("Error serializing bag " + result.bag.getAptrustBagName() + "!", t);
+                            result.failure = t;
+                            complete(result, permits, listener);
+                            return;
+                        }
+                        transferExecutor.submit(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    result.transferSummary = submitter.transferBag(result.bagSummary, overwrite);
+                                    if (deleteTransferredBags && result.transferSummary.wasTransferred()) {
+                                        result.bagSummary.getFile().delete();
+                                    }
+                                } catch (Throwable t) {
+                                    LOGGER.error("Error transferring bag " + result.bag.getAptrustBagName() + "!", t);
+                                    result.failure = t;
+                                } finally {
+                                    complete(result, permits, listener);
+                                }
+                            }
+                        });
+                    }
+                });
+            }
+            // every permit is returned once the last bag has completed
+            permits.acquire(capacity);
+            return new ArrayList<Result>(results);
+        } finally {
+            serializeExecutor.shutdownNow();
+            transferExecutor.shutdownNow();
+        }
+    }
+
+    private void complete(Result result, Semaphore permits, Listener listener) {
+        try {
+            if (listener != null) {
+                synchronized (this) {
+                    listener.bagCompleted(result);
+                }
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Error notifying listener of completion of bag " + result.bag.getAptrustBagName() + "!", e);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * The outcome of serializing and transferring one bag.
+     */
+    public static class Result {
+
+        private final APTrustBag bag;
+
+        private volatile BagSummary bagSummary;
+
+        private volatile BagSubmitter.TransferSummary transferSummary;
+
+        private volatile Throwable failure;
+
+        private Result(APTrustBag bag) {
+            this.bag = bag;
+        }
+
+        public APTrustBag getBag() {
+            return bag;
+        }
+
+        /**
+         * Gets the summary of the serialized bag, or null if serialization failed.
+         */
+        public BagSummary getBagSummary() {
+            return bagSummary;
+        }
+
+        /**
+         * Gets the summary of the transfer, or null if the bag was not
+         * serialized or the transfer could not be attempted.
+         */
+        public BagSubmitter.TransferSummary getTransferSummary() {
+            return transferSummary;
+        }
+
+        /**
+         * Gets the exception that prevented the bag from being serialized or
+         * transferred, if any.  Transfer errors that the submitter reports in
+         * its TransferSummary are not repeated here.
+         */
+        public Throwable getFailure() {
+            return failure;
+        }
+
+        public boolean wasTransferred() {
+            return transferSummary != null && transferSummary.wasTransferred();
+        }
+
+    }
+
+}
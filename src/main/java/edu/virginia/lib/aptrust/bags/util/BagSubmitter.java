@@ -1,25 +1,56 @@
 package edu.virginia.lib.aptrust.bags.util;
 
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.event.ProgressEvent;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.internal.InputSubstream;
+import com.amazonaws.services.s3.internal.RepeatableFileInputStream;
 import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
 import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
 import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
 import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
-import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ListPartsRequest;
 import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
+import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.PutObjectResult;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.amazonaws.services.s3.model.UploadPartRequest;
-import com.amazonaws.services.s3.model.UploadPartResult;
+import edu.virginia.lib.aptrust.bags.APTrustBag;
+import edu.virginia.lib.aptrust.bags.BagMetrics;
 import edu.virginia.lib.aptrust.bags.BagSummary;
+import edu.virginia.lib.aptrust.bags.MetricsSink;
+import edu.virginia.lib.aptrust.bags.PartListener;
+import edu.virginia.lib.aptrust.bags.ProgressListener;
+import edu.virginia.lib.aptrust.bags.ProgressTracker;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  *  A general purpose utility to submit bags to AP Trust.
@@ -32,13 +63,284 @@ public class BagSubmitter {
 
     private String bucketName;
 
-    private long chunkSize = (5 * 1024 * 1025 * 1024);
+    /**
+     * The largest part (and the largest single PUT) S3 accepts.
+     */
+    public static final long MAX_PART_SIZE = 5L * 1024 * 1024 * 1024;
+
+    /**
+     * The most parts a multipart upload may have.
+     */
+    public static final int MAX_PARTS = 10000;
+
+    /**
+     * The number of parts per concurrent upload that an adaptively sized
+     * multipart upload is divided into (when the part size allows), so that
+     * every upload slot stays busy.
+     */
+    private static final int PARTS_PER_SLOT = 4;
+
+    private static final long MEGABYTE = 1024 * 1024;
+
+    private long partSize = 1024 * 1024 * 1024;
+
+    private boolean adaptivePartSize = true;
+
+    private int concurrentParts = 4;
+
+    private int streamingPartSize = 64 * 1024 * 1024;
+
+    private long streamingBufferLimit;
+
+    private File journalDirectory;
+
+    private RetryPolicy retryPolicy = new RetryPolicy(3, 1000);
+
+    private MetricsSink metricsSink;
+
+    private ProgressListener progressListener;
+
+    private long progressInterval;
+
+    private BucketInventory bucketInventory;
+
+    private BandwidthLimiter bandwidthLimiter;
+
+    private PartListener partListener;
 
     public BagSubmitter(AmazonS3Client s3Client, final String bucketName) {
         this.s3Client = s3Client;
         this.bucketName = bucketName;
     }
 
+    /**
+     * Sets the size of the parts in which bag files are uploaded.  Files no larger
+     * than this are sent with a single PUT.  With adaptive part sizing, this is
+     * the largest part used unless a file is too large to be sent in 10,000
+     * parts of this size.  The default is 1 GiB.
+     */
+    public BagSubmitter partSize(long bytes) {
+        if (bytes < S3MultipartOutputStream.MIN_PART_SIZE || bytes > MAX_PART_SIZE) {
+            throw new IllegalArgumentException("Part size must be between " + S3MultipartOutputStream.MIN_PART_SIZE
+                    + " and " + MAX_PART_SIZE + " bytes!");
+        }
+        this.partSize = bytes;
+        return this;
+    }
+
+    public long getPartSize() {
+        return partSize;
+    }
+
+    /**
+     * Sets whether the part size of each multipart upload is chosen from the
+     * size of the file: parts are made smaller than the configured part size
+     * (though no smaller than S3 allows) so that there are several parts for
+     * each concurrent upload.  Whether or not this is set, parts are made larger
+     * when a file would otherwise need more than 10,000 of them.  The default
+     * is true.
+     */
+    public BagSubmitter adaptivePartSize(boolean adaptive) {
+        this.adaptivePartSize = adaptive;
+        return this;
+    }
+
+    public boolean getAdaptivePartSize() {
+        return adaptivePartSize;
+    }
+
+    /**
+     * Gets the part size with which a file of the given length is uploaded: a
+     * whole number of megabytes no smaller than S3 allows and large enough that
+     * there are no more than 10,000 parts.
+     * @throws IllegalArgumentException if the file is too large to upload
+     */
+    public long getPartSize(long length) {
+        long size = partSize;
+        if (adaptivePartSize) {
+            size = Math.min(size, divideRoundingUp(length, (long) concurrentParts * PARTS_PER_SLOT));
+        }
+        size = Math.max(size, divideRoundingUp(length, MAX_PARTS));
+        size = Math.max(divideRoundingUp(size, MEGABYTE) * MEGABYTE, S3MultipartOutputStream.MIN_PART_SIZE);
+        if (size > MAX_PART_SIZE) {
+            throw new IllegalArgumentException(length + " bytes is too large to upload in " + MAX_PARTS + " parts!");
+        }
+        return size;
+    }
+
+    private static long divideRoundingUp(long dividend, long divisor) {
+        return (dividend + divisor - 1) / divisor;
+    }
+
+    /**
+     * Sets the number of parts of a multipart upload that may be in flight at
+     * once.  When streaming, this is also the number of part buffers (beyond the
+     * one being filled) that may be held in memory.  The default is 4.
+     */
+    public BagSubmitter concurrentParts(int parts) {
+        if (parts < 1) {
+            throw new IllegalArgumentException("At least one part must be allowed in flight!");
+        }
+        this.concurrentParts = parts;
+        return this;
+    }
+
+    public int getConcurrentParts() {
+        return concurrentParts;
+    }
+
+    /**
+     * Sets the number of times the upload of a single multipart part is retried
+     * before the transfer fails, and the delay before the first retry (which is
+     * doubled for each subsequent retry).  The default is 3 retries, starting
+     * after one second.
+     */
+    public BagSubmitter partRetries(int retries, long backoffMillis) {
+        if (retries < 0 || backoffMillis < 0) {
+            throw new IllegalArgumentException("Retries and backoff may not be negative!");
+        }
+        this.retryPolicy = new RetryPolicy(retries, backoffMillis);
+        return this;
+    }
+
+    /**
+     * Sets a directory in which a journal of the completed parts of each multipart
+     * upload of a bag file is kept.  When set, a failed multipart upload is left
+     * in place (rather than aborted) and the next attempt to transfer the same,
+     * unmodified file resumes it, sending only the parts that are missing.  The
+     * journal is deleted once the upload completes.  By default no journal is kept.
+     */
+    public BagSubmitter journalDirectory(File dir) {
+        this.journalDirectory = dir;
+        return this;
+    }
+
+    public File getJournalDirectory() {
+        return journalDirectory;
+    }
+
+    /**
+     * Sets the size of the in-memory buffers (one per multipart part) used when
+     * bags are streamed directly to S3.  Since a streamed bag's size isn't known
+     * in advance, this is the size of the first 500 parts, after which the part
+     * size doubles every 500 parts to stay within S3's part limit.  The default
+     * is 64 MiB.
+     */
+    public BagSubmitter streamingPartSize(int bytes) {
+        if (bytes < S3MultipartOutputStream.MIN_PART_SIZE || bytes > S3MultipartOutputStream.MAX_BUFFER_SIZE) {
+            throw new IllegalArgumentException("Part size must be between " + S3MultipartOutputStream.MIN_PART_SIZE
+                    + " and " + S3MultipartOutputStream.MAX_BUFFER_SIZE + " bytes!");
+        }
+        this.streamingPartSize = bytes;
+        return this;
+    }
+
+    public int getStreamingPartSize() {
+        return streamingPartSize;
+    }
+
+    /**
+     * Sets the limit on the total size of the in-memory buffers used when a bag
+     * is streamed directly to S3.  As the parts of a very large bag grow, fewer
+     * of them are uploaded at once to stay within the limit (though a single
+     * part larger than the limit is still buffered).  The default, 0, is the
+     * streaming part size times one more than the number of concurrent parts.
+     */
+    public BagSubmitter streamingBufferLimit(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("The buffer limit must not be negative!");
+        }
+        this.streamingBufferLimit = bytes;
+        return this;
+    }
+
+    public long getStreamingBufferLimit() {
+        return streamingBufferLimit;
+    }
+
+    /**
+     * Sets a sink to which the metrics of each transfer (its duration, size and
+     * the latency of each multipart part) are reported once it finishes, whether
+     * or not it succeeds.  The metrics are also available from the returned
+     * TransferSummary.  The default is null.
+     */
+    public BagSubmitter metricsSink(MetricsSink sink) {
+        this.metricsSink = sink;
+        return this;
+    }
+
+    public MetricsSink getMetricsSink() {
+        return metricsSink;
+    }
+
+    /**
+     * Sets a listener to which the progress of each transfer (bytes sent, the
+     * part most recently begun, and the throughput and estimated time remaining)
+     * is reported, at most once per interval and once more when the transfer
+     * ends.  Progress within a part is reported as the S3 client sends it; a
+     * failed attempt's bytes are withdrawn when it is retried.  When a bag is
+     * streamed its total size isn't known in advance, so no estimate is made.
+     * The default is null.
+     * @param intervalMillis the minimum time between reports
+     */
+    public BagSubmitter progressListener(ProgressListener listener, long intervalMillis) {
+        if (intervalMillis < 0) {
+            throw new IllegalArgumentException("The progress interval may not be negative!");
+        }
+        this.progressListener = listener;
+        this.progressInterval = intervalMillis;
+        return this;
+    }
+
+    public ProgressListener getProgressListener() {
+        return progressListener;
+    }
+
+    /**
+     * Sets an index of the bucket that is consulted (instead of a listing
+     * request per bag) to find whether each bag already exists, and which is
+     * updated as bags are stored and deleted.  It should be an index of the
+     * bucket to which this submitter sends bags.  The default is null, in which
+     * case S3 is asked about each bag.
+     */
+    public BagSubmitter bucketInventory(BucketInventory inventory) {
+        this.bucketInventory = inventory;
+        return this;
+    }
+
+    public BucketInventory getBucketInventory() {
+        return bucketInventory;
+    }
+
+    /**
+     * Sets a limiter on the rate at which every upload made by this submitter
+     * is sent.  The same limiter may be given to several submitters to limit
+     * them together, and its limit may be changed while transfers are under
+     * way.  The default is null, in which case uploads aren't limited.
+     */
+    public BagSubmitter bandwidthLimiter(BandwidthLimiter limiter) {
+        this.bandwidthLimiter = limiter;
+        return this;
+    }
+
+    public BandwidthLimiter getBandwidthLimiter() {
+        return bandwidthLimiter;
+    }
+
+    /**
+     * Sets a listener to which the size, latency and throughput of each part
+     * of a multipart upload is reported as soon as it has been uploaded.  The
+     * default is null.
+     */
+    public BagSubmitter partListener(PartListener listener) {
+        this.partListener = listener;
+        return this;
+    }
+
+    public PartListener getPartListener() {
+        return partListener;
+    }
+
     /**
      * Transfers the bag and returns a summary of the operation.
      * @param bagSummary info about the the file (bag) to transfer
@@ -48,22 +350,15 @@ public class BagSubmitter {
         t.startTime = System.currentTimeMillis();
         File f = bagSummary.getFile();
         t.size = f.length();
+        t.metrics = new BagMetrics(f.getName());
+        t.progress = createProgressTracker(f.getName(), t.size);
         try {
-            final S3ObjectSummary o = getObjectSummary(f.getName());
-            if (o != null) {
-                if (overwrite) {
-                    // delete the bag
-                    s3Client.deleteObject(bucketName, f.getName());
-                    t.deletedExistingBag = true;
-                    final long duration = System.currentTimeMillis() - t.startTime;
-                    LOGGER.info(f.getName() + "," + new Date() + ",deleted existing bag," + o.getSize() + ",,"
-                            + duration + ",deleted existing object (created " + o.getLastModified()
-                            + ") on S3 before transfer");
-                } else {
-                    return TransferSummary.WOULD_NOT_OVERWRITE();
-                }
+            if (!removeExistingBag(f.getName(), overwrite, t)) {
+                return TransferSummary.WOULD_NOT_OVERWRITE();
             }
+            final long start = System.nanoTime();
             putFile(f, bagSummary.getBase64Checksum(), t);
+            t.metrics.record(BagMetrics.Phase.TRANSFER, System.nanoTime() - start, t.transferred ? t.size : 0, 1);
             t.endTime = System.currentTimeMillis();
             return t;
         } catch (Throwable thr) {
@@ -72,67 +367,436 @@ public class BagSubmitter {
             t.endTime = System.currentTimeMillis();
             t.message = thr.getClass().getSimpleName() + ": " + thr.getMessage();
             return t;
+        } finally {
+            reportMetrics(t);
+        }
+    }
+
+    /**
+     * Serializes the bag as a tar directly into S3 and returns a summary of the
+     * operation.  The tar is uploaded as a multipart upload whose parts are
+     * assembled in memory and sent as they fill, so it is never staged on local
+     * disk; its checksum and the bag's manifests are computed as it is written.
+     * The resulting BagSummary is available from the returned TransferSummary.
+     * @param bag the bag to serialize and transfer
+     * @param workingDir a directory in which the bag's tag files may be written
+     *                   while the tar is assembled
+     */
+    public TransferSummary streamBag(APTrustBag bag, File workingDir, final boolean overwrite) {
+        TransferSummary t = new TransferSummary();
+        t.startTime = System.currentTimeMillis();
+        final String key = bag.getAptrustBagName() + ".tar";
+        t.metrics = new BagMetrics(key);
+        t.progress = createProgressTracker(key, -1);
+        try {
+            if (!removeExistingBag(key, overwrite, t)) {
+                return TransferSummary.WOULD_NOT_OVERWRITE();
+            }
+            final long start = System.nanoTime();
+            final S3MultipartOutputStream out = new S3MultipartOutputStream(s3Client, bucketName, key, streamingPartSize,
+                    concurrentParts, streamingBufferLimit, retryPolicy, t.metrics, t.progress, bandwidthLimiter, partListener);
+            try {
+                // the tar writer closes its stream even when it fails, so the upload
+                // is only completed (by closing) once the bag has been fully written
+                t.bagSummary = bag.serializeAPTrustBag(workingDir, new CloseShieldOutputStream(out));
+                out.close();
+            } catch (Throwable thr) {
+                out.abort();
+                throw thr;
+            }
+            t.size = out.getSize();
+            stored(key, t.size);
+            t.metrics.record(BagMetrics.Phase.TRANSFER, System.nanoTime() - start, t.size, 1);
+            t.localBagChecksum = t.bagSummary.getBase64Checksum();
+            t.amazonBagChecksum = "checksum not yet available";
+            t.etag = out.getETag();
+            t.expectedEtag = out.getExpectedETag();
+            t.transferred = true;
+            t.endTime = System.currentTimeMillis();
+            LOGGER.info(key + "," + new Date() + ",streamed to S3," + t.size + "," + t.amazonBagChecksum + ","
+                    + t.getDuration() + "," + (!t.isEtagVerified() ? "ETAG MISMATCH (expected " + t.expectedEtag + ")" : ""));
+            return t;
+        } catch (Throwable thr) {
+            LOGGER.error("Error streaming bag " + key + "!", thr);
+            t.transferred = false;
+            t.endTime = System.currentTimeMillis();
+            t.message = thr.getClass().getSimpleName() + ": " + thr.getMessage();
+            return t;
+        } finally {
+            reportMetrics(t);
+        }
+    }
+
+    private ProgressTracker createProgressTracker(String key, long totalBytes) {
+        return progressListener == null ? null : new ProgressTracker(key, progressListener, progressInterval, totalBytes);
+    }
+
+    private void reportMetrics(TransferSummary t) {
+        if (t.progress != null) {
+            t.progress.finish();
+        }
+        t.metrics.finish();
+        if (metricsSink != null) {
+            metricsSink.metricsRecorded(t.metrics);
         }
     }
 
+    /**
+     * Deletes any existing object with the given key if overwrite is true.
+     * @return false if an object exists and overwrite is false, true otherwise
+     */
+    private boolean removeExistingBag(String key, boolean overwrite, TransferSummary t) {
+        final S3ObjectSummary o = getObjectSummary(key);
+        if (o != null) {
+            if (overwrite) {
+                // delete the bag
+                s3Client.deleteObject(bucketName, key);
+                if (bucketInventory != null) {
+                    bucketInventory.remove(key);
+                }
+                t.deletedExistingBag = true;
+                final long duration = System.currentTimeMillis() - t.startTime;
+                LOGGER.info(key + "," + new Date() + ",deleted existing bag," + o.getSize() + ",,"
+                        + duration + ",deleted existing object (created " + o.getLastModified()
+                        + ") on S3 before transfer");
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private void putFile(File f, String checksum64, TransferSummary t) throws Throwable {
         t.localBagChecksum = checksum64;
-        if (f.length() > chunkSize) {
+        if (f.length() > partSize) {
             putLargeFile(f, checksum64, t);
         } else {
             putSmallFile(f, checksum64, t);
         }
     }
 
-    private void putSmallFile(File f, String checksum64, TransferSummary t) {
+    private void putSmallFile(File f, String checksum64, TransferSummary t) throws IOException {
         final long start = System.currentTimeMillis();
-        final PutObjectResult result = s3Client.putObject(bucketName, f.getName(), f);
+        if (t.progress != null) {
+            t.progress.begin(BagMetrics.Phase.TRANSFER, f.getName());
+        }
+        final PutObjectResult result;
+        if (bandwidthLimiter == null) {
+            result = s3Client.putObject(bucketName, f.getName(), f);
+        } else {
+            final ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(f.length());
+            final InputStream content = new ThrottledInputStream(new RepeatableFileInputStream(f), bandwidthLimiter);
+            try {
+                result = s3Client.putObject(new PutObjectRequest(bucketName, f.getName(), content, metadata));
+            } finally {
+                content.close();
+            }
+        }
+        stored(f.getName(), f.length());
+        if (t.progress != null) {
+            t.progress.add(f.length());
+        }
         t.transferred = true;
         t.amazonBagChecksum = result.getContentMd5();
         t.etag = result.getETag();
+        if (checksum64 != null) {
+            // the ETag of an object stored with a single put is the hex MD5 of its content
+            t.expectedEtag = String.valueOf(Hex.encodeHex(Base64.decodeBase64(checksum64.getBytes())));
+        }
         final long duration = System.currentTimeMillis() - start;
         LOGGER.info(f.getName() + "," + new Date() + ",transferred to S3," + f.length() + "," + t.amazonBagChecksum + ","
                 + duration + "," + (!t.amazonBagChecksum.equalsIgnoreCase(checksum64) ? "CHECKSUM MISMATCH" : ""));
     }
 
-    private void putLargeFile(File f, String checksum64, TransferSummary t) throws Throwable {
+    private void putLargeFile(final File f, String checksum64, final TransferSummary t) throws Throwable {
         final long start = System.currentTimeMillis();
-        final InitiateMultipartUploadRequest req = new InitiateMultipartUploadRequest(bucketName, f.getName());
-        InitiateMultipartUploadResult multipartUploadResult = s3Client.initiateMultipartUpload(req);
+        final String key = f.getName();
+        final long partSize = getPartSize(f.length());
+        final MultipartUploadJournal journal = journalDirectory == null ? null
+                : new MultipartUploadJournal(new File(journalDirectory, key + ".journal"));
+        Map<Integer, PartETag> uploadedParts = new HashMap<Integer, PartETag>();
+        String uploadId = null;
+        if (journal != null && journal.matches(f.length(), f.lastModified(), partSize)) {
+            try {
+                uploadedParts = listUploadedParts(key, journal.getUploadId(), f.length(), partSize, journal.getRecordedParts());
+                uploadId = journal.getUploadId();
+                LOGGER.info("Resuming multipart upload of " + key + " (" + uploadedParts.size() + " parts already uploaded).");
+            } catch (AmazonServiceException e) {
+                LOGGER.info("Unable to resume multipart upload of " + key + ", starting over.", e);
+            }
+        }
+        if (uploadId == null) {
+            if (journal != null && journal.getUploadId() != null) {
+                // the journaled upload won't be resumed, and nothing would abort it once the journal is replaced
+                abortUpload(key, journal.getUploadId());
+            }
+            uploadId = s3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, key)).getUploadId();
+            if (journal != null) {
+                journal.start(uploadId, f.length(), f.lastModified(), partSize);
+            }
+        }
+        final MultipartETag expectedETag = new MultipartETag();
+        final AtomicInteger partsInFlight = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(concurrentParts);
         try {
-            List<PartETag> partETags = new ArrayList<PartETag>();
+            // parts are uploaded concurrently, but their ETags are gathered in part order
+            final List<Future<PartETag>> parts = new ArrayList<Future<PartETag>>();
             int partNumber = 1;
-            for (long offset = 0; offset < f.length(); offset += chunkSize) {
+            for (long offset = 0; offset < f.length(); offset += partSize) {
+                if (uploadedParts.containsKey(partNumber)) {
+                    final PartETag uploaded = uploadedParts.get(partNumber++);
+                    final byte[] recorded = journal.getRecordedDigest(uploaded.getPartNumber());
+                    if (recorded != null && MultipartETag.matches(uploaded.getETag(), String.valueOf(Hex.encodeHex(recorded)))) {
+                        expectedETag.addPart(uploaded.getPartNumber(), recorded);
+                        parts.add(new CompletedPart(uploaded));
+                    } else {
+                        // without a journaled digest that S3 agrees with, the part must be read (alongside the uploads)
+                        final long partOffset = offset;
+                        parts.add(executor.submit(new Callable<PartETag>() {
+                            @Override
+                            public PartETag call() throws Exception {
+                                final MD5InputStream content = openPart(f, partOffset, Math.min(partSize, f.length() - partOffset));
+                                try {
+                                    StreamUtils.copy(content, null, new byte[StreamUtils.BUFFER_SIZE], Collections.<MessageDigest>emptyList());
+                                } finally {
+                                    content.close();
+                                }
+                                expectedETag.addPart(uploaded.getPartNumber(), content.getDigest());
+                                return uploaded;
+                            }
+                        }));
+                    }
+                    continue;
+                }
+                final long partOffset = offset;
                 final UploadPartRequest partRequest = new UploadPartRequest()
-                        .withUploadId(multipartUploadResult.getUploadId())
+                        .withUploadId(uploadId)
                         .withPartNumber(partNumber++)
-                        .withPartSize(Math.min(chunkSize, f.length() - offset))
+                        .withPartSize(Math.min(partSize, f.length() - offset))
                         .withBucketName(bucketName)
-                        .withKey(f.getName())
-                        .withFile(f)
-                        .withFileOffset(offset);
-                partRequest.setLastPart(chunkSize >= f.length() - offset);
-                final UploadPartResult result = s3Client.uploadPart(partRequest);
-                partETags.add(result.getPartETag());
-            }
-            CompleteMultipartUploadResult r = s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, f.getName(), multipartUploadResult.getUploadId(), partETags));
+                        .withKey(key);
+                partRequest.setLastPart(partSize >= f.length() - offset);
+                parts.add(executor.submit(new Callable<PartETag>() {
+                    @Override
+                    public PartETag call() throws Exception {
+                        final long partStart = System.nanoTime();
+                        if (t.progress != null) {
+                            t.progress.begin(BagMetrics.Phase.TRANSFER, "part " + partRequest.getPartNumber());
+                        }
+                        final PartETag partETag;
+                        final int othersInFlight;
+                        final AtomicReference<byte[]> digest = new AtomicReference<byte[]>();
+                        partsInFlight.incrementAndGet();
+                        try {
+                            partETag = retryPolicy.call(new Callable<PartETag>() {
+                                @Override
+                                public PartETag call() throws Exception {
+                                    // the part is digested as the client reads it, so each attempt needs a fresh stream
+                                    final MD5InputStream content = openPart(f, partOffset, partRequest.getPartSize());
+                                    partRequest.setInputStream(bandwidthLimiter == null ? content
+                                        : new ThrottledInputStream(content, bandwidthLimiter));
+                                    final PartProgress partProgress = t.progress == null ? null
+                                            : new PartProgress(t.progress, partRequest.getPartSize());
+                                    partRequest.setGeneralProgressListener(partProgress);
+                                    try {
+                                        final PartETag result = s3Client.uploadPart(partRequest).getPartETag();
+                                        digest.set(content.getDigest());
+                                        expectedETag.addPart(result.getPartNumber(), digest.get());
+                                        if (partProgress != null) {
+                                            partProgress.complete();
+                                        }
+                                        return result;
+                                    } catch (Exception e) {
+                                        if (partProgress != null) {
+                                            partProgress.fail();
+                                        }
+                                        throw e;
+                                    } finally {
+                                        content.close();
+                                    }
+                                }
+                            }, "Upload of part " + partRequest.getPartNumber() + " of " + key);
+                        } finally {
+                            othersInFlight = partsInFlight.decrementAndGet();
+                        }
+                        final BagMetrics.PartMetrics part = t.metrics.recordPart(partETag.getPartNumber(),
+                                partRequest.getPartSize(), System.nanoTime() - partStart);
+                        if (partListener != null) {
+                            partListener.partUploaded(key, part, othersInFlight);
+                        }
+                        if (journal != null) {
+                            journal.recordPart(partETag.getPartNumber(), partETag.getETag(),
+                                    partOffset, partRequest.getPartSize(), digest.get());
+                        }
+                        return partETag;
+                    }
+                }));
+            }
+            List<PartETag> partETags = new ArrayList<PartETag>();
+            for (Future<PartETag> part : parts) {
+                try {
+                    partETags.add(part.get());
+                } catch (ExecutionException e) {
+                    throw e.getCause();
+                }
+            }
+            CompleteMultipartUploadResult r = s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, uploadId, partETags));
+            stored(key, f.length());
+            if (journal != null) {
+                journal.delete();
+            }
             final long duration = System.currentTimeMillis() - start;
             t.amazonBagChecksum = "checksum not yet available";
             t.etag = r.getETag();
+            t.expectedEtag = expectedETag.getETag();
             LOGGER.info(f.getName() + "," + new Date() + ",transferred to S3," + f.length() + "," + t.amazonBagChecksum + ","
-                    + duration + ",");
+                    + duration + "," + (!t.isEtagVerified() ? "ETAG MISMATCH (expected " + t.expectedEtag + ")" : ""));
             t.transferred = true;
         } catch (Throwable thr) {
-            s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, f.getName(), multipartUploadResult.getUploadId()));
+            // stop any parts that are still queued or in flight before aborting
+            executor.shutdownNow();
+            if (journal == null) {
+                abortUpload(key, uploadId);
+            }
             LOGGER.error("ERROR with multipart upload!", thr);
             t.transferred = false;
-            t.message = "ERROR with multipart upload!  " + thr.getClass().getSimpleName() + ": " + t.getMessage();
+            t.message = "ERROR with multipart upload!  " + thr.getClass().getSimpleName() + ": " + thr.getMessage()
+                    + (journal != null ? "  (the upload may be resumed)" : "");
             throw thr;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Aborts the multipart uploads recorded by the journals in the journal
+     * directory that haven't been updated for the given time (such as those of
+     * bags whose transfers were abandoned rather than retried) and deletes the
+     * journals.  S3 otherwise keeps (and bills for) the parts of an upload that
+     * is never completed or aborted.  The age should exceed the time a part
+     * takes to upload, so that no transfer still under way is aborted.
+     * @return the number of journals removed
+     */
+    public int abortStaleUploads(long maxAgeMillis) throws IOException {
+        if (journalDirectory == null) {
+            throw new IllegalStateException("No journal directory is set!");
+        }
+        final long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        final File[] files = journalDirectory.listFiles();
+        int removed = 0;
+        for (File f : files == null ? new File[0] : files) {
+            if (!f.isFile() || !f.getName().endsWith(".journal") || f.lastModified() >= cutoff) {
+                continue;
+            }
+            final MultipartUploadJournal journal = new MultipartUploadJournal(f);
+            if (journal.getUploadId() != null) {
+                final String key = f.getName().substring(0, f.getName().length() - ".journal".length());
+                abortUpload(key, journal.getUploadId());
+                LOGGER.info("Aborted stale multipart upload of " + key + " (journal last updated "
+                        + new Date(f.lastModified()) + ").");
+            }
+            journal.delete();
+            removed ++;
+        }
+        return removed;
+    }
+
+    /**
+     * Aborts a multipart upload, ignoring one that no longer exists because it
+     * was already completed or aborted.
+     */
+    private void abortUpload(String key, String uploadId) {
+        try {
+            s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+        } catch (AmazonServiceException e) {
+            if (!"NoSuchUpload".equals(e.getErrorCode()) && e.getStatusCode() != 404) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Lists the parts of an existing multipart upload that may be reused: those
+     * whose size is what this submitter would upload for that part number and,
+     * when the journal recorded the part, whose ETag matches the journal.
+     * @throws AmazonServiceException if the upload no longer exists
+     */
+    private Map<Integer, PartETag> listUploadedParts(String key, String uploadId, long length, long partSize,
+                                                     Map<Integer, PartETag> recordedParts) {
+        final Map<Integer, PartETag> result = new HashMap<Integer, PartETag>();
+        Integer marker = null;
+        PartListing listing;
+        do {
+            listing = s3Client.listParts(new ListPartsRequest(bucketName, key, uploadId).withPartNumberMarker(marker));
+            for (PartSummary part : listing.getParts()) {
+                final long expectedSize = Math.min(partSize, length - (part.getPartNumber() - 1) * partSize);
+                final PartETag recorded = recordedParts.get(part.getPartNumber());
+                if (part.getSize() == expectedSize && (recorded == null || MultipartETag.matches(recorded.getETag(), part.getETag()))) {
+                    result.put(part.getPartNumber(), new PartETag(part.getPartNumber(), part.getETag()));
+                }
+            }
+            marker = listing.getNextPartNumberMarker();
+        } while (listing.isTruncated());
+        return result;
+    }
+
+    /**
+     * Opens a stream over part of a file that digests the content as it is read
+     * and may be reset by the S3 client to retry a request.
+     */
+    private static MD5InputStream openPart(File f, long offset, long length) throws IOException {
+        return new MD5InputStream(new InputSubstream(new RepeatableFileInputStream(f), offset, length, true));
+    }
+
+    /**
+     * A Future for a part that was uploaded by an earlier, interrupted attempt.
+     */
+    private static class CompletedPart implements Future<PartETag> {
+
+        private final PartETag partETag;
+
+        private CompletedPart(PartETag partETag) {
+            this.partETag = partETag;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return false;
+        }
+
+        public boolean isDone() {
+            return true;
+        }
+
+        public PartETag get() {
+            return partETag;
+        }
+
+        public PartETag get(long timeout, TimeUnit unit) {
+            return partETag;
+        }
+    }
+
+    /**
+     * Records a stored object in the bucket inventory, if there is one.
+     */
+    private void stored(String key, long size) {
+        if (bucketInventory != null) {
+            bucketInventory.put(key, size);
         }
     }
 
     private S3ObjectSummary getObjectSummary(String key) {
-        final ObjectListing l = s3Client.listObjects(bucketName, key);
+        if (bucketInventory != null && bucketInventory.covers(key)) {
+            return bucketInventory.get(key);
+        }
+        // the key itself sorts before any longer key it prefixes, so one result suffices
+        final ObjectListing l = s3Client.listObjects(new ListObjectsRequest().withBucketName(bucketName).withPrefix(key)
+                .withMaxKeys(1));
         final List<S3ObjectSummary> objects = l.getObjectSummaries();
         if (objects != null) {
             for (S3ObjectSummary o : objects) {
@@ -144,6 +808,51 @@ public class BagSubmitter {
         return null;
     }
 
+    /**
+     * Forwards the bytes the S3 client reports sending for one attempt to
+     * upload a part to the transfer's progress.  Once the attempt ends any
+     * late events are ignored: on success the part's remaining bytes (if the
+     * client reported fewer than the whole part) are added and on failure the
+     * bytes reported are withdrawn, so a retried part is counted once.
+     */
+    static class PartProgress implements com.amazonaws.event.ProgressListener {
+
+        private final ProgressTracker progress;
+
+        private final long partSize;
+
+        private long reported;
+
+        private boolean ended;
+
+        PartProgress(ProgressTracker progress, long partSize) {
+            this.progress = progress;
+            this.partSize = partSize;
+        }
+
+        @Override
+        public synchronized void progressChanged(ProgressEvent e) {
+            if (ended || e.getEventCode() != 0) {
+                return;
+            }
+            final long count = Math.min(e.getBytesTransferred(), partSize - reported);
+            if (count > 0) {
+                reported += count;
+                progress.add(count);
+            }
+        }
+
+        synchronized void complete() {
+            ended = true;
+            progress.add(partSize - reported);
+        }
+
+        synchronized void fail() {
+            ended = true;
+            progress.add(-reported);
+        }
+    }
+
     public static class TransferSummary {
 
         private boolean transferred;
@@ -164,6 +873,14 @@ public class BagSubmitter {
         
         private String etag;
 
+        private String expectedEtag;
+
+        private BagSummary bagSummary;
+
+        private BagMetrics metrics;
+
+        private ProgressTracker progress;
+
         public static TransferSummary WOULD_NOT_OVERWRITE() {
             TransferSummary t = new TransferSummary();
             t.transferred = false;
@@ -206,6 +923,43 @@ public class BagSubmitter {
             return this.etag;
         }
 
+        /**
+         * Gets the ETag S3 should have assigned to the bag, computed locally from
+         * the content as it was read or streamed for the transfer (for a
+         * multipart upload, the MD5 of the MD5s of its parts), or null if it
+         * isn't known.
+         */
+        public String getExpectedEtag() {
+            return this.expectedEtag;
+        }
+
+        /**
+         * Determines whether the ETag S3 assigned to the bag matches the one
+         * computed locally, which verifies the whole object (including every
+         * part of a multipart upload) without reading it back.
+         */
+        public boolean isEtagVerified() {
+            return MultipartETag.matches(this.expectedEtag, this.etag);
+        }
+
+        /**
+         * Gets the summary of the bag that was serialized during the transfer,
+         * or null if the bag was serialized before it was transferred.
+         */
+        public BagSummary getBagSummary() {
+            return this.bagSummary;
+        }
+
+        /**
+         * Gets the timings and volumes of the transfer (including the latency of
+         * each multipart part), or null if the transfer wasn't attempted.  When
+         * the bag was streamed, the metrics of its serialization are available
+         * from its BagSummary.
+         */
+        public BagMetrics getMetrics() {
+            return this.metrics;
+        }
+
     }
 
 }
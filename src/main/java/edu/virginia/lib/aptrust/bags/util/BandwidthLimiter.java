@@ -0,0 +1,92 @@
+package edu.virginia.lib.aptrust.bags.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket that limits the rate at which bytes are sent.  A single
+ * limiter may be shared by every upload (and by several BagSubmitters), so that
+ * together they stay within the limit however many parts are in flight.  The
+ * bucket holds at most one second's worth of bytes, so an idle period allows a
+ * short burst.  The limit may be changed at any time (for instance, lowered
+ * during business hours); the change applies to bytes sent after it is made.
+ * <pre>
+ *   BandwidthLimiter limiter = new BandwidthLimiter(50L * 1024 * 1024);
+ *   submitter.bandwidthLimiter(limiter);
+ *   ...
+ *   limiter.setBytesPerSecond(0); // no limit
+ * </pre>
+ * Callers reserve bytes in turn: each waits until the bytes reserved before it
+ * have been paid for, so the limit holds on average rather than per request.
+ */
+public class BandwidthLimiter {
+
+    private long bytesPerSecond;
+
+    /**
+     * The bytes that may be sent without waiting.
+     */
+    private double storedBytes;
+
+    /**
+     * The time at which the bytes reserved so far will have been paid for.
+     */
+    private long nextFreeNanos = System.nanoTime();
+
+    /**
+     * @param bytesPerSecond the limit, or zero for no limit
+     */
+    public BandwidthLimiter(long bytesPerSecond) {
+        setBytesPerSecond(bytesPerSecond);
+    }
+
+    /**
+     * Sets the limit.
+     * @param bytesPerSecond the limit, or zero for no limit
+     */
+    public synchronized void setBytesPerSecond(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("The limit may not be negative!");
+        }
+        refill(System.nanoTime());
+        this.bytesPerSecond = bytesPerSecond;
+        storedBytes = Math.min(storedBytes, bytesPerSecond);
+    }
+
+    public synchronized long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Waits until the given number of bytes may be sent.
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        final long waitUntil;
+        synchronized (this) {
+            if (bytesPerSecond == 0) {
+                return;
+            }
+            final long now = System.nanoTime();
+            refill(now);
+            final double fromStore = Math.min(bytes, storedBytes);
+            storedBytes -= fromStore;
+            waitUntil = nextFreeNanos;
+            nextFreeNanos += (long) ((bytes - fromStore) * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond);
+        }
+        final long wait = waitUntil - System.nanoTime();
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * Adds the bytes earned since the last reservation was paid for.
+     */
+    private void refill(long now) {
+        if (now > nextFreeNanos) {
+            storedBytes = Math.min(bytesPerSecond,
+                    storedBytes + (double) (now - nextFreeNanos) * bytesPerSecond / TimeUnit.SECONDS.toNanos(1));
+            nextFreeNanos = now;
+        }
+    }
+
+}
@@ -0,0 +1,356 @@
+package edu.virginia.lib.aptrust.bags.util;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A local index of the objects in a bucket, so that a BagSubmitter sending
+ * many bags can check whether each already exists without a listing request
+ * per bag.  The index is loaded with one paged listing when it is first
+ * consulted and is kept current by the submitter, which records every object
+ * it puts or deletes.  Because other clients may change the bucket, the index
+ * is refreshed once it is older than its time to live.
+ * <p>
+ * The listing is made without holding the index's lock, and each page is
+ * merged into the index as it arrives (replacing the entries in the range of
+ * keys it covers), so other threads keep using the index while it's refreshed
+ * rather than waiting for the whole listing.  If a listing fails, the index is
+ * dropped until the next refresh and the submitter checks each key with S3.
+ * <p>
+ * To bound memory, at most a maximum number of objects are indexed.  Keys are
+ * listed in order, so if the bucket holds more than that, indexing stops at
+ * that many objects: keys up to the last one indexed are still answered
+ * locally and later keys are checked with S3.
+ * <pre>
+ *   BucketInventory inventory = new BucketInventory(s3Client, bucket).ttl(30 * 60 * 1000);
+ *   BagSubmitter submitter = new BagSubmitter(s3Client, bucket).bucketInventory(inventory);
+ * </pre>
+ */
+public class BucketInventory {
+
+    final private static Logger LOGGER = LoggerFactory.getLogger(BucketInventory.class);
+
+    private final AmazonS3Client s3Client;
+
+    private final String bucketName;
+
+    private String prefix = "";
+
+    private long ttl = 60 * 60 * 1000;
+
+    private int maxEntries = 1000000;
+
+    /**
+     * The indexed objects, or null if there is no usable index.
+     */
+    private TreeMap<String, ObjectEntry> objects;
+
+    /**
+     * The last key through which the index is complete, or null if it's
+     * complete for every key under the prefix.
+     */
+    private String indexedThrough;
+
+    /**
+     * The objects stored (or, as null, deleted) while a refresh is under way,
+     * which are applied again to each page the refresh merges.
+     */
+    private Map<String, ObjectEntry> changes;
+
+    /**
+     * Set when entries are dropped to stay within the maximum, which ends any
+     * refresh under way.
+     */
+    private boolean truncated;
+
+    private boolean refreshing;
+
+    private int generation;
+
+    private long loadTime;
+
+    private int loadCount;
+
+    public BucketInventory(AmazonS3Client s3Client, String bucketName) {
+        this.s3Client = s3Client;
+        this.bucketName = bucketName;
+    }
+
+    /**
+     * Limits the index to objects whose keys begin with the given prefix; keys
+     * outside it are always checked with S3.  The default is the whole bucket.
+     */
+    public BucketInventory prefix(String prefix) {
+        this.prefix = prefix == null ? "" : prefix;
+        return this;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Sets how long the index is trusted before it's refreshed from S3.  The
+     * default is one hour.
+     */
+    public BucketInventory ttl(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("The time to live may not be negative!");
+        }
+        this.ttl = millis;
+        return this;
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    /**
+     * Sets the largest number of objects that are indexed.  The default is one
+     * million.
+     */
+    public BucketInventory maxEntries(int entries) {
+        if (entries < 1) {
+            throw new IllegalArgumentException("At least one entry must be allowed!");
+        }
+        this.maxEntries = entries;
+        return this;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Discards the index so that it's reloaded when next consulted.
+     */
+    public synchronized void invalidate() {
+        objects = null;
+        indexedThrough = null;
+        loadTime = 0;
+        generation ++;
+    }
+
+    /**
+     * Gets the number of objects indexed, or -1 if there is no usable index.
+     */
+    public synchronized int size() {
+        return objects == null ? -1 : objects.size();
+    }
+
+    /**
+     * Gets the number of times the index has been loaded from S3.
+     */
+    public synchronized int getLoadCount() {
+        return loadCount;
+    }
+
+    /**
+     * Returns true if the index can answer for the given key, refreshing it
+     * first if it has expired (unless another thread is already doing so).
+     */
+    boolean covers(String key) {
+        if (!key.startsWith(prefix)) {
+            return false;
+        }
+        boolean refresh = false;
+        synchronized (this) {
+            if (!refreshing && (loadTime == 0 || System.currentTimeMillis() - loadTime > ttl)) {
+                refreshing = true;
+                refresh = true;
+            }
+        }
+        if (refresh) {
+            refresh();
+        }
+        synchronized (this) {
+            return isIndexed(key);
+        }
+    }
+
+    /**
+     * Gets the summary of the object with the given key, or null if there is
+     * none.  Only meaningful when covers() has returned true for the key.
+     */
+    synchronized S3ObjectSummary get(String key) {
+        final ObjectEntry e = objects == null ? null : objects.get(key);
+        if (e == null) {
+            return null;
+        }
+        final S3ObjectSummary o = new S3ObjectSummary();
+        o.setBucketName(bucketName);
+        o.setKey(key);
+        o.setSize(e.size);
+        o.setLastModified(new Date(e.lastModified));
+        return o;
+    }
+
+    /**
+     * Records an object that has been stored.
+     */
+    synchronized void put(String key, long size) {
+        if (objects != null && key.startsWith(prefix)) {
+            final ObjectEntry e = new ObjectEntry(size, System.currentTimeMillis());
+            if (changes != null) {
+                changes.put(key, e);
+            }
+            if (isIndexed(key)) {
+                objects.put(key, e);
+                truncate();
+            }
+        }
+    }
+
+    /**
+     * Records an object that has been deleted.
+     */
+    synchronized void remove(String key) {
+        if (changes != null) {
+            changes.put(key, null);
+        }
+        if (objects != null) {
+            objects.remove(key);
+        }
+    }
+
+    private boolean isIndexed(String key) {
+        return objects != null && (indexedThrough == null || key.compareTo(indexedThrough) <= 0);
+    }
+
+    /**
+     * Drops the last entries while there are more than the maximum, so that
+     * the index is complete only through the last entry kept.
+     */
+    private void truncate() {
+        if (objects.size() <= maxEntries) {
+            return;
+        }
+        while (objects.size() > maxEntries) {
+            objects.pollLastEntry();
+        }
+        indexedThrough = objects.lastKey();
+        if (!truncated) {
+            truncated = true;
+            LOGGER.info("Bucket " + bucketName + " holds more than " + maxEntries + " objects; keys after "
+                    + indexedThrough + " will be checked with S3.");
+        }
+    }
+
+    /**
+     * Lists the bucket a page at a time, merging each page into the index.
+     */
+    private void refresh() {
+        final long start = System.currentTimeMillis();
+        final int refreshGeneration;
+        synchronized (this) {
+            refreshGeneration = generation;
+            changes = new HashMap<String, ObjectEntry>();
+            truncated = false;
+            if (objects == null) {
+                objects = new TreeMap<String, ObjectEntry>();
+                indexedThrough = "";
+            }
+        }
+        try {
+            ObjectListing listing = s3Client.listObjects(new ListObjectsRequest().withBucketName(bucketName).withPrefix(prefix));
+            String marker = null;
+            while (true) {
+                final List<S3ObjectSummary> page = listing.getObjectSummaries();
+                final String last = page.isEmpty() ? null : page.get(page.size() - 1).getKey();
+                if (!merge(refreshGeneration, marker, listing.isTruncated() ? last : null, page)
+                        || !listing.isTruncated()) {
+                    break;
+                }
+                marker = last;
+                listing = s3Client.listNextBatchOfObjects(listing);
+            }
+            synchronized (this) {
+                if (generation == refreshGeneration) {
+                    loadTime = start;
+                    loadCount ++;
+                    LOGGER.debug("Loaded inventory of " + objects.size() + " objects in " + bucketName + " in "
+                            + (System.currentTimeMillis() - start) + "ms.");
+                }
+            }
+        } catch (RuntimeException e) {
+            LOGGER.warn("Unable to list " + bucketName + "; existence will be checked with S3 until the inventory"
+                    + " is next refreshed.", e);
+            synchronized (this) {
+                if (generation == refreshGeneration) {
+                    objects = null;
+                    indexedThrough = null;
+                    loadTime = start;
+                }
+            }
+        } finally {
+            synchronized (this) {
+                changes = null;
+                refreshing = false;
+            }
+        }
+    }
+
+    /**
+     * Replaces the entries for the keys after the marker (or from the first
+     * key, if it's null) through the given last key (or every later key, if
+     * it's null) with those listed, then applies the changes recorded since
+     * the refresh began to that range.
+     * @return true if the refresh should continue
+     */
+    private synchronized boolean merge(int refreshGeneration, String marker, String last, List<S3ObjectSummary> page) {
+        if (generation != refreshGeneration || truncated) {
+            return false;
+        }
+        final Map<String, ObjectEntry> range;
+        if (marker == null) {
+            range = last == null ? objects : objects.headMap(last, true);
+        } else {
+            range = last == null ? objects.tailMap(marker, false) : objects.subMap(marker, false, last, true);
+        }
+        range.clear();
+        for (S3ObjectSummary o : page) {
+            objects.put(o.getKey(), new ObjectEntry(o.getSize(),
+                    o.getLastModified() == null ? 0 : o.getLastModified().getTime()));
+        }
+        for (Map.Entry<String, ObjectEntry> change : changes.entrySet()) {
+            final String key = change.getKey();
+            if ((marker == null || key.compareTo(marker) > 0) && (last == null || key.compareTo(last) <= 0)) {
+                if (change.getValue() == null) {
+                    objects.remove(key);
+                } else {
+                    objects.put(key, change.getValue());
+                }
+            }
+        }
+        if (last == null) {
+            indexedThrough = null;
+        } else if (indexedThrough != null && indexedThrough.compareTo(last) < 0) {
+            indexedThrough = last;
+        }
+        truncate();
+        return !truncated;
+    }
+
+    private static class ObjectEntry {
+
+        private final long size;
+
+        private final long lastModified;
+
+        private ObjectEntry(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+}
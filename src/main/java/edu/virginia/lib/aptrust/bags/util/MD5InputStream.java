@@ -0,0 +1,83 @@
+package edu.virginia.lib.aptrust.bags.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+/**
+ * An InputStream that computes the MD5 digest of the content read through it.
+ * Unlike a DigestInputStream it may be reset (as the S3 client does when it
+ * retries a request) without the content that is read again being digested
+ * twice: the digest is restored to its state when the stream was marked.
+ */
+class MD5InputStream extends FilterInputStream {
+
+    private MessageDigest md5 = MultipartETag.newMD5();
+
+    private MessageDigest marked;
+
+    MD5InputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        final int b = super.read();
+        if (b != -1) {
+            md5.update((byte) b);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        final int read = super.read(b, off, len);
+        if (read > 0) {
+            md5.update(b, off, read);
+        }
+        return read;
+    }
+
+    /**
+     * Reads and digests (rather than skips) the content.
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        final byte[] scratch = new byte[8192];
+        long skipped = 0;
+        int read;
+        while (skipped < n && (read = read(scratch, 0, (int) Math.min(scratch.length, n - skipped))) != -1) {
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        super.mark(readlimit);
+        marked = copy(md5);
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        super.reset();
+        md5 = marked == null ? MultipartETag.newMD5() : copy(marked);
+    }
+
+    /**
+     * Gets the digest of the content read so far.
+     */
+    byte[] getDigest() {
+        return copy(md5).digest();
+    }
+
+    private static MessageDigest copy(MessageDigest digest) {
+        try {
+            return (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
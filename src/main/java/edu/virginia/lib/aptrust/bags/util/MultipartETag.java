@@ -0,0 +1,78 @@
+package edu.virginia.lib.aptrust.bags.util;
+
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Computes the ETag S3 assigns to an object assembled from a multipart upload
+ * (the hex MD5 of the concatenated MD5 digests of its parts followed by "-"
+ * and the number of parts) from the digests of the parts as they are uploaded.
+ * Parts may be added in any order and from any thread.
+ */
+public class MultipartETag {
+
+    private final SortedMap<Integer, byte[]> partDigests = new TreeMap<Integer, byte[]>();
+
+    /**
+     * Records the MD5 digest of a part.
+     */
+    public synchronized void addPart(int partNumber, byte[] md5) {
+        partDigests.put(partNumber, md5);
+    }
+
+    public synchronized int getPartCount() {
+        return partDigests.size();
+    }
+
+    /**
+     * Gets the ETag of an object made up of the parts added so far.
+     * @throws IllegalStateException if the part numbers aren't 1 through the
+     *         number of parts
+     */
+    public synchronized String getETag() {
+        final MessageDigest md5 = newMD5();
+        int expected = 1;
+        for (Map.Entry<Integer, byte[]> part : partDigests.entrySet()) {
+            if (part.getKey() != expected ++) {
+                throw new IllegalStateException("Part " + (expected - 1) + " is missing!");
+            }
+            md5.update(part.getValue());
+        }
+        return String.valueOf(Hex.encodeHex(md5.digest())) + "-" + partDigests.size();
+    }
+
+    /**
+     * Compares two ETags, ignoring the quotes S3 sometimes includes and case.
+     */
+    public static boolean matches(String etag, String other) {
+        return etag != null && other != null && unquote(etag).equalsIgnoreCase(unquote(other));
+    }
+
+    private static String unquote(String etag) {
+        return etag.length() > 1 && etag.startsWith("\"") && etag.endsWith("\"") ? etag.substring(1, etag.length() - 1) : etag;
+    }
+
+    /**
+     * Computes the MD5 digest of part of a buffer.
+     */
+    static byte[] md5(byte[] buffer, int offset, int length) {
+        final MessageDigest md5 = newMD5();
+        md5.update(buffer, offset, length);
+        return md5.digest();
+    }
+
+    static MessageDigest newMD5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
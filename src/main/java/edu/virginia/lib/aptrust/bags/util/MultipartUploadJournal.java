@@ -0,0 +1,177 @@
+package edu.virginia.lib.aptrust.bags.util;
+
+import com.amazonaws.services.s3.model.PartETag;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A small local record of the progress of a multipart upload, so that an
+ * upload interrupted by a failure may be resumed rather than restarted.  The
+ * journal is a text file whose first line identifies the upload and the file
+ * being uploaded:
+ * <pre>
+ *   upload [upload id] [file length] [file last modified] [part size]
+ * </pre>
+ * followed by one line for each part known to have been uploaded:
+ * <pre>
+ *   part [part number] [etag] [offset] [length] [md5]
+ * </pre>
+ * where the hex-encoded MD5 of the part's content (which is absent from
+ * journals written before it was recorded) lets a resumed upload compute the
+ * expected ETag of the object without reading the parts again.
+ * Lines are appended (and flushed) as parts complete, so the journal survives
+ * the process being killed.  Instances are safe for use by concurrent part
+ * uploads.
+ */
+public class MultipartUploadJournal {
+
+    private final File file;
+
+    private String uploadId;
+
+    private long length;
+
+    private long lastModified;
+
+    private long partSize;
+
+    private final Map<Integer, PartETag> parts = new HashMap<Integer, PartETag>();
+
+    private final Map<Integer, byte[]> digests = new HashMap<Integer, byte[]>();
+
+    /**
+     * Creates a journal backed by the given file, reading its content if it
+     * exists.  An unreadable journal is treated as absent.
+     */
+    public MultipartUploadJournal(File file) throws IOException {
+        this.file = file;
+        if (file.exists()) {
+            final BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while ((line = r.readLine()) != null) {
+                    final String[] fields = line.split(" ");
+                    if (fields[0].equals("upload") && fields.length == 5) {
+                        uploadId = fields[1];
+                        length = Long.parseLong(fields[2]);
+                        lastModified = Long.parseLong(fields[3]);
+                        partSize = Long.parseLong(fields[4]);
+                    } else if (fields[0].equals("part") && (fields.length == 5 || fields.length == 6) && uploadId != null) {
+                        final int partNumber = Integer.parseInt(fields[1]);
+                        parts.put(partNumber, new PartETag(partNumber, fields[2]));
+                        if (fields.length == 6) {
+                            digests.put(partNumber, Hex.decodeHex(fields[5].toCharArray()));
+                        }
+                    }
+                }
+            } catch (NumberFormatException e) {
+                uploadId = null;
+                parts.clear();
+                digests.clear();
+            } catch (DecoderException e) {
+                uploadId = null;
+                parts.clear();
+                digests.clear();
+            } finally {
+                r.close();
+            }
+        }
+    }
+
+    /**
+     * Determines whether this journal records an upload of a file with the
+     * given length and modification time, split into parts of the given size.
+     */
+    public synchronized boolean matches(long length, long lastModified, long partSize) {
+        return uploadId != null && this.length == length && this.lastModified == lastModified && this.partSize == partSize;
+    }
+
+    public synchronized String getUploadId() {
+        return uploadId;
+    }
+
+    /**
+     * Gets the parts that have been recorded as uploaded, keyed by part number.
+     */
+    public synchronized Map<Integer, PartETag> getRecordedParts() {
+        return new HashMap<Integer, PartETag>(parts);
+    }
+
+    /**
+     * Gets the MD5 digest recorded for the content of the given part, or null
+     * if none was recorded.
+     */
+    public synchronized byte[] getRecordedDigest(int partNumber) {
+        return digests.get(partNumber);
+    }
+
+    /**
+     * Starts a new journal (replacing any existing one) for the given upload.
+     */
+    public synchronized void start(String uploadId, long length, long lastModified, long partSize) throws IOException {
+        this.uploadId = uploadId;
+        this.length = length;
+        this.lastModified = lastModified;
+        this.partSize = partSize;
+        this.parts.clear();
+        this.digests.clear();
+        file.getParentFile().mkdirs();
+        write("upload " + uploadId + " " + length + " " + lastModified + " " + partSize, false);
+    }
+
+    /**
+     * Records that a part has been uploaded.
+     */
+    public synchronized void recordPart(int partNumber, String etag, long offset, long length) throws IOException {
+        recordPart(partNumber, etag, offset, length, null);
+    }
+
+    /**
+     * Records that a part with content of the given MD5 digest has been
+     * uploaded.
+     * @param md5 the digest of the part's content, or null if it isn't known
+     */
+    public synchronized void recordPart(int partNumber, String etag, long offset, long length, byte[] md5) throws IOException {
+        parts.put(partNumber, new PartETag(partNumber, etag));
+        if (md5 != null) {
+            digests.put(partNumber, md5);
+        }
+        write("part " + partNumber + " " + etag + " " + offset + " " + length
+                + (md5 == null ? "" : " " + String.valueOf(Hex.encodeHex(md5))), true);
+    }
+
+    /**
+     * Deletes the journal, which should be done once the upload has been
+     * completed or aborted.
+     */
+    public synchronized void delete() {
+        uploadId = null;
+        parts.clear();
+        digests.clear();
+        file.delete();
+    }
+
+    private void write(String line, boolean append) throws IOException {
+        final FileOutputStream fos = new FileOutputStream(file, append);
+        try {
+            final Writer w = new OutputStreamWriter(fos, "UTF-8");
+            w.write(line + "\n");
+            w.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+    }
+
+}
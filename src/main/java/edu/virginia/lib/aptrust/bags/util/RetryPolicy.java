@@ -0,0 +1,53 @@
+package edu.virginia.lib.aptrust.bags.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Repeats an operation that fails, waiting an exponentially increasing amount
+ * of time (starting with the backoff) between attempts.
+ */
+class RetryPolicy {
+
+    final private static Logger LOGGER = LoggerFactory.getLogger(RetryPolicy.class);
+
+    private final int retries;
+
+    private final long backoffMillis;
+
+    /**
+     * @param retries the number of times to retry after the first attempt fails
+     * @param backoffMillis the time to wait before the first retry
+     */
+    RetryPolicy(int retries, long backoffMillis) {
+        this.retries = retries;
+        this.backoffMillis = backoffMillis;
+    }
+
+    /**
+     * Calls the operation until it succeeds or the retries are exhausted, in
+     * which case the last failure is thrown.
+     * @param description a description of the operation for logging
+     */
+    <T> T call(Callable<T> operation, String description) throws Exception {
+        long delay = backoffMillis;
+        for (int attempt = 0; ; attempt ++) {
+            try {
+                return operation.call();
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                if (attempt >= retries) {
+                    throw e;
+                }
+                LOGGER.warn(description + " failed (attempt " + (attempt + 1) + " of " + (retries + 1)
+                        + "), retrying in " + delay + "ms: " + e.getMessage());
+                Thread.sleep(delay);
+                delay *= 2;
+            }
+        }
+    }
+
+}
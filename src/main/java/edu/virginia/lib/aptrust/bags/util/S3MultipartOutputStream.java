@@ -0,0 +1,436 @@
+package edu.virginia.lib.aptrust.bags.util;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import edu.virginia.lib.aptrust.bags.BagMetrics;
+import edu.virginia.lib.aptrust.bags.PartListener;
+import edu.virginia.lib.aptrust.bags.ProgressTracker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An OutputStream that stores everything written to it as a single S3 object
+ * using a multipart upload.  Content is accumulated in a buffer the size of one
+ * part and each part is handed to a background upload as soon as the buffer
+ * fills.  Up to a fixed number of parts may be uploading at once while the next
+ * is being filled, within a limit on the total size of the buffers (by default
+ * the part size times that number, plus one), so the amount of memory used is
+ * bounded no matter how large the object is.  Writes block when every buffer
+ * is in use.  The upload is completed when the stream
+ * is closed; if anything goes wrong the upload is aborted so that no partial
+ * object is left behind.  The MD5 of each part is computed from its buffer as
+ * it is uploaded, so that the ETag S3 should assign to the object is known
+ * without reading the content again.
+ * <p>
+ * Since the size of the object isn't known in advance, the part size doubles
+ * after every PARTS_PER_SIZE parts (up to MAX_BUFFER_SIZE) so that 10,000
+ * parts (S3's limit) cover the largest object S3 accepts, 5 TiB, from any
+ * starting part size; writing more than 10,000 parts fails.  As the parts grow
+ * fewer buffers fit within the limit, so fewer parts are uploaded at once,
+ * down to a single buffer once a part is as large as the limit.  The memory
+ * used is therefore at most the larger of the limit and the current part size.
+ */
+public class S3MultipartOutputStream extends OutputStream {
+
+    final private static Logger LOGGER = LoggerFactory.getLogger(S3MultipartOutputStream.class);
+
+    /**
+     * The smallest part size S3 accepts (for every part but the last).
+     */
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    /**
+     * The number of parts uploaded at each part size before it doubles.  From
+     * the smallest part size, 10,000 parts hold about 6.5 TiB.
+     */
+    public static final int PARTS_PER_SIZE = 500;
+
+    /**
+     * The largest part size (and so buffer size) the parts grow to.
+     */
+    public static final int MAX_BUFFER_SIZE = 1024 * 1024 * 1024;
+
+    private final AmazonS3Client s3Client;
+
+    private final String bucketName;
+
+    private final String key;
+
+    private final String uploadId;
+
+    private final int partSize;
+
+    private final RetryPolicy retryPolicy;
+
+    private final BagMetrics metrics;
+
+    private final ProgressTracker progress;
+
+    private final BandwidthLimiter limiter;
+
+    private final PartListener partListener;
+
+    private final AtomicInteger partsInFlight = new AtomicInteger();
+
+    private final int maxBuffers;
+
+    private final long maxBufferedBytes;
+
+    private int allocatedBuffers;
+
+    private long allocatedBytes;
+
+    private final BlockingQueue<byte[]> freeBuffers;
+
+    private final ExecutorService executor;
+
+    private final List<Future<PartETag>> parts = new ArrayList<Future<PartETag>>();
+
+    private final MultipartETag expectedETag = new MultipartETag();
+
+    private int checkedParts;
+
+    private byte[] buffer;
+
+    private int buffered;
+
+    private long size;
+
+    private CompleteMultipartUploadResult result;
+
+    private boolean aborted;
+
+    /**
+     * Initiates a multipart upload to the given key that uploads one part at a
+     * time (in the background, while the next part is filled).
+     * @param partSize the size of each of the first PARTS_PER_SIZE parts (and
+     *                 of each buffer)
+     */
+    public S3MultipartOutputStream(final AmazonS3Client s3Client, final String bucketName, final String key, final int partSize) {
+        this(s3Client, bucketName, key, partSize, 1);
+    }
+
+    /**
+     * Initiates a multipart upload to the given key.
+     * @param partSize the size of each of the first PARTS_PER_SIZE parts (and
+     *                 of each buffer)
+     * @param concurrentParts the number of parts that may be uploading at once
+     */
+    public S3MultipartOutputStream(final AmazonS3Client s3Client, final String bucketName, final String key,
+                                   final int partSize, final int concurrentParts) {
+        this(s3Client, bucketName, key, partSize, concurrentParts, 0, new RetryPolicy(0, 0), null, null, null, null);
+    }
+
+    /**
+     * Initiates a multipart upload to the given key whose parts are retried
+     * according to the given policy.
+     * @param maxBufferedBytes the limit on the total size of the buffers, or 0
+     *                         for the part size times (concurrentParts + 1)
+     * @param metrics the metrics into which the latency of each part is
+     *                recorded, or null
+     * @param progress the progress to which each part is added once it is
+     *                 uploaded, or null
+     * @param limiter the limiter on the rate at which parts are sent, or null
+     * @param partListener the listener to which each part is reported once it
+     *                     is uploaded, or null (it is only called if there are
+     *                     metrics)
+     */
+    S3MultipartOutputStream(final AmazonS3Client s3Client, final String bucketName, final String key,
+                            final int partSize, final int concurrentParts, final long maxBufferedBytes,
+                            final RetryPolicy retryPolicy,
+                            final BagMetrics metrics, final ProgressTracker progress, final BandwidthLimiter limiter,
+                            final PartListener partListener) {
+        if (partSize < MIN_PART_SIZE || partSize > MAX_BUFFER_SIZE) {
+            throw new IllegalArgumentException("Part size must be between " + MIN_PART_SIZE + " and " + MAX_BUFFER_SIZE
+                    + " bytes!");
+        }
+        if (concurrentParts < 1) {
+            throw new IllegalArgumentException("At least one part must be allowed in flight!");
+        }
+        if (maxBufferedBytes < 0) {
+            throw new IllegalArgumentException("The buffer limit must not be negative!");
+        }
+        this.s3Client = s3Client;
+        this.bucketName = bucketName;
+        this.key = key;
+        this.partSize = partSize;
+        this.retryPolicy = retryPolicy;
+        this.metrics = metrics;
+        this.progress = progress;
+        this.limiter = limiter;
+        this.partListener = partListener;
+        this.maxBuffers = concurrentParts + 1;
+        this.maxBufferedBytes = maxBufferedBytes == 0 ? (long) partSize * maxBuffers : maxBufferedBytes;
+        this.freeBuffers = new ArrayBlockingQueue<byte[]>(maxBuffers);
+        this.uploadId = s3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, key)).getUploadId();
+        this.executor = Executors.newFixedThreadPool(concurrentParts);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (result != null || aborted) {
+            throw new IOException("Stream is closed!");
+        }
+        if (buffer == null) {
+            buffer = nextBuffer();
+        }
+        buffer[buffered ++] = (byte) b;
+        size ++;
+        if (buffered == buffer.length) {
+            uploadPart(false);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (result != null || aborted) {
+            throw new IOException("Stream is closed!");
+        }
+        while (len > 0) {
+            if (buffer == null) {
+                buffer = nextBuffer();
+            }
+            final int count = Math.min(len, buffer.length - buffered);
+            System.arraycopy(b, off, buffer, buffered, count);
+            buffered += count;
+            off += count;
+            len -= count;
+            size += count;
+            if (buffered == buffer.length) {
+                uploadPart(false);
+            }
+        }
+    }
+
+    /**
+     * Uploads the final (possibly short) part and completes the upload.
+     */
+    @Override
+    public void close() throws IOException {
+        if (result != null || aborted) {
+            return;
+        }
+        if (buffered > 0 || parts.isEmpty()) {
+            if (buffer == null) {
+                buffer = nextBuffer();
+            }
+            uploadPart(true);
+        }
+        final List<PartETag> partETags = new ArrayList<PartETag>();
+        for (Future<PartETag> part : parts) {
+            partETags.add(getPartETag(part));
+        }
+        try {
+            result = s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, uploadId, partETags));
+        } catch (RuntimeException e) {
+            abort();
+            throw new IOException("Unable to complete multipart upload of " + key + "!", e);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Aborts the upload, discarding any parts that have been uploaded.  This
+     * has no effect if the upload was already completed or aborted.
+     */
+    public void abort() {
+        if (result != null || aborted) {
+            return;
+        }
+        aborted = true;
+        executor.shutdownNow();
+        try {
+            s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+        } catch (RuntimeException e) {
+            LOGGER.error("Unable to abort multipart upload of " + key + "!", e);
+        }
+    }
+
+    /**
+     * Hands the current buffer to the executor to be uploaded as the next part.
+     */
+    private void uploadPart(final boolean lastPart) throws IOException {
+        final byte[] partBuffer = buffer;
+        final int partNumber = parts.size() + 1;
+        final int partLength = buffered;
+        parts.add(executor.submit(new Callable<PartETag>() {
+            @Override
+            public PartETag call() throws Exception {
+                final long start = System.nanoTime();
+                if (progress != null) {
+                    progress.begin(BagMetrics.Phase.TRANSFER, "part " + partNumber);
+                }
+                try {
+                    final byte[] md5 = MultipartETag.md5(partBuffer, 0, partLength);
+                    final PartETag partETag;
+                    final int othersInFlight;
+                    partsInFlight.incrementAndGet();
+                    try {
+                        partETag = retryPolicy.call(new Callable<PartETag>() {
+                            @Override
+                            public PartETag call() throws Exception {
+                                // each attempt needs a fresh stream over the buffered part
+                                final InputStream content = new ByteArrayInputStream(partBuffer, 0, partLength);
+                                final UploadPartRequest partRequest = new UploadPartRequest()
+                                        .withUploadId(uploadId)
+                                        .withPartNumber(partNumber)
+                                        .withPartSize(partLength)
+                                        .withBucketName(bucketName)
+                                        .withKey(key)
+                                        .withInputStream(limiter == null ? content : new ThrottledInputStream(content, limiter));
+                                partRequest.setLastPart(lastPart);
+                                return s3Client.uploadPart(partRequest).getPartETag();
+                            }
+                        }, "Upload of part " + partNumber + " of " + key);
+                    } finally {
+                        othersInFlight = partsInFlight.decrementAndGet();
+                    }
+                    expectedETag.addPart(partNumber, md5);
+                    if (metrics != null) {
+                        final BagMetrics.PartMetrics part = metrics.recordPart(partNumber, partLength, System.nanoTime() - start);
+                        if (partListener != null) {
+                            partListener.partUploaded(key, part, othersInFlight);
+                        }
+                    }
+                    if (progress != null) {
+                        progress.add(partLength);
+                    }
+                    return partETag;
+                } finally {
+                    freeBuffers.add(partBuffer);
+                }
+            }
+        }));
+        buffer = null;
+        buffered = 0;
+    }
+
+    /**
+     * Gets the size of the given part, which doubles after every PARTS_PER_SIZE
+     * parts up to MAX_BUFFER_SIZE.
+     */
+    int getPartSize(int partNumber) {
+        long size = partSize;
+        for (int step = (partNumber - 1) / PARTS_PER_SIZE; step > 0 && size < MAX_BUFFER_SIZE; step --) {
+            size *= 2;
+        }
+        return (int) Math.min(size, MAX_BUFFER_SIZE);
+    }
+
+    /**
+     * Gets a buffer to fill, allocating one if another fits within the limits
+     * (or none is allocated) or waiting for an upload to finish otherwise.
+     * Buffers smaller than the next part are dropped once the part size has
+     * grown.  Failed uploads are detected here so that the caller stops writing
+     * as soon as possible.
+     */
+    private byte[] nextBuffer() throws IOException {
+        checkFinishedParts();
+        if (parts.size() >= BagSubmitter.MAX_PARTS) {
+            abort();
+            throw new IOException(key + " is too large to upload in " + BagSubmitter.MAX_PARTS + " parts!");
+        }
+        final int size = getPartSize(parts.size() + 1);
+        byte[] next = freeBuffers.poll();
+        try {
+            while (next == null || next.length != size) {
+                if (next != null) {
+                    allocatedBuffers --;
+                    allocatedBytes -= next.length;
+                }
+                if (allocatedBuffers == 0
+                        || (allocatedBuffers < maxBuffers && allocatedBytes + size <= maxBufferedBytes)) {
+                    allocatedBuffers ++;
+                    allocatedBytes += size;
+                    return new byte[size];
+                }
+                next = freeBuffers.poll(1, TimeUnit.SECONDS);
+                checkFinishedParts();
+            }
+        } catch (InterruptedException e) {
+            abort();
+            throw new InterruptedIOException("Interrupted while waiting for a part upload!");
+        }
+        return next;
+    }
+
+    /**
+     * Checks the results of the parts that have finished uploading (in part
+     * order) so that a failure is reported without waiting for the whole object.
+     */
+    private void checkFinishedParts() throws IOException {
+        while (checkedParts < parts.size() && parts.get(checkedParts).isDone()) {
+            getPartETag(parts.get(checkedParts ++));
+        }
+    }
+
+    /**
+     * Gets the result of a part upload, aborting the upload if it failed.
+     */
+    private PartETag getPartETag(Future<PartETag> part) throws IOException {
+        try {
+            return part.get();
+        } catch (ExecutionException e) {
+            abort();
+            throw new IOException("Unable to upload a part of " + key + "!", e.getCause());
+        } catch (InterruptedException e) {
+            abort();
+            throw new InterruptedIOException("Interrupted while waiting for a part upload!");
+        }
+    }
+
+    /**
+     * Gets the total size of the buffers currently allocated.
+     */
+    long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Gets the number of bytes written to this stream.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Gets the ETag of the completed object, or null if the stream has not
+     * been closed.
+     */
+    public String getETag() {
+        return result == null ? null : result.getETag();
+    }
+
+    /**
+     * Gets the ETag S3 should have assigned to the completed object, computed
+     * from the content written to this stream, or null if the stream has not
+     * been closed.
+     */
+    public String getExpectedETag() {
+        return result == null ? null : expectedETag.getETag();
+    }
+
+}
@@ -0,0 +1,140 @@
+package edu.virginia.lib.aptrust.bags.util;
+
+import edu.virginia.lib.aptrust.bags.ProgressTracker;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.Collection;
+
+/**
+ * Static helpers for moving bag content between streams and channels.
+ */
+public class StreamUtils {
+
+    /**
+     * The size of the buffers used to copy and hash payload content.  Large
+     * buffers keep the number of reads, writes and digest updates per file
+     * small.
+     */
+    public static final int BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * The most transferred by one FileChannel.transferTo() call when progress
+     * is being tracked, so that progress is reported during large files.
+     */
+    private static final long TRANSFER_CHUNK_SIZE = 64L * BUFFER_SIZE;
+
+    /**
+     * Copies the remaining content of the input stream to the output stream,
+     * updating each of the supplied digests with every byte as it passes.
+     * Neither stream is closed and the digests are not reset beforehand.
+     * @param in the source of the content
+     * @param out the destination of the content, or null if the content should
+     *            only be digested
+     * @param buffer the buffer to use for the copy
+     * @param digests digests to be updated with the content
+     * @return the number of bytes copied
+     */
+    public static long copy(final InputStream in, final OutputStream out, final byte[] buffer,
+                            final Collection<MessageDigest> digests) throws IOException {
+        return copy(in, out, buffer, digests, null);
+    }
+
+    /**
+     * Copies as copy(InputStream, OutputStream, byte[], Collection) does, adding
+     * each buffer's worth of bytes to the given progress as it is written.
+     * @param progress the progress to update, or null
+     */
+    public static long copy(final InputStream in, final OutputStream out, final byte[] buffer,
+                            final Collection<MessageDigest> digests, final ProgressTracker progress) throws IOException {
+        long count = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            for (MessageDigest digest : digests) {
+                digest.update(buffer, 0, read);
+            }
+            if (out != null) {
+                out.write(buffer, 0, read);
+            }
+            if (progress != null) {
+                progress.add(read);
+            }
+            count += read;
+        }
+        return count;
+    }
+
+    /**
+     * Copies the remaining content of the input channel to the output channel,
+     * updating each of the supplied digests with every byte as it passes.
+     * When there are no digests to update the content is moved with
+     * FileChannel.transferTo(), which lets the operating system copy it without
+     * passing it through the JVM; otherwise each chunk is read into the buffer
+     * once, digested and written from the same buffer.  Neither channel is
+     * closed and the digests are not reset beforehand.
+     * @param in the source of the content
+     * @param out the destination of the content, or null if the content should
+     *            only be digested
+     * @param buffer the buffer to use when the content must be digested; a heap
+     *               buffer avoids a copy per digest update, but a direct buffer
+     *               may also be supplied
+     * @param digests digests to be updated with the content
+     * @return the number of bytes copied
+     */
+    public static long copy(final FileChannel in, final WritableByteChannel out, final ByteBuffer buffer,
+                            final Collection<MessageDigest> digests) throws IOException {
+        return copy(in, out, buffer, digests, null);
+    }
+
+    /**
+     * Copies as copy(FileChannel, WritableByteChannel, ByteBuffer, Collection)
+     * does, adding each chunk of bytes to the given progress as it is written.
+     * @param progress the progress to update, or null
+     */
+    public static long copy(final FileChannel in, final WritableByteChannel out, final ByteBuffer buffer,
+                            final Collection<MessageDigest> digests, final ProgressTracker progress) throws IOException {
+        long count = 0;
+        if (digests.isEmpty() && out != null) {
+            final long chunkSize = progress == null ? Long.MAX_VALUE : TRANSFER_CHUNK_SIZE;
+            long transferred;
+            while ((transferred = in.transferTo(in.position() + count, chunkSize, out)) > 0) {
+                count += transferred;
+                if (progress != null) {
+                    progress.add(transferred);
+                }
+            }
+            in.position(in.position() + count);
+            return count;
+        }
+        int read;
+        buffer.clear();
+        while ((read = in.read(buffer)) != -1) {
+            buffer.flip();
+            for (MessageDigest digest : digests) {
+                if (buffer.hasArray()) {
+                    digest.update(buffer.array(), buffer.arrayOffset(), read);
+                } else {
+                    digest.update(buffer);
+                    buffer.rewind();
+                }
+            }
+            if (out != null) {
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            }
+            if (progress != null) {
+                progress.add(read);
+            }
+            buffer.clear();
+            count += read;
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,53 @@
+package edu.virginia.lib.aptrust.bags.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * An InputStream whose reads wait on a BandwidthLimiter, so that content sent
+ * as it is read (as the S3 client sends a request body) is sent no faster than
+ * the limit allows.  Reads are limited to small chunks so that the rate is
+ * smooth.  Content read again after a reset is counted again, since it is
+ * sent again.
+ */
+class ThrottledInputStream extends FilterInputStream {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final BandwidthLimiter limiter;
+
+    ThrottledInputStream(InputStream in, BandwidthLimiter limiter) {
+        super(in);
+        this.limiter = limiter;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final int b = super.read();
+        if (b != -1) {
+            acquire(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        final int read = super.read(b, off, Math.min(len, CHUNK_SIZE));
+        if (read > 0) {
+            acquire(read);
+        }
+        return read;
+    }
+
+    private void acquire(int bytes) throws IOException {
+        try {
+            limiter.acquire(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for bandwidth!");
+        }
+    }
+
+}
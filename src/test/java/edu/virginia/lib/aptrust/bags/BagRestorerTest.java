@@ -0,0 +1,97 @@
+package edu.virginia.lib.aptrust.bags;
+
+import gov.loc.repository.bagit.reader.BagReader;
+import gov.loc.repository.bagit.verify.BagVerifier;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.UUID;
+
+public class BagRestorerTest {
+
+    private File outputDir;
+
+    private File restoreDir;
+
+    @Before
+    public void setUp() {
+        outputDir = new File("target/restore-output");
+        restoreDir = new File(outputDir, "restored-" + UUID.randomUUID().toString());
+    }
+
+    @Test
+    public void testTarFileIsRestored() throws Exception {
+        final BagSummary summary = createBag().serializeAPTrustBag(outputDir, true);
+        // small buffers, so that files span several of them and the reader must wait for the writers
+        final RestoreSummary restored = new BagRestorer().threads(3).buffers(2, 3).restore(summary.getFile(), restoreDir);
+        Assert.assertTrue(restored.getErrors().toString(), restored.isValid());
+        Assert.assertEquals(3, restored.getPayloadFileCount());
+        Assert.assertEquals(summary.getBagPayloadSize(), restored.getPayloadSize());
+        Assert.assertEquals("second file", FileUtils.readFileToString(new File(restored.getBagDir(), "data/subdir/f2.txt")));
+        new BagVerifier().isValid(new BagReader().read(restored.getBagDir().toPath()), false);
+    }
+
+    @Test
+    public void testCorruptFileIsReported() throws Exception {
+        final BagSummary summary = createBag().tarIndex(true).serializeAPTrustBag(outputDir, true);
+        final RandomAccessFile raf = new RandomAccessFile(summary.getFile(), "rw");
+        try {
+            raf.seek(summary.getTarIndex().find("data/subdir/f2.txt").getDataOffset());
+            raf.write('S');
+        } finally {
+            raf.close();
+        }
+
+        RestoreSummary restored = new BagRestorer().restore(summary.getFile(), restoreDir);
+        Assert.assertEquals(Arrays.asList("data/subdir/f2.txt"), restored.getMismatches());
+        Assert.assertEquals(1, restored.getErrors().size());
+
+        // the manifests of a streamed tar are only known once it has been read
+        final InputStream in = new FileInputStream(summary.getFile());
+        try {
+            restored = new BagRestorer().restore(in, summary.getFile().getName().replace(".tar", ""),
+                    new File(outputDir, "streamed-" + UUID.randomUUID().toString()));
+        } finally {
+            in.close();
+        }
+        Assert.assertEquals(Arrays.asList("data/subdir/f2.txt"), restored.getMismatches());
+        Assert.assertEquals(3, restored.getPayloadFileCount());
+    }
+
+    @Test
+    public void testEntriesOutsideTheBagAreNotWritten() throws Exception {
+        outputDir.mkdirs();
+        final File tarFile = new File(outputDir, "escape.tar");
+        final TarArchiveOutputStream tar = new TarArchiveOutputStream(new FileOutputStream(tarFile));
+        try {
+            final byte[] content = "escaped".getBytes("UTF-8");
+            final TarArchiveEntry entry = new TarArchiveEntry("escape/data/../../escaped.txt");
+            entry.setSize(content.length);
+            tar.putArchiveEntry(entry);
+            tar.write(content);
+            tar.closeArchiveEntry();
+        } finally {
+            tar.close();
+        }
+        final RestoreSummary restored = new BagRestorer().restore(tarFile, restoreDir);
+        Assert.assertFalse(restored.isValid());
+        Assert.assertFalse("An entry must not escape the bag directory!", new File(restoreDir, "escaped.txt").exists());
+    }
+
+    private APTrustBag createBag() throws IOException {
+        return TestFiles.createBag(new PendingPayloadFile(TestFiles.createFile("first"), "f1.txt"),
+                new PendingPayloadFile(TestFiles.createFile("second file"), "subdir/f2.txt"),
+                new PendingPayloadFile(TestFiles.createFile(""), "empty.txt"));
+    }
+}
@@ -0,0 +1,69 @@
+package edu.virginia.lib.aptrust.bags;
+
+import gov.loc.repository.bagit.hash.StandardSupportedAlgorithms;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+public class BagSplitterTest {
+
+    private static final long MAX_SIZE = 64 * 1024;
+
+    @Test
+    public void testSplitBagsFitAndFormAGroup() throws Exception {
+        final List<PendingPayloadFile> payload = new ArrayList<PendingPayloadFile>();
+        for (int i = 0; i < 30; i ++) {
+            payload.add(new PendingPayloadFile(createFile(1000 + i * 400),
+                    "a-rather-long-directory-name-" + (i % 4) + "/with/nested/levels/file-" + i + ".dat"));
+        }
+        final String itemId = UUID.randomUUID().toString();
+        final BagSplitter splitter = new BagSplitter("test", itemId, new BagInfo().sourceOrganization("Test"),
+                new APTrustInfo("Title", APTrustInfo.CONSORTIA), MAX_SIZE)
+                .algorithms(StandardSupportedAlgorithms.MD5, StandardSupportedAlgorithms.SHA256);
+
+        final List<FileBag> bags = splitter.split(payload);
+        Assert.assertTrue("The payload should need several bags!", bags.size() > 1);
+        final Set<String> paths = new HashSet<String>();
+        for (int i = 0; i < bags.size(); i ++) {
+            final BagInfo info = bags.get(i).getBagInfo();
+            Assert.assertEquals("Bag count should be set!", (i + 1) + " of " + bags.size(), info.getBagCount());
+            Assert.assertEquals("Group identifier should be shared!", itemId, info.getBagGroupIdentifier());
+            Assert.assertEquals("Source organization should be copied!", "Test", info.getSourceOrganization());
+            Assert.assertEquals("Bag should be numbered!", String.format("%s.b%03d.of%03d", itemId, i + 1, bags.size()),
+                    bags.get(i).getItemId());
+            for (PendingPayloadFile f : bags.get(i).getPayloadFiles()) {
+                Assert.assertTrue("Each file should be in only one bag!", paths.add(f.getPathWithinPayload()));
+            }
+        }
+        Assert.assertEquals("Every file should be in a bag!", payload.size(), paths.size());
+
+        final File outputDir = new File("target/splitter-output");
+        final List<BagSummary> summaries = splitter.serialize(payload, outputDir, true, 3);
+        Assert.assertEquals("Every bag should be serialized!", bags.size(), summaries.size());
+        for (BagSummary summary : summaries) {
+            Assert.assertTrue("Tar should not exceed the maximum size! (" + summary.getFile().length() + ")",
+                    summary.getFile().length() <= MAX_SIZE);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOversizedFileIsRejected() throws Exception {
+        final List<PendingPayloadFile> payload = new ArrayList<PendingPayloadFile>();
+        payload.add(new PendingPayloadFile(createFile((int) MAX_SIZE), "too-big.dat"));
+        new BagSplitter("test", "item", new BagInfo(), new APTrustInfo("Title", APTrustInfo.CONSORTIA), MAX_SIZE).split(payload);
+    }
+
+    private File createFile(int length) throws IOException {
+        final File f = File.createTempFile("split", ".dat");
+        FileUtils.writeByteArrayToFile(f, new byte[length]);
+        return f;
+    }
+}
@@ -8,6 +8,7 @@ import org.junit.Test;
 import java.io.File;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
 
 public class BagSummaryTest {
 
@@ -27,4 +28,38 @@ public class BagSummaryTest {
         Assert.assertEquals(base16, example.getHexChecksum());
         Assert.assertEquals(base64, example.getBase64Checksum());
     }
+
+    @Test
+    public void testCompactManifest() {
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i ++) {
+            text.append(String.format("%064x", i * 7919)).append("  data/images/page-").append(i).append(".tif\n");
+        }
+        text.append(String.format("%064x", 1)).append("  data/\u00e9t\u00e9.txt\n");
+        final BagSummary summary = new BagSummary(new File("test"), null, text.toString(), 0);
+        Assert.assertEquals("The text should be rebuilt exactly!", text.toString(), summary.getManifestCopy());
+        Assert.assertEquals("Every entry should be kept!", 1001, summary.getManifest().size());
+
+        final Iterator<PayloadManifest.Entry> entries = summary.getManifest().iterator();
+        final PayloadManifest.Entry first = entries.next();
+        Assert.assertEquals("data/images/page-0.tif", first.getPath());
+        Assert.assertEquals(String.format("%064x", 0), first.getChecksum());
+    }
+
+    @Test
+    public void testNonCanonicalManifest() {
+        final String upperCase = String.format("%064X", 255) + "  data/a.txt\n";
+        BagSummary summary = new BagSummary(new File("test"), null, upperCase, 0);
+        Assert.assertEquals("The text should be kept as it was!", upperCase, summary.getManifestCopy());
+        Assert.assertEquals("The entries should still be parsed!", 1, summary.getManifest().size());
+
+        final String mixedEndings = String.format("%064x", 1) + "  data/a.txt\r\n" + String.format("%064x", 2) + "  data/b.txt\n";
+        Assert.assertEquals(mixedEndings, new BagSummary(new File("test"), null, mixedEndings, 0).getManifestCopy());
+
+        for (String malformed : new String[] { "not a manifest", "xyz  data/a.txt\n", String.format("%064x", 1) + "  data/a.txt" }) {
+            summary = new BagSummary(new File("test"), null, malformed, 0);
+            Assert.assertEquals("Malformed text should be kept as it was!", malformed, summary.getManifestCopy());
+            Assert.assertNull(summary.getManifest());
+        }
+    }
 }
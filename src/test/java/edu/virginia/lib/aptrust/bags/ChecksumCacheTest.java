@@ -0,0 +1,88 @@
+package edu.virginia.lib.aptrust.bags;
+
+import gov.loc.repository.bagit.reader.BagReader;
+import gov.loc.repository.bagit.verify.BagVerifier;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.UUID;
+
+public class ChecksumCacheTest {
+
+    private File outputDir;
+
+    private File cacheFile;
+
+    @Before
+    public void setUp() {
+        outputDir = new File("target/cache-output");
+        cacheFile = new File(outputDir, UUID.randomUUID().toString() + ".cache");
+    }
+
+    @Test
+    public void testCachedChecksumsAreReused() throws Exception {
+        final File f1 = TestFiles.createFile("first");
+        final File f2 = TestFiles.createFile("second");
+
+        ChecksumCache cache = new ChecksumCache(cacheFile);
+        final String manifest = serialize(cache, f1, f2, false).getManifestCopy();
+        Assert.assertEquals("Both files should have been hashed!", 2, cache.getMissCount());
+        cache.save();
+
+        cache = new ChecksumCache(cacheFile);
+        Assert.assertEquals("Cached manifest should match!", manifest, serialize(cache, f1, f2, false).getManifestCopy());
+        Assert.assertEquals("Tarred manifest should match!", manifest, serialize(cache, f1, f2, true).getManifestCopy());
+        Assert.assertEquals("Every file should have been found in the cache!", 4, cache.getHitCount());
+        Assert.assertEquals("No file should have been hashed!", 0, cache.getMissCount());
+        Assert.assertEquals("Saved bytes should be counted!", 2 * (f1.length() + f2.length()), cache.getBytesSaved());
+    }
+
+    @Test
+    public void testChangedFileIsRehashed() throws Exception {
+        final File f1 = TestFiles.createFile("first");
+        final File f2 = TestFiles.createFile("second");
+        final ChecksumCache cache = new ChecksumCache(cacheFile);
+        serialize(cache, f1, f2, false);
+
+        FileUtils.writeStringToFile(f2, "changed");
+        f2.setLastModified(f2.lastModified() + 2000);
+        final BagSummary summary = serialize(cache, f1, f2, false);
+        Assert.assertEquals("Only the unchanged file should have been found!", 1, cache.getHitCount());
+        final BagReader r = new BagReader();
+        new BagVerifier().isValid(r.read(summary.getFile().toPath()), false);
+    }
+
+    @Test
+    public void testSavesAreMergedAndBounded() throws Exception {
+        final ChecksumCache first = new ChecksumCache(cacheFile);
+        final ChecksumCache second = new ChecksumCache(cacheFile);
+        serialize(first, TestFiles.createFile("first"), TestFiles.createFile("second"), false);
+        serialize(second, TestFiles.createFile("third"), TestFiles.createFile("fourth"), false);
+        first.save();
+        second.save();
+        Assert.assertEquals("Entries saved by both caches should be kept!", 4, new ChecksumCache(cacheFile).size());
+
+        second.maxEntries(3).save();
+        Assert.assertEquals("The least recently used entry should be evicted!", 3, new ChecksumCache(cacheFile).size());
+    }
+
+    @Test
+    public void testEntriesAreBoundedInMemory() throws Exception {
+        final File f1 = TestFiles.createFile("first");
+        final File f2 = TestFiles.createFile("second");
+        final ChecksumCache cache = new ChecksumCache(cacheFile).maxEntries(1);
+        serialize(cache, f1, f2, false);
+        Assert.assertEquals("Only the most recently used entry should be held!", 1, cache.size());
+        serialize(cache, f1, f2, false);
+        Assert.assertEquals("Each file should have evicted the other!", 4, cache.getMissCount());
+    }
+
+    private BagSummary serialize(ChecksumCache cache, File f1, File f2, boolean tar) throws Exception {
+        final FileBag b = TestFiles.createBag(new PendingPayloadFile(f1, "f1.txt"), new PendingPayloadFile(f2, "subdir/f2.txt"));
+        b.checksumCache(cache);
+        return b.serializeAPTrustBag(outputDir, tar);
+    }
+}
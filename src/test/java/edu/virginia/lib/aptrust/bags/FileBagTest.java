@@ -2,18 +2,33 @@ package edu.virginia.lib.aptrust.bags;
 
 import gov.loc.repository.bagit.domain.Bag;
 import gov.loc.repository.bagit.exceptions.CorruptChecksumException;
+import gov.loc.repository.bagit.hash.StandardSupportedAlgorithms;
+import gov.loc.repository.bagit.hash.SupportedAlgorithm;
 import gov.loc.repository.bagit.reader.BagReader;
 import gov.loc.repository.bagit.verify.BagVerifier;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Random;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 public class FileBagTest extends APTrustBagTest {
@@ -55,8 +70,8 @@ public class FileBagTest extends APTrustBagTest {
     @Test
     public void testBagSerialization() throws Exception {
         String id = UUID.randomUUID().toString();
-        File f1 = createDummyFile(500);
-        File f2 = createDummyFile(800);
+        File f1 = TestFiles.createDummyFile(500);
+        File f2 = TestFiles.createDummyFile(800);
 
         BagInfo bagInfo = new BagInfo();
         APTrustInfo aptrustInfo = new APTrustInfo("Title", APTrustInfo.CONSORTIA);
@@ -78,8 +93,8 @@ public class FileBagTest extends APTrustBagTest {
     @Test(expected=CorruptChecksumException.class)
     public void testCorruptedBagSerialization() throws Exception {
         String id = UUID.randomUUID().toString();
-        File f1 = createDummyFile(500);
-        File f2 = createDummyFile(800);
+        File f1 = TestFiles.createDummyFile(500);
+        File f2 = TestFiles.createDummyFile(800);
 
         BagInfo bagInfo = new BagInfo();
         APTrustInfo aptrustInfo = new APTrustInfo("Title", APTrustInfo.CONSORTIA);
@@ -102,19 +117,279 @@ public class FileBagTest extends APTrustBagTest {
         v.isValid(bag, false);
     }
 
-    private File createDummyFile(long length) throws IOException {
-        File dummyFile = File.createTempFile("dummy-file", ".dummy");
-        FileOutputStream fos = new FileOutputStream(dummyFile);
+    @Test
+    public void testTarredBagSerialization() throws Exception {
+        String id = UUID.randomUUID().toString();
+        File f1 = TestFiles.createDummyFile(500);
+        File f2 = TestFiles.createDummyFile(80000);
+
+        BagInfo bagInfo = new BagInfo();
+        APTrustInfo aptrustInfo = new APTrustInfo("Title", APTrustInfo.CONSORTIA);
+
+        FileBag b = new FileBag("test", bagInfo, aptrustInfo, id, new PendingPayloadFile(f1, "f1.random"), new PendingPayloadFile(f2, "subdir/f2.random"));
+        BagSummary summary = b.serializeAPTrustBag(outputDir, true);
+        Assert.assertEquals("The tar file should be the result!", new File(outputDir, "test." + id + ".tar"), summary.getFile());
+        Assert.assertFalse("The bag directory should have been removed!", new File(outputDir, "test." + id).exists());
+        Assert.assertEquals("Payload size must be reported!", 80500, summary.getBagPayloadSize());
+
+        final APTrustBag.HashOutputStream md5 = new APTrustBag.HashOutputStream();
+        FileUtils.copyFile(summary.getFile(), md5);
+        Assert.assertArrayEquals("Checksum must match the tar file!", md5.getMD5Hash(), summary.getChecksumBytes());
+
+        final File extracted = new File(outputDir, "extracted-" + id);
+        final TarArchiveInputStream tis = new TarArchiveInputStream(new FileInputStream(summary.getFile()));
         try {
-            Random r = new Random();
-            byte[] buffer = new byte[1024];
-            for (long i = 0; i < length; i += 1024) {
-                r.nextBytes(buffer);
-                fos.write(buffer, 0, Math.min(1024, (int) (length - i)));
+            TarArchiveEntry entry = tis.getNextTarEntry();
+            Assert.assertEquals("The first entry should be the bag directory!", "test." + id + "/", entry.getName());
+            while (entry != null) {
+                final File f = new File(extracted, entry.getName());
+                if (entry.isDirectory()) {
+                    f.mkdirs();
+                } else {
+                    FileUtils.copyInputStreamToFile(new CloseShieldInputStream(tis), f);
+                }
+                entry = tis.getNextTarEntry();
             }
         } finally {
-            fos.close();
+            tis.close();
+        }
+
+        BagReader r = new BagReader();
+        final Bag bag = r.read(new File(extracted, "test." + id).toPath());
+        new BagVerifier().isValid(bag, false);
+    }
+
+    @Test
+    public void testParallelBagSerialization() throws Exception {
+        final PendingPayloadFile[] files = new PendingPayloadFile[40];
+        for (int i = 0; i < files.length; i ++) {
+            files[i] = new PendingPayloadFile(TestFiles.createDummyFile(1000 + i), "dir" + (i % 3) + "/file-" + i);
+        }
+
+        FileBag serial = TestFiles.createBag(files);
+        FileBag parallel = TestFiles.createBag(files);
+        parallel.parallelism(4);
+        Assert.assertEquals("Parallelism must be preserved!", 4, parallel.getParallelism());
+
+        BagSummary serialSummary = serial.serializeAPTrustBag(outputDir, false);
+        BagSummary parallelSummary = parallel.serializeAPTrustBag(outputDir, false);
+        Assert.assertEquals("Manifests must be identical!", serialSummary.getManifestCopy(), parallelSummary.getManifestCopy());
+        Assert.assertEquals("Payload sizes must be identical!", serialSummary.getBagPayloadSize(), parallelSummary.getBagPayloadSize());
+
+        final Bag bag = new BagReader().read(parallelSummary.getFile().toPath());
+        new BagVerifier().isValid(bag, false);
+    }
+
+    @Test
+    public void testSerializationMetrics() throws Exception {
+        final File f1 = TestFiles.createDummyFile(500);
+        final File f2 = TestFiles.createDummyFile(800);
+        final List<BagMetrics> reported = new ArrayList<BagMetrics>();
+        final FileBag b = TestFiles.createBag(new PendingPayloadFile(f1), new PendingPayloadFile(f2));
+        b.metricsSink(new MetricsSink() {
+            @Override
+            public void metricsRecorded(BagMetrics metrics) {
+                reported.add(metrics);
+            }
+        });
+
+        final BagMetrics dirMetrics = b.serializeAPTrustBag(outputDir, false).getMetrics();
+        Assert.assertEquals("Payload should be hashed or copied!", 1300, getBytes(dirMetrics, BagMetrics.Phase.HASH)
+                + getBytes(dirMetrics, BagMetrics.Phase.COPY));
+        Assert.assertEquals("Tag files should be written!", 4, dirMetrics.getPhase(BagMetrics.Phase.TAG_FILES).getFiles());
+        Assert.assertNull("Nothing should be tarred!", dirMetrics.getPhase(BagMetrics.Phase.TAR));
+
+        final BagSummary tarSummary = b.serializeAPTrustBag(outputDir, true);
+        final BagMetrics.PhaseMetrics tar = tarSummary.getMetrics().getPhase(BagMetrics.Phase.TAR);
+        Assert.assertTrue("Payload and tag files should be tarred!", tar.getBytes() > 1300 && tar.getFiles() == 7);
+        Assert.assertNull("Nothing should be copied!", tarSummary.getMetrics().getPhase(BagMetrics.Phase.COPY));
+        Assert.assertEquals("Each serialization should be reported!", Arrays.asList(dirMetrics, tarSummary.getMetrics()), reported);
+    }
+
+    @Test
+    public void testStagingStrategy() throws Exception {
+        APTrustBag.clearStagingStrategies();
+        outputDir.mkdirs();
+        final File local = new File(outputDir, UUID.randomUUID().toString() + ".dummy");
+        FileUtils.copyFile(TestFiles.createDummyFile(500), local);
+        final File temp = TestFiles.createDummyFile(800);
+        final FileBag b = TestFiles.createBag(new PendingPayloadFile(local), new PendingPayloadFile(temp));
+
+        final Map<StagingStrategy, Integer> strategies = b.serializeAPTrustBag(outputDir, false).getStagingStrategies();
+        final boolean sameStore = Files.getFileStore(temp.toPath()).equals(Files.getFileStore(outputDir.toPath()));
+        Assert.assertEquals("A file beside the bag should be linked!", sameStore ? 2 : 1,
+                (int) strategies.get(StagingStrategy.HARD_LINK));
+        Assert.assertEquals("A file on another store should be copied!", sameStore ? null : 1,
+                strategies.get(StagingStrategy.COPY));
+        Assert.assertEquals("No probe file should be left in the bag!", 2,
+                new File(outputDir, b.getAptrustBagName() + "/data").list().length);
+        Assert.assertTrue("Nothing is staged into a tar!", b.serializeAPTrustBag(outputDir, true).getStagingStrategies().isEmpty());
+    }
+
+    @Test
+    public void testSerializationProgress() throws Exception {
+        final PendingPayloadFile[] files = new PendingPayloadFile[10];
+        for (int i = 0; i < files.length; i ++) {
+            files[i] = new PendingPayloadFile(TestFiles.createDummyFile(1000 + i), "dir" + (i % 3) + "/file-" + i);
+        }
+        final List<Progress> reports = new ArrayList<Progress>();
+        final FileBag b = TestFiles.createBag(files);
+        b.parallelism(3).progressListener(new ProgressListener() {
+            @Override
+            public void progress(Progress progress) {
+                reports.add(progress);
+            }
+        }, 0);
+
+        for (boolean tar : new boolean[] { false, true }) {
+            reports.clear();
+            final BagSummary summary = b.serializeAPTrustBag(outputDir, tar);
+            final Progress last = reports.get(reports.size() - 1);
+            Assert.assertTrue("The final report should be marked!", last.isFinished());
+            Assert.assertEquals("Every payload byte should be counted!", summary.getBagPayloadSize(), last.getBytesProcessed());
+            Assert.assertEquals("The total should be known!", summary.getBagPayloadSize(), last.getTotalBytes());
+            Assert.assertEquals("Nothing should remain!", 0, last.getEstimatedMillisRemaining());
+            Assert.assertNotNull("The current file should be reported!", last.getCurrentFile());
+            for (int i = 1; i < reports.size(); i ++) {
+                Assert.assertTrue("Progress should not go backwards!",
+                        reports.get(i).getBytesProcessed() >= reports.get(i - 1).getBytesProcessed());
+            }
+        }
+        Assert.assertEquals("Tarred payload should be reported as such!", BagMetrics.Phase.TAR, reports.get(0).getPhase());
+    }
+
+    private long getBytes(BagMetrics metrics, BagMetrics.Phase phase) {
+        return metrics.getPhase(phase) == null ? 0 : metrics.getPhase(phase).getBytes();
+    }
+
+    @Test
+    public void testMultipleAlgorithmBagSerialization() throws Exception {
+        String id = UUID.randomUUID().toString();
+        FileBag b = new FileBag("test", new BagInfo(), new APTrustInfo("Title", APTrustInfo.CONSORTIA), id,
+                new PendingPayloadFile(TestFiles.createDummyFile(500), "f1.random"), new PendingPayloadFile(TestFiles.createDummyFile(800), "subdir/f2.random"));
+        b.algorithms(StandardSupportedAlgorithms.MD5, StandardSupportedAlgorithms.SHA256).parallelism(2);
+        BagSummary summary = b.serializeAPTrustBag(outputDir, false);
+
+        for (String name : new String[] { "manifest-md5.txt", "manifest-sha256.txt", "tagmanifest-md5.txt", "tagmanifest-sha256.txt" }) {
+            Assert.assertTrue(name + " should have been written!", new File(summary.getFile(), name).exists());
+        }
+        Assert.assertEquals("The SHA-256 manifest should be copied!",
+                FileUtils.readFileToString(new File(summary.getFile(), "manifest-sha256.txt")), summary.getManifestCopy());
+
+        final Bag bag = new BagReader().read(summary.getFile().toPath());
+        Assert.assertEquals("Both payload manifests should be present!", 2, bag.getPayLoadManifests().size());
+        new BagVerifier().isValid(bag, false);
+    }
+
+    @Test
+    public void testStreamedPayloadSerialization() throws Exception {
+        final byte[] known = "content of known length".getBytes("UTF-8");
+        final byte[] unknown = "content of unknown length".getBytes("UTF-8");
+        final byte[] supplied = "content with a supplied checksum".getBytes("UTF-8");
+        final String suppliedChecksum = String.valueOf(Hex.encodeHex(MessageDigest.getInstance("SHA-256").digest(supplied)));
+
+        for (boolean tar : new boolean[] { false, true }) {
+            FileBag b = TestFiles.createBag(
+                    new PendingPayloadFile(new ByteArraySource(known, known.length, null), "known.txt"),
+                    new PendingPayloadFile(new ByteArraySource(unknown, -1, null), "subdir/unknown.txt"),
+                    new PendingPayloadFile(new ByteArraySource(supplied, supplied.length, suppliedChecksum), "supplied.txt"),
+                    new PendingPayloadFile(TestFiles.createDummyFile(500), "file.random"));
+            BagSummary summary = b.serializeAPTrustBag(outputDir, tar);
+            Assert.assertEquals("Payload size must be reported!", known.length + unknown.length + supplied.length + 500,
+                    summary.getBagPayloadSize());
+            Assert.assertTrue("Supplied checksum should be used!", summary.getManifestCopy().contains(suppliedChecksum + "  data/supplied.txt"));
+            if (!tar) {
+                final Bag bag = new BagReader().read(summary.getFile().toPath());
+                new BagVerifier().isValid(bag, false);
+            } else {
+                final TarArchiveInputStream tis = new TarArchiveInputStream(new FileInputStream(summary.getFile()));
+                try {
+                    TarArchiveEntry entry;
+                    while ((entry = tis.getNextTarEntry()) != null) {
+                        if (entry.getName().endsWith("/data/subdir/unknown.txt")) {
+                            Assert.assertEquals("Spooled content should be written!", unknown.length, entry.getSize());
+                        }
+                    }
+                } finally {
+                    tis.close();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFailedTarSerializationIsCleanedUp() throws Exception {
+        final File dir = new File("target/output-" + UUID.randomUUID().toString());
+        final PayloadSource unreadable = new PayloadSource() {
+            @Override
+            public InputStream openStream() throws IOException {
+                throw new IOException("unreadable");
+            }
+
+            @Override
+            public long getLength() {
+                return 100;
+            }
+
+            @Override
+            public String getChecksum(SupportedAlgorithm algorithm) {
+                return null;
+            }
+        };
+        FileBag b = TestFiles.createBag(
+                new PendingPayloadFile(TestFiles.createDummyFile(500), "file.random"), new PendingPayloadFile(unreadable, "unreadable.txt"));
+        b.tarIndex(true);
+        try {
+            b.serializeAPTrustBag(dir, true);
+            Assert.fail("Serialization should have failed!");
+        } catch (IOException e) {
+            // expected
+        }
+        Assert.assertEquals("Nothing should be left behind!", 0, dir.list().length);
+
+        final boolean[] closed = new boolean[1];
+        try {
+            b.serializeAPTrustBag(dir, new ByteArrayOutputStream() {
+                @Override
+                public void close() throws IOException {
+                    closed[0] = true;
+                }
+            });
+            Assert.fail("Serialization should have failed!");
+        } catch (IOException e) {
+            // expected
+        }
+        Assert.assertTrue("The stream should be closed!", closed[0]);
+        Assert.assertEquals("Nothing should be left behind!", 0, dir.list().length);
+    }
+
+    private static class ByteArraySource implements PayloadSource {
+
+        private final byte[] content;
+
+        private final long length;
+
+        private final String sha256;
+
+        private ByteArraySource(byte[] content, long length, String sha256) {
+            this.content = content;
+            this.length = length;
+            this.sha256 = sha256;
+        }
+
+        @Override
+        public InputStream openStream() {
+            return new ByteArrayInputStream(content);
+        }
+
+        @Override
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public String getChecksum(SupportedAlgorithm algorithm) {
+            return algorithm.equals(StandardSupportedAlgorithms.SHA256) ? sha256 : null;
         }
-        return dummyFile;
     }
 }
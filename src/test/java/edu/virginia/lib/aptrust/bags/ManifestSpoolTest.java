@@ -0,0 +1,128 @@
+package edu.virginia.lib.aptrust.bags;
+
+import gov.loc.repository.bagit.hash.StandardSupportedAlgorithms;
+import gov.loc.repository.bagit.hash.SupportedAlgorithm;
+import gov.loc.repository.bagit.reader.BagReader;
+import gov.loc.repository.bagit.verify.BagVerifier;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+public class ManifestSpoolTest {
+
+    private File outputDir;
+
+    @Before
+    public void setUp() throws IOException {
+        outputDir = new File("target/spool-output/" + UUID.randomUUID().toString());
+        outputDir.mkdirs();
+    }
+
+    @Test
+    public void testRunsAreMerged() throws Exception {
+        final List<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < 10; i ++) {
+            order.add(i);
+        }
+        Collections.shuffle(order);
+        final ManifestSpool spool = new ManifestSpool(outputDir,
+                Arrays.<SupportedAlgorithm>asList(StandardSupportedAlgorithms.MD5, StandardSupportedAlgorithms.SHA256), 3);
+        for (Integer i : order) {
+            spool.add("data/file-" + i, new String[] { "md5-" + i, "sha256-" + i });
+        }
+        Assert.assertEquals("Every full run should be spilled!", 3, spool.getRunCount());
+
+        final File bagDir = new File(outputDir, "bag");
+        bagDir.mkdirs();
+        spool.writeManifests(bagDir.toPath(), Charset.forName("UTF-8"));
+        final List<String> md5 = FileUtils.readLines(new File(bagDir, "manifest-md5.txt"), "UTF-8");
+        final List<String> sha256 = FileUtils.readLines(new File(bagDir, "manifest-sha256.txt"), "UTF-8");
+        Assert.assertEquals("Every entry should be written!", 10, md5.size());
+        for (int i = 0; i < 10; i ++) {
+            Assert.assertEquals("Entries should be sorted!", "md5-" + i + "  data/file-" + i, md5.get(i));
+            Assert.assertEquals("Entries should be sorted!", "sha256-" + i + "  data/file-" + i, sha256.get(i));
+        }
+
+        spool.close();
+        Assert.assertEquals("Runs should be deleted!", 1, outputDir.list().length);
+    }
+
+    @Test
+    public void testIteratedPayload() throws Exception {
+        final int count = 250;
+        final APTrustBag bag = new StreamingAPTrustBag("test", new BagInfo().sourceOrganization("virginia.edu"), new APTrustInfo("Title", APTrustInfo.CONSORTIA)) {
+
+            @Override
+            protected String getItemId() {
+                return "iterated";
+            }
+
+            @Override
+            protected Iterable<PendingPayloadFile> getPayload() {
+                return new Iterable<PendingPayloadFile>() {
+                    @Override
+                    public Iterator<PendingPayloadFile> iterator() {
+                        return new Iterator<PendingPayloadFile>() {
+
+                            private int next = 0;
+
+                            @Override
+                            public boolean hasNext() {
+                                return next < count;
+                            }
+
+                            @Override
+                            public PendingPayloadFile next() {
+                                try {
+                                    final File f = File.createTempFile("iterated", ".txt");
+                                    FileUtils.writeStringToFile(f, "content " + next);
+                                    return new PendingPayloadFile(f, "dir" + (next % 7) + "/file-" + next++ + ".txt");
+                                } catch (IOException e) {
+                                    throw new RuntimeException(e);
+                                }
+                            }
+
+                            @Override
+                            public void remove() {
+                                throw new UnsupportedOperationException();
+                            }
+                        };
+                    }
+                };
+            }
+
+            @Override
+            protected void freePayloadFile(PendingPayloadFile f) throws IOException {
+                Files.delete(f.getFile().toPath());
+            }
+        };
+        bag.manifestRunSize(40).manifestCopy(false).parallelism(4);
+
+        final BagSummary dir = bag.serializeAPTrustBag(outputDir, false);
+        Assert.assertNull("No manifest copy should be kept!", dir.getManifest());
+        Assert.assertEquals("Every file should be listed!", count,
+                FileUtils.readLines(new File(dir.getFile(), "manifest-sha256.txt"), "UTF-8").size());
+        new BagVerifier().isValid(new BagReader().read(dir.getFile().toPath()), false);
+        FileUtils.deleteDirectory(dir.getFile());
+
+        final BagSummary tar = bag.serializeAPTrustBag(outputDir, true);
+        final ValidationResult result = new TarBagValidator().validate(tar.getFile());
+        Assert.assertTrue(result.toString(), result.isValid());
+        Assert.assertEquals("Every file should be tarred!", count, result.getPayloadFileCount());
+        Assert.assertEquals("No runs should be left behind!", Collections.singletonList(tar.getFile().getName()),
+                Arrays.asList(outputDir.list()));
+    }
+
+}
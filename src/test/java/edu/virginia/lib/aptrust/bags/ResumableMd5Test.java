@@ -0,0 +1,45 @@
+package edu.virginia.lib.aptrust.bags;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.security.MessageDigest;
+import java.util.Random;
+
+public class ResumableMd5Test {
+
+    @Test
+    public void testMatchesMessageDigest() throws Exception {
+        final Random random = new Random(1);
+        for (int length : new int[] { 0, 1, 55, 56, 63, 64, 65, 1000, 100000 }) {
+            final byte[] content = new byte[length];
+            random.nextBytes(content);
+            ResumableMd5 md5 = new ResumableMd5();
+            int offset = 0;
+            while (offset < length) {
+                // a mix of single bytes and chunks, with the state saved and restored along the way
+                final int n = random.nextInt(4) == 0 ? 1 : Math.min(length - offset, random.nextInt(200));
+                if (n == 1) {
+                    md5.update(content[offset]);
+                } else {
+                    md5.update(content, offset, n);
+                }
+                offset += n;
+                if (random.nextInt(3) == 0) {
+                    md5 = ResumableMd5.restore(md5.save());
+                }
+            }
+            Assert.assertEquals(length, md5.getCount());
+            Assert.assertArrayEquals("MD5 of " + length + " bytes should match!",
+                    MessageDigest.getInstance("MD5").digest(content), md5.digest());
+            Assert.assertArrayEquals("Digesting should leave the state alone!",
+                    MessageDigest.getInstance("MD5").digest(content), md5.digest());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedState() {
+        ResumableMd5.restore("67452301:efcdab89:98badcfe:10325476:3:00");
+    }
+
+}
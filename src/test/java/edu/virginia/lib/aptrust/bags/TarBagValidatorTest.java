@@ -0,0 +1,124 @@
+package edu.virginia.lib.aptrust.bags;
+
+import gov.loc.repository.bagit.hash.StandardSupportedAlgorithms;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+public class TarBagValidatorTest {
+
+    private File outputDir;
+
+    @Before
+    public void setUp() {
+        outputDir = new File("target/validator-output");
+    }
+
+    @Test
+    public void testValidTars() throws Exception {
+        final File sha256 = createBag().serializeAPTrustBag(outputDir, true).getFile();
+        final FileBag md5Bag = createBag();
+        md5Bag.algorithms(StandardSupportedAlgorithms.MD5, StandardSupportedAlgorithms.SHA256);
+        final File md5 = md5Bag.serializeAPTrustBag(outputDir, true).getFile();
+
+        final List<ValidationResult> results = new TarBagValidator().threads(2).validateAll(Arrays.asList(sha256, md5));
+        for (ValidationResult r : results) {
+            Assert.assertTrue(r.toString(), r.isValid());
+            Assert.assertEquals("Payload files should be counted!", 2, r.getPayloadFileCount());
+            Assert.assertEquals("Payload size should be counted!", "first".length() + "second".length(), r.getPayloadSize());
+        }
+        Assert.assertEquals("Results should be in file order!", sha256.getName(), results.get(0).getBagName() + ".tar");
+
+        final InputStream in = new FileInputStream(md5);
+        try {
+            final ValidationResult streamed = new TarBagValidator().validate(in, results.get(1).getBagName());
+            Assert.assertFalse("A streamed MD5 manifest can't be verified without the MD5 digests!", streamed.isValid());
+        } finally {
+            in.close();
+        }
+        Assert.assertTrue("Computing MD5 up front should avoid a second read!", new TarBagValidator()
+                .algorithms(StandardSupportedAlgorithms.SHA256, StandardSupportedAlgorithms.MD5).validate(md5).isValid());
+    }
+
+    @Test
+    public void testCorruptPayload() throws Exception {
+        final File tar = createBag().serializeAPTrustBag(outputDir, true).getFile();
+        rewrite(tar, "data/subdir/f2.txt", "changed");
+        final ValidationResult r = new TarBagValidator().validate(tar);
+        Assert.assertEquals(r.getErrors().toString(), 1, r.getErrors().size());
+        Assert.assertTrue(r.getErrors().get(0), r.getErrors().get(0).contains("mismatch for data/subdir/f2.txt"));
+    }
+
+    @Test
+    public void testMissingEntries() throws Exception {
+        final File tar = createBag().serializeAPTrustBag(outputDir, true).getFile();
+        rewrite(tar, "data/f1.txt", null);
+        rewrite(tar, "aptrust-info.txt", null);
+        final List<String> errors = new TarBagValidator().validate(tar).getErrors();
+        Assert.assertTrue(errors.toString(), errors.contains("data/f1.txt is listed in manifest-sha256.txt but is not in the tar!"));
+        Assert.assertTrue(errors.toString(), errors.contains("aptrust-info.txt is missing!"));
+    }
+
+    @Test
+    public void testMissingSourceOrganization() throws Exception {
+        final File tar = createBag(new BagInfo().sourceOrganization(null)).serializeAPTrustBag(outputDir, true).getFile();
+        final List<String> errors = new TarBagValidator().validate(tar).getErrors();
+        Assert.assertEquals(Arrays.asList("bag-info.txt has no Source-Organization!"), errors);
+        Assert.assertTrue("The tag may be waived!", new TarBagValidator().requiredBagInfoTags("Bagging-Date", "Bag-Count")
+                .validate(tar).isValid());
+    }
+
+    /**
+     * Rewrites the tar, replacing the content of the entry at the given path
+     * within the bag or dropping it if the content is null.
+     */
+    private void rewrite(File tar, String path, String content) throws IOException {
+        final File copy = new File(outputDir, UUID.randomUUID().toString() + ".tar");
+        final TarArchiveInputStream in = new TarArchiveInputStream(new FileInputStream(tar));
+        final TarArchiveOutputStream out = new TarArchiveOutputStream(new FileOutputStream(copy));
+        try {
+            TarArchiveEntry entry;
+            while ((entry = in.getNextTarEntry()) != null) {
+                if (!entry.getName().endsWith("/" + path)) {
+                    out.putArchiveEntry(entry);
+                    IOUtils.copy(in, out);
+                    out.closeArchiveEntry();
+                } else if (content != null) {
+                    final TarArchiveEntry replacement = new TarArchiveEntry(entry.getName());
+                    replacement.setSize(content.length());
+                    out.putArchiveEntry(replacement);
+                    out.write(content.getBytes("UTF-8"));
+                    out.closeArchiveEntry();
+                }
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+        FileUtils.copyFile(copy, tar);
+        copy.delete();
+    }
+
+    private FileBag createBag() throws IOException {
+        return createBag(new BagInfo().sourceOrganization("virginia.edu"));
+    }
+
+    private FileBag createBag(BagInfo bagInfo) throws IOException {
+        return TestFiles.createBag(bagInfo, new PendingPayloadFile(TestFiles.createFile("first"), "f1.txt"),
+                new PendingPayloadFile(TestFiles.createFile("second"), "subdir/f2.txt"));
+    }
+}
@@ -0,0 +1,94 @@
+package edu.virginia.lib.aptrust.bags;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+public class TarIndexTest {
+
+    private File outputDir;
+
+    @Before
+    public void setUp() {
+        outputDir = new File("target/index-output");
+    }
+
+    @Test
+    public void testEntriesAreReadByOffset() throws Exception {
+        final String longPath = "subdir/" + new String(new char[120]).replace('\0', 'x') + ".txt";
+        final BagSummary summary = createBag(longPath).serializeAPTrustBag(outputDir, true);
+        final TarIndex index = summary.getTarIndex();
+        Assert.assertNotNull("An index should be returned!", index);
+        Assert.assertEquals(TarIndex.getIndexFile(summary.getFile()), summary.getIndexFile());
+
+        final TarIndex.Entry entry = index.find("data/" + longPath);
+        Assert.assertNotNull("The long path should be indexed!", entry);
+        final InputStream in = index.open(entry);
+        try {
+            Assert.assertEquals("long", IOUtils.toString(in));
+        } finally {
+            in.close();
+        }
+        Assert.assertNull(index.find("data/missing.txt"));
+
+        // the header offset leads to the (extended) header of the same entry
+        final InputStream tarIn = new FileInputStream(summary.getFile());
+        try {
+            IOUtils.skipFully(tarIn, entry.getHeaderOffset());
+            final TarArchiveInputStream entryIn = new TarArchiveInputStream(new BoundedInputStream(tarIn,
+                    entry.getDataOffset() - entry.getHeaderOffset() + 512), "UTF-8");
+            final TarArchiveEntry e = entryIn.getNextTarEntry();
+            Assert.assertTrue(e.getName().endsWith("/data/" + longPath));
+        } finally {
+            tarIn.close();
+        }
+
+        final ValidationResult result = index.verify(Arrays.asList("data/f1.txt", "data/" + longPath, "bag-info.txt"));
+        Assert.assertTrue(result.getErrors().toString(), result.isValid());
+        Assert.assertEquals(3, result.getPayloadFileCount());
+    }
+
+    @Test
+    public void testSampleDetectsCorruption() throws Exception {
+        final BagSummary summary = createBag("f2.txt").serializeAPTrustBag(outputDir, true);
+        final TarIndex index = summary.getTarIndex();
+        Assert.assertTrue(index.verifySample(10, new Random(1)).isValid());
+        Assert.assertEquals("Only payload entries should be sampled!", 2, index.verifySample(10, new Random(1)).getPayloadFileCount());
+        Assert.assertEquals(1, index.verifySample(1, new Random(1)).getPayloadFileCount());
+
+        final RandomAccessFile raf = new RandomAccessFile(summary.getFile(), "rw");
+        try {
+            raf.seek(index.find("data/f1.txt").getDataOffset());
+            raf.write('F');
+        } finally {
+            raf.close();
+        }
+        final ValidationResult result = index.verifySample(10, new Random(1));
+        Assert.assertEquals(Arrays.asList("sha256 checksum mismatch for data/f1.txt!"), result.getErrors());
+    }
+
+    @Test
+    public void testIndexIsOptional() throws Exception {
+        final APTrustBag bag = createBag("f2.txt").tarIndex(false);
+        final BagSummary summary = bag.serializeAPTrustBag(outputDir, true);
+        Assert.assertNull(summary.getTarIndex());
+        Assert.assertFalse(TarIndex.getIndexFile(summary.getFile()).exists());
+    }
+
+    private APTrustBag createBag(String secondPath) throws IOException {
+        return TestFiles.createBag(new PendingPayloadFile(TestFiles.createFile("first"), "f1.txt"),
+                new PendingPayloadFile(TestFiles.createFile("long"), secondPath)).tarIndex(true);
+    }
+}
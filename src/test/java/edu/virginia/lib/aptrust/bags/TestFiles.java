@@ -0,0 +1,59 @@
+package edu.virginia.lib.aptrust.bags;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Helpers for creating the files and bags that tests serialize.
+ */
+public class TestFiles {
+
+    /**
+     * Creates a temporary file with the given content.
+     */
+    public static File createFile(String content) throws IOException {
+        final File f = File.createTempFile("test", ".txt");
+        FileUtils.writeStringToFile(f, content);
+        return f;
+    }
+
+    /**
+     * Creates a temporary file of the given length with random content.
+     */
+    public static File createDummyFile(long length) throws IOException {
+        File dummyFile = File.createTempFile("dummy-file", ".dummy");
+        FileOutputStream fos = new FileOutputStream(dummyFile);
+        try {
+            Random r = new Random();
+            byte[] buffer = new byte[1024];
+            for (long i = 0; i < length; i += 1024) {
+                r.nextBytes(buffer);
+                fos.write(buffer, 0, Math.min(1024, (int) (length - i)));
+            }
+        } finally {
+            fos.close();
+        }
+        return dummyFile;
+    }
+
+    /**
+     * Creates a bag with a unique item id and the given payload whose
+     * bag-info.txt has every tag APTrust requires.
+     */
+    public static FileBag createBag(PendingPayloadFile ... payload) {
+        return createBag(new BagInfo().sourceOrganization("virginia.edu"), payload);
+    }
+
+    /**
+     * Creates a bag with a unique item id, the given payload and bag-info.txt.
+     */
+    public static FileBag createBag(BagInfo bagInfo, PendingPayloadFile ... payload) {
+        return new FileBag("test", bagInfo, new APTrustInfo("Title", APTrustInfo.CONSORTIA), UUID.randomUUID().toString(), payload);
+    }
+
+}
@@ -0,0 +1,211 @@
+package edu.virginia.lib.aptrust.bags.util;
+
+import edu.virginia.lib.aptrust.bags.APTrustBag;
+import edu.virginia.lib.aptrust.bags.APTrustInfo;
+import edu.virginia.lib.aptrust.bags.BagInfo;
+import edu.virginia.lib.aptrust.bags.BagMetrics;
+import edu.virginia.lib.aptrust.bags.BagSummary;
+import edu.virginia.lib.aptrust.bags.BagUpdate;
+import edu.virginia.lib.aptrust.bags.PendingPayloadFile;
+import edu.virginia.lib.aptrust.bags.TestFiles;
+import gov.loc.repository.bagit.reader.BagReader;
+import gov.loc.repository.bagit.verify.BagVerifier;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+public class BagModificationTest {
+
+    private File outputDir;
+
+    private File unchanged;
+
+    @Before
+    public void setUp() throws IOException {
+        outputDir = new File("target/modification-output");
+        unchanged = TestFiles.createFile("unchanged");
+    }
+
+    @Test
+    public void testDirectoryBagUpdate() throws Exception {
+        final BagSummary original = createBag().serializeAPTrustBag(outputDir, false);
+        final String unchangedLine = getManifestLine(original.getManifestCopy(), "data/unchanged.txt");
+
+        final BagSummary updated = createUpdate(original.getFile()).apply();
+        Assert.assertEquals("The updated bag should be in place!", original.getFile(), updated.getFile());
+        Assert.assertFalse("Removed file should be gone!", new File(updated.getFile(), "data/subdir/removed.txt").exists());
+        Assert.assertFalse("Emptied directory should be gone!", new File(updated.getFile(), "data/subdir").exists());
+        Assert.assertEquals("Replaced content should be present!", "new content",
+                FileUtils.readFileToString(new File(updated.getFile(), "data/replaced.txt")));
+        assertUpdatedManifest(updated, unchangedLine);
+        new BagVerifier().isValid(new BagReader().read(updated.getFile().toPath()), false);
+    }
+
+    @Test
+    public void testTarredBagUpdate() throws Exception {
+        final BagSummary original = createBag().serializeAPTrustBag(outputDir, true);
+        final String unchangedLine = getManifestLine(original.getManifestCopy(), "data/unchanged.txt");
+
+        final BagSummary updated = createUpdate(original.getFile()).apply();
+        Assert.assertEquals("The updated tar should replace the original!", original.getFile(), updated.getFile());
+        final APTrustBag.HashOutputStream md5 = new APTrustBag.HashOutputStream();
+        FileUtils.copyFile(updated.getFile(), md5);
+        Assert.assertArrayEquals("Checksum must match the tar file!", md5.getMD5Hash(), updated.getChecksumBytes());
+        assertUpdatedManifest(updated, unchangedLine);
+
+        final File extracted = extract(updated.getFile());
+        Assert.assertFalse("Removed file should be gone!", new File(extracted, "data/subdir/removed.txt").exists());
+        new BagVerifier().isValid(new BagReader().read(extracted.toPath()), false);
+    }
+
+    @Test
+    public void testIndexedTarredBagAppend() throws Exception {
+        final BagSummary original = createBag().tarIndex(true).serializeAPTrustBag(outputDir, true);
+        final long unchangedOffset = original.getTarIndex().find("data/unchanged.txt").getHeaderOffset();
+
+        final BagSummary updated = new BagUpdate(original.getFile(), new BagInfo(), new APTrustInfo("New Title", APTrustInfo.CONSORTIA))
+                .add(new PendingPayloadFile(TestFiles.createFile("added"), "added.txt"))
+                .add(new PendingPayloadFile(TestFiles.createFile("nested"), "subdir/new/nested.txt"))
+                .apply();
+        final APTrustBag.HashOutputStream md5 = new APTrustBag.HashOutputStream();
+        FileUtils.copyFile(updated.getFile(), md5);
+        Assert.assertArrayEquals("Checksum must match the tar file!", md5.getMD5Hash(), updated.getChecksumBytes());
+        Assert.assertNull("Kept entries should not be read!", updated.getMetrics().getPhase(BagMetrics.Phase.HASH));
+        Assert.assertEquals("Kept entries should not move!", unchangedOffset,
+                updated.getTarIndex().find("data/unchanged.txt").getHeaderOffset());
+        Assert.assertTrue("The index should cover the appended entries!", updated.getTarIndex()
+                .verify(Arrays.asList("data/unchanged.txt", "data/added.txt", "data/subdir/new/nested.txt")).isValid());
+        Assert.assertNotNull(getManifestLine(updated.getManifestCopy(), "data/subdir/new/nested.txt"));
+
+        final File extracted = extract(updated.getFile());
+        Assert.assertEquals("nested", FileUtils.readFileToString(new File(extracted, "data/subdir/new/nested.txt")));
+        new BagVerifier().isValid(new BagReader().read(extracted.toPath()), false);
+    }
+
+    @Test
+    public void testAppendWithoutRecordedChecksumState() throws Exception {
+        final BagSummary original = createBag().tarIndex(true).serializeAPTrustBag(outputDir, true);
+        // an index written before the MD5 state was recorded in it
+        final File index = original.getTarIndex().getIndexFile();
+        final List<String> lines = new ArrayList<String>();
+        for (String line : FileUtils.readLines(index, "UTF-8")) {
+            if (!line.startsWith("#")) {
+                lines.add(line);
+            }
+        }
+        FileUtils.writeLines(index, "UTF-8", lines, "\n");
+
+        BagSummary updated = new BagUpdate(original.getFile(), new BagInfo(), new APTrustInfo("Title", APTrustInfo.CONSORTIA))
+                .add(new PendingPayloadFile(TestFiles.createFile("added"), "added.txt")).apply();
+        Assert.assertNotNull("Kept entries should be read!", updated.getMetrics().getPhase(BagMetrics.Phase.HASH));
+        Assert.assertArrayEquals("Checksum must match the tar file!", md5(updated.getFile()), updated.getChecksumBytes());
+
+        updated = new BagUpdate(original.getFile(), new BagInfo(), new APTrustInfo("Title", APTrustInfo.CONSORTIA))
+                .add(new PendingPayloadFile(TestFiles.createFile("again"), "again.txt")).apply();
+        Assert.assertNull("The first append should record the state!", updated.getMetrics().getPhase(BagMetrics.Phase.HASH));
+        Assert.assertArrayEquals("Checksum must match the tar file!", md5(updated.getFile()), updated.getChecksumBytes());
+        new BagVerifier().isValid(new BagReader().read(extract(updated.getFile()).toPath()), false);
+    }
+
+    @Test
+    public void testFailedDirectoryBagUpdateLeavesBagIntact() throws Exception {
+        final BagSummary original = createBag().serializeAPTrustBag(outputDir, false);
+        final File unreadable = new File(outputDir, UUID.randomUUID().toString() + ".txt");
+        final BagUpdate update = createUpdate(original.getFile())
+                .add(new PendingPayloadFile(unreadable, "unreadable.txt"));
+        try {
+            update.apply();
+            Assert.fail("A file that can't be read should fail the update!");
+        } catch (IOException e) {
+            // expected
+        }
+        Assert.assertEquals("Replaced content should be untouched!", "old content",
+                FileUtils.readFileToString(new File(original.getFile(), "data/replaced.txt")));
+        Assert.assertTrue("Removed file should be untouched!", new File(original.getFile(), "data/subdir/removed.txt").exists());
+        Assert.assertFalse("Added file should not be present!", new File(original.getFile(), "data/added.txt").exists());
+        new BagVerifier().isValid(new BagReader().read(original.getFile().toPath()), false);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRemovingMissingFileIsRejected() throws Exception {
+        final BagSummary original = createBag().serializeAPTrustBag(outputDir, false);
+        new BagUpdate(original.getFile(), new BagInfo(), new APTrustInfo("Title", APTrustInfo.CONSORTIA))
+                .remove("missing.txt").apply();
+    }
+
+    private static byte[] md5(File f) throws IOException {
+        final APTrustBag.HashOutputStream md5 = new APTrustBag.HashOutputStream();
+        FileUtils.copyFile(f, md5);
+        return md5.getMD5Hash();
+    }
+
+    private void assertUpdatedManifest(BagSummary updated, String unchangedLine) {
+        final String manifest = updated.getManifestCopy();
+        Assert.assertEquals("Untouched entry should be preserved!", unchangedLine, getManifestLine(manifest, "data/unchanged.txt"));
+        Assert.assertNull("Removed file should not be listed!", getManifestLine(manifest, "data/subdir/removed.txt"));
+        Assert.assertNotNull("Added file should be listed!", getManifestLine(manifest, "data/added.txt"));
+        Assert.assertEquals("Payload size should be updated!", "unchanged".length() + "new content".length()
+                + "added".length(), updated.getBagPayloadSize());
+    }
+
+    private BagUpdate createUpdate(File bag) throws IOException {
+        return new BagUpdate(bag, new BagInfo(), new APTrustInfo("New Title", APTrustInfo.CONSORTIA))
+                .replace(new PendingPayloadFile(TestFiles.createFile("new content"), "replaced.txt"))
+                .remove("subdir/removed.txt")
+                .add(new PendingPayloadFile(TestFiles.createFile("added"), "added.txt"));
+    }
+
+    private APTrustBag createBag() throws IOException {
+        return TestFiles.createBag(new PendingPayloadFile(unchanged, "unchanged.txt"),
+                new PendingPayloadFile(TestFiles.createFile("old content"), "replaced.txt"),
+                new PendingPayloadFile(TestFiles.createFile("removed"), "subdir/removed.txt"));
+    }
+
+    /**
+     * Extracts a tar bag, checking that no entry appears twice.
+     * @return the extracted bag directory
+     */
+    private File extract(File tar) throws IOException {
+        final File extracted = new File(outputDir, "extracted-" + UUID.randomUUID().toString());
+        final Set<String> names = new HashSet<String>();
+        final TarArchiveInputStream tis = new TarArchiveInputStream(new FileInputStream(tar));
+        try {
+            TarArchiveEntry entry;
+            while ((entry = tis.getNextTarEntry()) != null) {
+                Assert.assertTrue(entry.getName() + " should appear once!", names.add(entry.getName()));
+                final File f = new File(extracted, entry.getName());
+                if (entry.isDirectory()) {
+                    f.mkdirs();
+                } else {
+                    FileUtils.copyInputStreamToFile(new CloseShieldInputStream(tis), f);
+                }
+            }
+        } finally {
+            tis.close();
+        }
+        return new File(extracted, tar.getName().replace(".tar", ""));
+    }
+
+    private String getManifestLine(String manifest, String path) {
+        for (String line : manifest.split("\n")) {
+            if (line.endsWith("  " + path)) {
+                return line;
+            }
+        }
+        return null;
+    }
+}
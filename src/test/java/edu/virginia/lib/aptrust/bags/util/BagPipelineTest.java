@@ -0,0 +1,64 @@
+package edu.virginia.lib.aptrust.bags.util;
+
+import edu.virginia.lib.aptrust.bags.APTrustBag;
+import edu.virginia.lib.aptrust.bags.PendingPayloadFile;
+import edu.virginia.lib.aptrust.bags.TestFiles;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class BagPipelineTest {
+
+    private File outputDir;
+
+    private LocalS3Client s3;
+
+    @Before
+    public void setUp() {
+        outputDir = new File("target/pipeline-output");
+        s3 = new LocalS3Client();
+    }
+
+    @Test
+    public void testPipeline() throws Exception {
+        final List<APTrustBag> bags = new ArrayList<APTrustBag>();
+        for (int i = 0; i < 8; i ++) {
+            bags.add(createBag("content " + i));
+        }
+        bags.add(3, TestFiles.createBag(new PendingPayloadFile(new File(outputDir, "does-not-exist"))));
+
+        final List<BagPipeline.Result> completed = new ArrayList<BagPipeline.Result>();
+        BagPipeline pipeline = new BagPipeline(new BagSubmitter(s3, "test-bucket"), outputDir)
+                .serializers(2).transfers(3).queueSize(1).deleteTransferredBags(true);
+        List<BagPipeline.Result> results = pipeline.run(bags.iterator(), new BagPipeline.Listener() {
+            @Override
+            public void bagCompleted(BagPipeline.Result result) {
+                completed.add(result);
+            }
+        });
+
+        Assert.assertEquals("Every bag should have a result!", bags.size(), results.size());
+        Assert.assertEquals("Every bag should have been reported!", bags.size(), completed.size());
+        for (int i = 0; i < bags.size(); i ++) {
+            final BagPipeline.Result r = results.get(i);
+            Assert.assertSame("Results should be in the order supplied!", bags.get(i), r.getBag());
+            if (i == 3) {
+                Assert.assertFalse("Broken bag should not have been transferred!", r.wasTransferred());
+                Assert.assertNotNull("Broken bag should report its failure!", r.getFailure());
+            } else {
+                Assert.assertTrue("Bag should have been transferred!", r.wasTransferred());
+                Assert.assertNotNull("Bag should have been stored!", s3.getContent(r.getBag().getAptrustBagName() + ".tar"));
+                Assert.assertFalse("Transferred tar should have been deleted!", r.getBagSummary().getFile().exists());
+            }
+        }
+    }
+
+    private APTrustBag createBag(String content) throws IOException {
+        return TestFiles.createBag(new PendingPayloadFile(TestFiles.createFile(content), "content.txt"));
+    }
+}
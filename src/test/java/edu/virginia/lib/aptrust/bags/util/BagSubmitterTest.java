@@ -0,0 +1,387 @@
+package edu.virginia.lib.aptrust.bags.util;
+
+import com.amazonaws.event.ProgressEvent;
+import edu.virginia.lib.aptrust.bags.APTrustBag;
+import edu.virginia.lib.aptrust.bags.BagMetrics;
+import edu.virginia.lib.aptrust.bags.BagSummary;
+import edu.virginia.lib.aptrust.bags.MetricsSink;
+import edu.virginia.lib.aptrust.bags.PartListener;
+import edu.virginia.lib.aptrust.bags.Progress;
+import edu.virginia.lib.aptrust.bags.ProgressListener;
+import edu.virginia.lib.aptrust.bags.ProgressTracker;
+import edu.virginia.lib.aptrust.bags.PendingPayloadFile;
+import edu.virginia.lib.aptrust.bags.TestFiles;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+public class BagSubmitterTest {
+
+    private File outputDir;
+
+    private LocalS3Client s3;
+
+    private BagSubmitter submitter;
+
+    @Before
+    public void setUp() {
+        outputDir = new File("target/submitter-output");
+        s3 = new LocalS3Client();
+        submitter = new BagSubmitter(s3, "test-bucket");
+    }
+
+    @Test
+    public void testTransferBag() throws Exception {
+        BagSummary bagSummary = createBag(1000).serializeAPTrustBag(outputDir, true);
+        BagSubmitter.TransferSummary t = submitter.transferBag(bagSummary, false);
+        Assert.assertTrue("Bag should have been transferred! " + t.getMessage(), t.wasTransferred());
+        Assert.assertEquals("Checksums should match!", t.getLocalBagChecksum(), t.getAmazonBagChecksum());
+        Assert.assertTrue("ETag should match the local checksum!", t.isEtagVerified());
+        Assert.assertArrayEquals("Content should match!", FileUtils.readFileToByteArray(bagSummary.getFile()),
+                s3.getContent(bagSummary.getFile().getName()));
+
+        Assert.assertFalse("Existing bag should not be overwritten!", submitter.transferBag(bagSummary, false).wasTransferred());
+        t = submitter.transferBag(bagSummary, true);
+        Assert.assertTrue("Existing bag should be overwritten!", t.wasTransferred());
+        Assert.assertTrue("Existing bag should be reported as deleted!", t.deletedExistingBag());
+    }
+
+    @Test
+    public void testMultipartTransferBag() throws Exception {
+        BagSummary bagSummary = createBag(S3MultipartOutputStream.MIN_PART_SIZE * 2 + 1000).serializeAPTrustBag(outputDir, true);
+        submitter.partSize(S3MultipartOutputStream.MIN_PART_SIZE).concurrentParts(3);
+        BagSubmitter.TransferSummary t = submitter.transferBag(bagSummary, false);
+        Assert.assertTrue("Bag should have been transferred! " + t.getMessage(), t.wasTransferred());
+        Assert.assertTrue("Bag should have required several parts!", t.getEtag().endsWith("-3"));
+        Assert.assertTrue("Multipart ETag should be computed locally!", t.isEtagVerified());
+        Assert.assertArrayEquals("Content should match!", FileUtils.readFileToByteArray(bagSummary.getFile()),
+                s3.getContent(bagSummary.getFile().getName()));
+    }
+
+    @Test
+    public void testCorruptPartIsDetected() throws Exception {
+        BagSummary bagSummary = createBag(S3MultipartOutputStream.MIN_PART_SIZE * 2 + 1000).serializeAPTrustBag(outputDir, true);
+        submitter.partSize(S3MultipartOutputStream.MIN_PART_SIZE).streamingPartSize(S3MultipartOutputStream.MIN_PART_SIZE);
+        s3.corruptPart(2);
+        BagSubmitter.TransferSummary t = submitter.transferBag(bagSummary, false);
+        Assert.assertNotNull("ETag should be computed locally!", t.getExpectedEtag());
+        Assert.assertFalse("A corrupt part should cause an ETag mismatch!", t.isEtagVerified());
+
+        t = submitter.streamBag(createBag(S3MultipartOutputStream.MIN_PART_SIZE * 2 + 1000), outputDir, false);
+        Assert.assertFalse("A corrupt streamed part should cause an ETag mismatch!", t.isEtagVerified());
+    }
+
+    @Test
+    public void testTransferMetrics() throws Exception {
+        BagSummary bagSummary = createBag(S3MultipartOutputStream.MIN_PART_SIZE * 2 + 1000).serializeAPTrustBag(outputDir, true);
+        final List<BagMetrics> reported = new ArrayList<BagMetrics>();
+        submitter.partSize(S3MultipartOutputStream.MIN_PART_SIZE).streamingPartSize(S3MultipartOutputStream.MIN_PART_SIZE)
+                .concurrentParts(3).metricsSink(new MetricsSink() {
+            @Override
+            public void metricsRecorded(BagMetrics metrics) {
+                reported.add(metrics);
+            }
+        });
+        BagSubmitter.TransferSummary t = submitter.transferBag(bagSummary, false);
+        Assert.assertTrue("Bag should have been transferred! " + t.getMessage(), t.wasTransferred());
+        Assert.assertEquals("Transferred bytes should be recorded!", t.getBagSize(),
+                t.getMetrics().getPhase(BagMetrics.Phase.TRANSFER).getBytes());
+        Assert.assertEquals("Each part should be recorded!", 3, t.getMetrics().getParts().size());
+        long partBytes = 0;
+        for (BagMetrics.PartMetrics p : t.getMetrics().getParts()) {
+            partBytes += p.getBytes();
+        }
+        Assert.assertEquals("Parts should cover the bag!", t.getBagSize(), partBytes);
+        Assert.assertEquals("The transfer should be reported!", Collections.singletonList(t.getMetrics()), reported);
+
+        t = submitter.streamBag(createBag(S3MultipartOutputStream.MIN_PART_SIZE + 1000), outputDir, false);
+        Assert.assertEquals("Each streamed part should be recorded!", 2, t.getMetrics().getParts().size());
+        Assert.assertNotNull("Serialization metrics should be recorded!", t.getBagSummary().getMetrics().getPhase(BagMetrics.Phase.TAR));
+    }
+
+    @Test
+    public void testFailedPartAbortsTransfer() throws Exception {
+        BagSummary bagSummary = createBag(S3MultipartOutputStream.MIN_PART_SIZE * 2 + 1000).serializeAPTrustBag(outputDir, true);
+        submitter.partSize(S3MultipartOutputStream.MIN_PART_SIZE).concurrentParts(3).partRetries(0, 0);
+        s3.failPart(2, 1);
+        BagSubmitter.TransferSummary t = submitter.transferBag(bagSummary, false);
+        Assert.assertFalse("Bag should not have been transferred!", t.wasTransferred());
+        Assert.assertEquals("The upload should have been aborted!", 0, s3.getOpenUploadCount());
+        Assert.assertNull("No object should have been stored!", s3.getContent(bagSummary.getFile().getName()));
+    }
+
+    @Test
+    public void testFailedPartIsRetried() throws Exception {
+        BagSummary bagSummary = createBag(S3MultipartOutputStream.MIN_PART_SIZE * 2 + 1000).serializeAPTrustBag(outputDir, true);
+        submitter.partSize(S3MultipartOutputStream.MIN_PART_SIZE).concurrentParts(3).partRetries(2, 1);
+        s3.failPart(2, 2);
+        BagSubmitter.TransferSummary t = submitter.transferBag(bagSummary, false);
+        Assert.assertTrue("Bag should have been transferred! " + t.getMessage(), t.wasTransferred());
+        Assert.assertArrayEquals("Content should match!", FileUtils.readFileToByteArray(bagSummary.getFile()),
+                s3.getContent(bagSummary.getFile().getName()));
+    }
+
+    @Test
+    public void testInterruptedTransferIsResumed() throws Exception {
+        final File journalDir = new File("target/submitter-journal");
+        BagSummary bagSummary = createBag(S3MultipartOutputStream.MIN_PART_SIZE * 2 + 1000).serializeAPTrustBag(outputDir, true);
+        submitter.partSize(S3MultipartOutputStream.MIN_PART_SIZE).concurrentParts(1).partRetries(0, 0).journalDirectory(journalDir);
+        s3.failPart(2, 1);
+        BagSubmitter.TransferSummary t = submitter.transferBag(bagSummary, false);
+        Assert.assertFalse("Bag should not have been transferred!", t.wasTransferred());
+        Assert.assertEquals("The upload should have been left open!", 1, s3.getOpenUploadCount());
+        Assert.assertTrue("The journal should remain!", new File(journalDir, bagSummary.getFile().getName() + ".journal").exists());
+
+        t = submitter.transferBag(bagSummary, false);
+        Assert.assertTrue("Bag should have been transferred! " + t.getMessage(), t.wasTransferred());
+        Assert.assertEquals("Each part should have been uploaded only once!", 3, s3.getPartUploadCount());
+        Assert.assertTrue("ETag should cover the parts uploaded before the interruption!", t.isEtagVerified());
+        Assert.assertEquals("No uploads should remain open!", 0, s3.getOpenUploadCount());
+        Assert.assertFalse("The journal should be removed!", new File(journalDir, bagSummary.getFile().getName() + ".journal").exists());
+        Assert.assertArrayEquals("Content should match!", FileUtils.readFileToByteArray(bagSummary.getFile()),
+                s3.getContent(bagSummary.getFile().getName()));
+    }
+
+    @Test
+    public void testResumedPartDigestsComeFromJournal() throws Exception {
+        final File journalDir = new File("target/submitter-journal-" + UUID.randomUUID().toString());
+        BagSummary bagSummary = createBag(S3MultipartOutputStream.MIN_PART_SIZE * 3 + 1000).serializeAPTrustBag(outputDir, true);
+        submitter.partSize(S3MultipartOutputStream.MIN_PART_SIZE).concurrentParts(1).partRetries(0, 0).journalDirectory(journalDir);
+        s3.failPart(3, 1);
+        Assert.assertFalse(submitter.transferBag(bagSummary, false).wasTransferred());
+        final File journalFile = new File(journalDir, bagSummary.getFile().getName() + ".journal");
+        MultipartUploadJournal journal = new MultipartUploadJournal(journalFile);
+        Assert.assertNotNull("The digest of part 1 should be journaled!", journal.getRecordedDigest(1));
+        Assert.assertEquals(String.valueOf(Hex.encodeHex(journal.getRecordedDigest(1))), journal.getRecordedParts().get(1).getETag());
+
+        // a journal written without digests forces part 2 to be read again
+        final List<String> lines = FileUtils.readLines(journalFile);
+        final List<String> stripped = new ArrayList<String>();
+        for (String line : lines) {
+            stripped.add(line.startsWith("part 2 ") ? line.substring(0, line.lastIndexOf(' ')) : line);
+        }
+        FileUtils.writeLines(journalFile, stripped);
+        Assert.assertNull(new MultipartUploadJournal(journalFile).getRecordedDigest(2));
+
+        BagSubmitter.TransferSummary t = submitter.transferBag(bagSummary, false);
+        Assert.assertTrue("Bag should have been transferred! " + t.getMessage(), t.wasTransferred());
+        Assert.assertEquals("Each part should have been uploaded only once!", 4, s3.getPartUploadCount());
+        Assert.assertTrue("ETag should cover the parts uploaded before the interruption!", t.isEtagVerified());
+    }
+
+    @Test
+    public void testJournaledETagsAreComparedLoosely() throws Exception {
+        final File journalDir = new File("target/submitter-journal-" + UUID.randomUUID().toString());
+        BagSummary bagSummary = createBag(S3MultipartOutputStream.MIN_PART_SIZE * 2 + 1000).serializeAPTrustBag(outputDir, true);
+        submitter.partSize(S3MultipartOutputStream.MIN_PART_SIZE).concurrentParts(1).partRetries(0, 0).journalDirectory(journalDir);
+        s3.failPart(3, 1);
+        Assert.assertFalse(submitter.transferBag(bagSummary, false).wasTransferred());
+
+        // S3 may report an ETag quoted (or in another case) when it is listed
+        final File journalFile = new File(journalDir, bagSummary.getFile().getName() + ".journal");
+        final List<String> lines = new ArrayList<String>();
+        for (String line : FileUtils.readLines(journalFile)) {
+            final String[] fields = line.split(" ", 4);
+            lines.add(fields[0].equals("part")
+                    ? fields[0] + " " + fields[1] + " \"" + fields[2].toUpperCase() + "\" " + fields[3] : line);
+        }
+        FileUtils.writeLines(journalFile, lines);
+
+        BagSubmitter.TransferSummary t = submitter.transferBag(bagSummary, false);
+        Assert.assertTrue("Bag should have been transferred! " + t.getMessage(), t.wasTransferred());
+        Assert.assertEquals("The journaled parts should not be uploaded again!", 3, s3.getPartUploadCount());
+    }
+
+    @Test
+    public void testUnresumableUploadIsAborted() throws Exception {
+        final File journalDir = new File("target/submitter-journal");
+        BagSummary bagSummary = createBag(S3MultipartOutputStream.MIN_PART_SIZE * 2 + 1000).serializeAPTrustBag(outputDir, true);
+        submitter.partSize(S3MultipartOutputStream.MIN_PART_SIZE).concurrentParts(1).partRetries(0, 0).journalDirectory(journalDir);
+        s3.failPart(2, 1);
+        Assert.assertFalse(submitter.transferBag(bagSummary, false).wasTransferred());
+        Assert.assertEquals("The upload should have been left open!", 1, s3.getOpenUploadCount());
+
+        // a modified file can't resume the journaled upload, which must not be orphaned
+        bagSummary.getFile().setLastModified(bagSummary.getFile().lastModified() - 10000);
+        BagSubmitter.TransferSummary t = submitter.transferBag(bagSummary, false);
+        Assert.assertTrue("Bag should have been transferred! " + t.getMessage(), t.wasTransferred());
+        Assert.assertEquals("The journaled upload should have been aborted!", 0, s3.getOpenUploadCount());
+    }
+
+    @Test
+    public void testStaleUploadsAreAborted() throws Exception {
+        final File journalDir = new File("target/submitter-journal-" + UUID.randomUUID().toString());
+        BagSummary bagSummary = createBag(S3MultipartOutputStream.MIN_PART_SIZE * 2 + 1000).serializeAPTrustBag(outputDir, true);
+        submitter.partSize(S3MultipartOutputStream.MIN_PART_SIZE).concurrentParts(1).partRetries(0, 0).journalDirectory(journalDir);
+        s3.failPart(2, 1);
+        Assert.assertFalse(submitter.transferBag(bagSummary, false).wasTransferred());
+        final File journal = new File(journalDir, bagSummary.getFile().getName() + ".journal");
+
+        final long hour = 60 * 60 * 1000;
+        Assert.assertEquals("A recent upload should be left alone!", 0, submitter.abortStaleUploads(hour));
+        Assert.assertEquals(1, s3.getOpenUploadCount());
+
+        journal.setLastModified(System.currentTimeMillis() - 2 * hour);
+        Assert.assertEquals(1, submitter.abortStaleUploads(hour));
+        Assert.assertEquals("The stale upload should have been aborted!", 0, s3.getOpenUploadCount());
+        Assert.assertFalse("The stale journal should be removed!", journal.exists());
+    }
+
+    @Test
+    public void testTransferProgress() throws Exception {
+        BagSummary bagSummary = createBag(S3MultipartOutputStream.MIN_PART_SIZE * 2 + 1000).serializeAPTrustBag(outputDir, true);
+        final List<Progress> reports = new ArrayList<Progress>();
+        submitter.partSize(S3MultipartOutputStream.MIN_PART_SIZE).concurrentParts(3).partRetries(1, 1)
+                .progressListener(new ProgressListener() {
+            @Override
+            public void progress(Progress progress) {
+                reports.add(progress);
+            }
+        }, 0);
+        s3.failPart(2, 1);
+        BagSubmitter.TransferSummary t = submitter.transferBag(bagSummary, false);
+        Assert.assertTrue("Bag should have been transferred! " + t.getMessage(), t.wasTransferred());
+        final Progress last = reports.get(reports.size() - 1);
+        Assert.assertTrue("The final report should be marked!", last.isFinished());
+        Assert.assertEquals("Every byte should be counted once!", t.getBagSize(), last.getBytesProcessed());
+        Assert.assertEquals("The total should be known!", t.getBagSize(), last.getTotalBytes());
+        Assert.assertEquals(BagMetrics.Phase.TRANSFER, last.getPhase());
+    }
+
+    @Test
+    public void testFailedPartProgressIsWithdrawn() {
+        final List<Progress> reports = new ArrayList<Progress>();
+        final ProgressTracker progress = new ProgressTracker("test", new ProgressListener() {
+            @Override
+            public void progress(Progress progress) {
+                reports.add(progress);
+            }
+        }, 0, 100);
+        final BagSubmitter.PartProgress failed = new BagSubmitter.PartProgress(progress, 100);
+        failed.progressChanged(new ProgressEvent(60));
+        failed.fail();
+        failed.progressChanged(new ProgressEvent(40));
+        final BagSubmitter.PartProgress retried = new BagSubmitter.PartProgress(progress, 100);
+        retried.progressChanged(new ProgressEvent(70));
+        retried.progressChanged(new ProgressEvent(ProgressEvent.COMPLETED_EVENT_CODE, 0));
+        retried.complete();
+        progress.finish();
+        Assert.assertEquals("Only the successful attempt should be counted!", 100, reports.get(reports.size() - 1).getBytesProcessed());
+        Assert.assertEquals("Withdrawn bytes should be reported!", 0, reports.get(1).getBytesProcessed());
+    }
+
+    @Test
+    public void testStreamBag() throws Exception {
+        APTrustBag bag = createBag(S3MultipartOutputStream.MIN_PART_SIZE * 2 + 1000);
+        submitter.streamingPartSize(S3MultipartOutputStream.MIN_PART_SIZE).concurrentParts(2);
+        BagSubmitter.TransferSummary t = submitter.streamBag(bag, outputDir, false);
+        Assert.assertTrue("Bag should have been transferred! " + t.getMessage(), t.wasTransferred());
+        Assert.assertEquals("No uploads should remain open!", 0, s3.getOpenUploadCount());
+
+        final byte[] content = s3.getContent(bag.getAptrustBagName() + ".tar");
+        Assert.assertNotNull("Bag should have been stored!", content);
+        Assert.assertEquals("Size should be reported!", content.length, t.getBagSize());
+        Assert.assertTrue("Bag should have required several parts!", t.getEtag().endsWith("-3"));
+        Assert.assertTrue("Multipart ETag should be computed as the bag is streamed!", t.isEtagVerified());
+        Assert.assertArrayEquals("Checksum should be computed as the bag is streamed!",
+                MessageDigest.getInstance("MD5").digest(content), t.getBagSummary().getChecksumBytes());
+        Assert.assertNotNull("Manifest should be computed as the bag is streamed!", t.getBagSummary().getManifestCopy());
+        Assert.assertFalse("Working files should be removed!", new File(outputDir, bag.getAptrustBagName()).exists());
+    }
+
+    @Test
+    public void testAdaptivePartSize() throws Exception {
+        final long gigabyte = 1024L * 1024 * 1024;
+        Assert.assertEquals("Parts should be small enough to keep each upload busy!", gigabyte / 8,
+                submitter.getPartSize(2 * gigabyte));
+        Assert.assertEquals("Parts should be no smaller than S3 allows!", S3MultipartOutputStream.MIN_PART_SIZE,
+                submitter.getPartSize(gigabyte / 100));
+        Assert.assertEquals("Parts should grow to stay within the part limit!", 2049L * 1024 * 1024,
+                submitter.getPartSize(20000 * gigabyte + 1));
+        Assert.assertEquals("The configured part size should be used when not adapting!", gigabyte,
+                submitter.adaptivePartSize(false).getPartSize(2 * gigabyte));
+        try {
+            submitter.getPartSize(60000 * gigabyte);
+            Assert.fail("An object needing more than 10,000 of the largest parts should be rejected!");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        final S3MultipartOutputStream out = new S3MultipartOutputStream(s3, "test-bucket", "growing", S3MultipartOutputStream.MIN_PART_SIZE);
+        Assert.assertEquals(S3MultipartOutputStream.MIN_PART_SIZE, out.getPartSize(S3MultipartOutputStream.PARTS_PER_SIZE));
+        Assert.assertEquals("Streamed parts should grow as the part count rises!", 2 * S3MultipartOutputStream.MIN_PART_SIZE,
+                out.getPartSize(S3MultipartOutputStream.PARTS_PER_SIZE + 1));
+        Assert.assertEquals(S3MultipartOutputStream.MAX_BUFFER_SIZE, out.getPartSize(10 * S3MultipartOutputStream.PARTS_PER_SIZE));
+        long capacity = 0;
+        for (int part = 1; part <= BagSubmitter.MAX_PARTS; part ++) {
+            capacity += out.getPartSize(part);
+        }
+        Assert.assertTrue("10,000 streamed parts should hold 5 TiB!", capacity >= 5L * 1024 * gigabyte);
+        out.abort();
+    }
+
+    @Test
+    public void testStreamingBufferLimit() throws Exception {
+        final int partSize = S3MultipartOutputStream.MIN_PART_SIZE;
+        final S3MultipartOutputStream out = new S3MultipartOutputStream(s3, "test-bucket", "limited", partSize, 4,
+                partSize, new RetryPolicy(0, 0), null, null, null, null);
+        final byte[] block = new byte[1024 * 1024];
+        for (int i = 0; i < 3 * partSize / block.length + 1; i ++) {
+            out.write(block);
+            Assert.assertTrue("Buffers should stay within the limit!", out.getAllocatedBytes() <= partSize);
+        }
+        out.close();
+        Assert.assertEquals(3 * partSize + block.length, s3.getContent("limited").length);
+    }
+
+    @Test
+    public void testBandwidthLimitAndPartListener() throws Exception {
+        final BandwidthLimiter limiter = new BandwidthLimiter(20 * 1024 * 1024);
+        final List<Integer> reportedParts = Collections.synchronizedList(new ArrayList<Integer>());
+        submitter.partSize(S3MultipartOutputStream.MIN_PART_SIZE).concurrentParts(3).bandwidthLimiter(limiter)
+                .partListener(new PartListener() {
+            @Override
+            public void partUploaded(String key, BagMetrics.PartMetrics part, int partsInFlight) {
+                Assert.assertTrue(partsInFlight >= 0 && partsInFlight < 3);
+                reportedParts.add(part.getPartNumber());
+            }
+        });
+        BagSummary bagSummary = createBag(S3MultipartOutputStream.MIN_PART_SIZE * 2 + 1000).serializeAPTrustBag(outputDir, true);
+        final long start = System.currentTimeMillis();
+        BagSubmitter.TransferSummary t = submitter.transferBag(bagSummary, false);
+        Assert.assertTrue("Bag should have been transferred! " + t.getMessage(), t.wasTransferred());
+        Assert.assertTrue("The transfer should have been limited!", System.currentTimeMillis() - start >= 400);
+        Assert.assertEquals("Each part should be reported!", 3, reportedParts.size());
+
+        // a single put is limited too, and the limit may be lifted
+        limiter.setBytesPerSecond(0);
+        bagSummary = createBag(1000).serializeAPTrustBag(outputDir, true);
+        t = submitter.transferBag(bagSummary, false);
+        Assert.assertTrue("Bag should have been transferred! " + t.getMessage(), t.wasTransferred());
+        Assert.assertArrayEquals("Content should match!", FileUtils.readFileToByteArray(bagSummary.getFile()),
+                s3.getContent(bagSummary.getFile().getName()));
+    }
+
+    @Test
+    public void testFailedStreamIsAborted() throws Exception {
+        APTrustBag bag = TestFiles.createBag(new PendingPayloadFile(new File(outputDir, "does-not-exist")));
+        BagSubmitter.TransferSummary t = submitter.streamBag(bag, outputDir, false);
+        Assert.assertFalse("Bag should not have been transferred!", t.wasTransferred());
+        Assert.assertNull("No object should have been stored!", s3.getContent(bag.getAptrustBagName() + ".tar"));
+        Assert.assertEquals("The upload should have been aborted!", 0, s3.getOpenUploadCount());
+    }
+
+    private APTrustBag createBag(long payloadSize) throws IOException {
+        return TestFiles.createBag(new PendingPayloadFile(TestFiles.createDummyFile(payloadSize), "payload.random"));
+    }
+}
@@ -0,0 +1,109 @@
+package edu.virginia.lib.aptrust.bags.util;
+
+import edu.virginia.lib.aptrust.bags.BagSummary;
+import edu.virginia.lib.aptrust.bags.PendingPayloadFile;
+import edu.virginia.lib.aptrust.bags.TestFiles;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+public class BucketInventoryTest {
+
+    private File outputDir;
+
+    private LocalS3Client s3;
+
+    @Before
+    public void setUp() {
+        outputDir = new File("target/inventory-output");
+        s3 = new LocalS3Client();
+        s3.setListPageSize(2);
+        for (int i = 0; i < 5; i ++) {
+            s3.putContent("existing-" + i + ".tar", new byte[i]);
+        }
+    }
+
+    @Test
+    public void testExistenceIsCheckedLocally() throws Exception {
+        final BucketInventory inventory = new BucketInventory(s3, "test-bucket");
+        final BagSubmitter submitter = new BagSubmitter(s3, "test-bucket").bucketInventory(inventory);
+        final BagSummary first = createBagSummary();
+        final BagSummary second = createBagSummary();
+        Assert.assertTrue(submitter.transferBag(first, false).wasTransferred());
+        Assert.assertTrue(submitter.transferBag(second, false).wasTransferred());
+        Assert.assertEquals("The bucket should be listed once, in pages!", 3, s3.getListRequestCount());
+        Assert.assertEquals("Stored bags should be indexed!", 7, inventory.size());
+
+        Assert.assertFalse("An indexed bag should not be overwritten!", submitter.transferBag(first, false).wasTransferred());
+        final BagSubmitter.TransferSummary t = submitter.transferBag(first, true);
+        Assert.assertTrue("An indexed bag should be overwritten!", t.wasTransferred() && t.deletedExistingBag());
+        Assert.assertEquals("No further listing should be needed!", 3, s3.getListRequestCount());
+        Assert.assertEquals(1, inventory.getLoadCount());
+    }
+
+    @Test
+    public void testExpiredInventoryIsReloaded() throws Exception {
+        final BucketInventory inventory = new BucketInventory(s3, "test-bucket").ttl(0);
+        final BagSubmitter submitter = new BagSubmitter(s3, "test-bucket").bucketInventory(inventory);
+        final BagSummary bag = createBagSummary();
+        s3.putContent(bag.getFile().getName(), new byte[1]);
+        Thread.sleep(5);
+        Assert.assertFalse("A bag stored by another client should be found!", submitter.transferBag(bag, false).wasTransferred());
+        Thread.sleep(5);
+        submitter.transferBag(createBagSummary(), false);
+        Assert.assertEquals("An expired inventory should be reloaded!", 2, inventory.getLoadCount());
+    }
+
+    @Test
+    public void testOversizedBucketFallsBackToS3() throws Exception {
+        final BucketInventory inventory = new BucketInventory(s3, "test-bucket").maxEntries(3);
+        final BagSubmitter submitter = new BagSubmitter(s3, "test-bucket").bucketInventory(inventory);
+        Assert.assertTrue(submitter.transferBag(createBagSummary(), false).wasTransferred());
+        Assert.assertEquals("Indexing should stop at the maximum!", 3, inventory.size());
+        Assert.assertTrue("Keys up to the last indexed should be answered locally!", inventory.covers("existing-1.tar"));
+        Assert.assertFalse("Later keys should be checked with S3!", inventory.covers("existing-4.tar"));
+
+        final BagSummary existing = createBagSummary();
+        s3.putContent(existing.getFile().getName(), new byte[1]);
+        Assert.assertFalse("Existence should be checked with S3!", submitter.transferBag(existing, false).wasTransferred());
+    }
+
+    @Test
+    public void testFailedListingFallsBackToS3() throws Exception {
+        final BucketInventory inventory = new BucketInventory(s3, "test-bucket");
+        final BagSubmitter submitter = new BagSubmitter(s3, "test-bucket").bucketInventory(inventory);
+        final BagSummary existing = createBagSummary();
+        s3.putContent(existing.getFile().getName(), new byte[1]);
+        s3.failListing(1);
+        Assert.assertFalse("Existence should be checked with S3!", submitter.transferBag(existing, false).wasTransferred());
+        Assert.assertEquals("No inventory should be held!", -1, inventory.size());
+
+        inventory.invalidate();
+        Assert.assertTrue(submitter.transferBag(createBagSummary(), false).wasTransferred());
+        Assert.assertEquals("The inventory should be loaded once listing succeeds!", 7, inventory.size());
+    }
+
+    @Test
+    public void testRefreshReplacesListedRanges() throws Exception {
+        final BucketInventory inventory = new BucketInventory(s3, "test-bucket");
+        Assert.assertTrue(inventory.covers("existing-0.tar"));
+        inventory.put("existing-9.tar", 9);
+        s3.deleteObject("test-bucket", "existing-1.tar");
+        s3.putContent("existing-5.tar", new byte[5]);
+
+        inventory.ttl(0);
+        Thread.sleep(5);
+        Assert.assertTrue(inventory.covers("existing-0.tar"));
+        Assert.assertNull("A deleted object should be dropped!", inventory.get("existing-1.tar"));
+        Assert.assertNotNull("A new object should be indexed!", inventory.get("existing-5.tar"));
+        Assert.assertNull("An object no longer listed should be dropped!", inventory.get("existing-9.tar"));
+        Assert.assertEquals(5, inventory.size());
+    }
+
+    private BagSummary createBagSummary() throws Exception {
+        return TestFiles.createBag(new PendingPayloadFile(TestFiles.createFile("content"), "file.txt"))
+                .serializeAPTrustBag(outputDir, true);
+    }
+}
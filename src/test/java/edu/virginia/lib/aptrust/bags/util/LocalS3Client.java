@@ -0,0 +1,350 @@
+package edu.virginia.lib.aptrust.bags.util;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-memory stand-in for S3 that implements the subset of AmazonS3Client
+ * used by BagSubmitter.  Objects are held in memory, so it is only suitable
+ * for small test bags.
+ */
+public class LocalS3Client extends AmazonS3Client {
+
+    private final ConcurrentSkipListMap<String, byte[]> objects = new ConcurrentSkipListMap<String, byte[]>();
+
+    private final Map<String, Date> lastModified = new ConcurrentHashMap<String, Date>();
+
+    private final Map<String, SortedMap<Integer, byte[]>> uploads = new ConcurrentHashMap<String, SortedMap<Integer, byte[]>>();
+
+    private final Map<Integer, Integer> partFailures = new ConcurrentHashMap<Integer, Integer>();
+
+    private final Set<Integer> corruptParts = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+    private final AtomicInteger partUploads = new AtomicInteger();
+
+    private final AtomicInteger listRequests = new AtomicInteger();
+
+    private int listPageSize = 1000;
+
+    private final AtomicInteger listFailures = new AtomicInteger();
+
+    public LocalS3Client() {
+        super(new BasicAWSCredentials("local", "local"));
+    }
+
+    /**
+     * Gets the content of the stored object, or null if there is none.
+     */
+    public byte[] getContent(String key) {
+        return objects.get(key);
+    }
+
+    /**
+     * Gets the number of multipart uploads that have been initiated but
+     * neither completed nor aborted.
+     */
+    public int getOpenUploadCount() {
+        return uploads.size();
+    }
+
+    /**
+     * Gets the number of parts (of any upload) that have been successfully
+     * uploaded.
+     */
+    public int getPartUploadCount() {
+        return partUploads.get();
+    }
+
+    /**
+     * Causes the next given number of attempts to upload the given part
+     * number (of any upload) to fail.
+     */
+    public void failPart(int partNumber, int times) {
+        partFailures.put(partNumber, times);
+    }
+
+    /**
+     * Causes the first byte of the given part number (of any upload) to be
+     * altered as it is stored, as if it were corrupted in transit.
+     */
+    public void corruptPart(int partNumber) {
+        corruptParts.add(partNumber);
+    }
+
+    @Override
+    public PutObjectResult putObject(String bucketName, String key, File file) {
+        return putObject(new PutObjectRequest(bucketName, key, file));
+    }
+
+    @Override
+    public PutObjectResult putObject(PutObjectRequest request) {
+        try {
+            final byte[] content = request.getFile() != null ? FileUtils.readFileToByteArray(request.getFile())
+                    : IOUtils.toByteArray(request.getInputStream());
+            store(request.getKey(), content);
+            final PutObjectResult result = new PutObjectResult();
+            result.setContentMd5(new String(Base64.encodeBase64(md5(content)), "UTF-8"));
+            result.setETag(String.valueOf(Hex.encodeHex(md5(content))));
+            return result;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public ObjectListing listObjects(String bucketName, String prefix) {
+        return listObjects(new ListObjectsRequest().withBucketName(bucketName).withPrefix(prefix));
+    }
+
+    /**
+     * Lists objects in pages of at most the request's maximum keys or, if
+     * none was requested, the configured page size.
+     */
+    @Override
+    public ObjectListing listObjects(ListObjectsRequest request) {
+        listRequests.incrementAndGet();
+        if (listFailures.get() > 0) {
+            listFailures.decrementAndGet();
+            throw new AmazonServiceException("Simulated failure of listing");
+        }
+        final String prefix = request.getPrefix() == null ? "" : request.getPrefix();
+        final int maxKeys = request.getMaxKeys() == null ? listPageSize : request.getMaxKeys();
+        final ObjectListing listing = new ObjectListing();
+        listing.setBucketName(request.getBucketName());
+        listing.setPrefix(prefix);
+        listing.setMaxKeys(maxKeys);
+        final Map<String, byte[]> remaining = request.getMarker() == null ? objects
+                : objects.tailMap(request.getMarker(), false);
+        for (Map.Entry<String, byte[]> entry : remaining.entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                if (listing.getObjectSummaries().size() == maxKeys) {
+                    listing.setTruncated(true);
+                    break;
+                }
+                final S3ObjectSummary summary = new S3ObjectSummary();
+                summary.setBucketName(request.getBucketName());
+                summary.setKey(entry.getKey());
+                summary.setSize(entry.getValue().length);
+                summary.setLastModified(lastModified.get(entry.getKey()));
+                listing.getObjectSummaries().add(summary);
+                listing.setNextMarker(entry.getKey());
+            }
+        }
+        return listing;
+    }
+
+    @Override
+    public ObjectListing listNextBatchOfObjects(ObjectListing previous) {
+        return listObjects(new ListObjectsRequest().withBucketName(previous.getBucketName()).withPrefix(previous.getPrefix())
+                .withMarker(previous.getNextMarker()).withMaxKeys(previous.getMaxKeys()));
+    }
+
+    /**
+     * Sets the number of objects returned by each listing request that
+     * doesn't specify its own maximum.
+     */
+    public void setListPageSize(int size) {
+        listPageSize = size;
+    }
+
+    /**
+     * Causes the next given number of listing requests to fail.
+     */
+    public void failListing(int times) {
+        listFailures.set(times);
+    }
+
+    /**
+     * Gets the number of listing requests that have been made.
+     */
+    public int getListRequestCount() {
+        return listRequests.get();
+    }
+
+    /**
+     * Stores an object directly, as another client might.
+     */
+    public void putContent(String key, byte[] content) {
+        store(key, content);
+    }
+
+    @Override
+    public void deleteObject(String bucketName, String key) {
+        objects.remove(key);
+        lastModified.remove(key);
+    }
+
+    @Override
+    public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+        final InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+        result.setBucketName(request.getBucketName());
+        result.setKey(request.getKey());
+        result.setUploadId(UUID.randomUUID().toString());
+        uploads.put(result.getUploadId(), new ConcurrentSkipListMap<Integer, byte[]>());
+        return result;
+    }
+
+    @Override
+    public UploadPartResult uploadPart(UploadPartRequest request) {
+        final SortedMap<Integer, byte[]> parts = getUpload(request.getUploadId());
+        final Integer failures = partFailures.get(request.getPartNumber());
+        if (failures != null && failures > 0) {
+            partFailures.put(request.getPartNumber(), failures - 1);
+            throw new AmazonServiceException("Simulated failure of part " + request.getPartNumber());
+        }
+        try {
+            final byte[] content;
+            if (request.getFile() != null) {
+                final InputStream in = new FileInputStream(request.getFile());
+                try {
+                    IOUtils.skipFully(in, request.getFileOffset());
+                    content = IOUtils.toByteArray(new BoundedInputStream(in, request.getPartSize()));
+                } finally {
+                    in.close();
+                }
+            } else {
+                final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                IOUtils.copy(new BoundedInputStream(request.getInputStream(), request.getPartSize()), baos);
+                content = baos.toByteArray();
+            }
+            if (corruptParts.contains(request.getPartNumber()) && content.length > 0) {
+                content[0] ^= 1;
+            }
+            parts.put(request.getPartNumber(), content);
+            partUploads.incrementAndGet();
+            final UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag(String.valueOf(Hex.encodeHex(md5(content))));
+            return result;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Lists the parts of an upload, one part per page so that paging is
+     * exercised.
+     */
+    @Override
+    public PartListing listParts(ListPartsRequest request) {
+        final SortedMap<Integer, byte[]> parts = getUpload(request.getUploadId());
+        final int marker = request.getPartNumberMarker() == null ? 0 : request.getPartNumberMarker();
+        final SortedMap<Integer, byte[]> remaining = parts.tailMap(marker + 1);
+        final PartListing listing = new PartListing();
+        listing.setBucketName(request.getBucketName());
+        listing.setKey(request.getKey());
+        listing.setUploadId(request.getUploadId());
+        final List<PartSummary> summaries = new ArrayList<PartSummary>();
+        if (!remaining.isEmpty()) {
+            final int partNumber = remaining.firstKey();
+            final PartSummary summary = new PartSummary();
+            summary.setPartNumber(partNumber);
+            summary.setSize(remaining.get(partNumber).length);
+            summary.setETag(String.valueOf(Hex.encodeHex(md5(remaining.get(partNumber)))));
+            summaries.add(summary);
+            listing.setNextPartNumberMarker(partNumber);
+            listing.setTruncated(remaining.size() > 1);
+        }
+        listing.setParts(summaries);
+        return listing;
+    }
+
+    @Override
+    public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+        final SortedMap<Integer, byte[]> parts = getUpload(request.getUploadId());
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        final ByteArrayOutputStream partMd5s = new ByteArrayOutputStream();
+        int expectedPartNumber = 1;
+        for (PartETag partETag : request.getPartETags()) {
+            if (partETag.getPartNumber() != expectedPartNumber ++) {
+                throw new AmazonServiceException("InvalidPartOrder");
+            }
+            final byte[] part = parts.get(partETag.getPartNumber());
+            if (part == null || !String.valueOf(Hex.encodeHex(md5(part))).equals(partETag.getETag())) {
+                throw new AmazonServiceException("InvalidPart");
+            }
+            content.write(part, 0, part.length);
+            final byte[] partMd5 = md5(part);
+            partMd5s.write(partMd5, 0, partMd5.length);
+        }
+        uploads.remove(request.getUploadId());
+        store(request.getKey(), content.toByteArray());
+        final CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+        result.setBucketName(request.getBucketName());
+        result.setKey(request.getKey());
+        result.setETag(String.valueOf(Hex.encodeHex(md5(partMd5s.toByteArray()))) + "-" + request.getPartETags().size());
+        return result;
+    }
+
+    @Override
+    public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+        getUpload(request.getUploadId());
+        uploads.remove(request.getUploadId());
+    }
+
+    private SortedMap<Integer, byte[]> getUpload(String uploadId) {
+        final SortedMap<Integer, byte[]> parts = uploads.get(uploadId);
+        if (parts == null) {
+            final AmazonServiceException e = new AmazonServiceException("The specified upload does not exist.");
+            e.setErrorCode("NoSuchUpload");
+            e.setStatusCode(404);
+            throw e;
+        }
+        return parts;
+    }
+
+    private void store(String key, byte[] content) {
+        objects.put(key, content);
+        lastModified.put(key, new Date());
+    }
+
+    private static byte[] md5(byte[] content) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
@@ -0,0 +1,53 @@
+package edu.virginia.lib.aptrust.bags.util;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+public class StreamUtilsTest {
+
+    @Test
+    public void testChannelCopy() throws Exception {
+        final byte[] content = new byte[StreamUtils.BUFFER_SIZE * 2 + 12345];
+        new Random().nextBytes(content);
+        final File source = File.createTempFile("source", ".dat");
+        FileUtils.writeByteArrayToFile(source, content);
+        final byte[] expectedDigest = MessageDigest.getInstance("SHA-256").digest(content);
+
+        for (ByteBuffer buffer : new ByteBuffer[] { ByteBuffer.allocate(64 * 1024), ByteBuffer.allocateDirect(64 * 1024) }) {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            Assert.assertEquals("Every byte should be copied!", content.length, copy(source, buffer, digest));
+            Assert.assertArrayEquals("Content should be digested!", expectedDigest, digest.digest());
+        }
+        Assert.assertEquals("Every byte should be transferred!", content.length, copy(source, ByteBuffer.allocate(1), null));
+    }
+
+    private long copy(File source, ByteBuffer buffer, MessageDigest digest) throws Exception {
+        final File destination = File.createTempFile("destination", ".dat");
+        final FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+        final long count;
+        try {
+            final FileChannel out = FileChannel.open(destination.toPath(), StandardOpenOption.WRITE);
+            try {
+                count = StreamUtils.copy(in, out, buffer,
+                        digest == null ? Collections.<MessageDigest>emptyList() : Arrays.asList(digest));
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        Assert.assertArrayEquals("Content should match!", FileUtils.readFileToByteArray(source),
+                FileUtils.readFileToByteArray(destination));
+        return count;
+    }
+}